@@ -1,2 +1,12 @@
-public class Position {}
+public class Position
+{
+  public String fileName;
+  public int line, col;
 
+  public Position ( String fileName, int line, int col )
+  {
+    this.fileName = fileName;
+    this.line = line;
+    this.col = col;
+  }
+}
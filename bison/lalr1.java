@@ -24,6 +24,21 @@ b4_defines_if([b4_fatal([%s: %%defines does not make sense in Java],
 # non-used flags.
 b4_parse_trace_if([0], [0])
 
+# The locations of the symbols are kept in the parser stack as primitives and
+# Location objects are created only when an action asks for them. This requires
+# the position type to have the public fields fileName, line and col, and a
+# constructor taking them. The lexer may reuse the objects returned by
+# getStartPos () and getEndPos (). The actions must use @$ for the location of
+# the rule: yyaction () no longer has a yyloc variable.
+m4_define([b4_lhs_location],
+[yystack.lhsLocation ()])
+
+# The location of the lookahead token. The pull parser creates it from the
+# positions of the lexer when it is first needed.
+m4_define([b4_lookahead_location],
+[b4_push_if([yylloc],
+            [(yylloc != null ? yylloc : (yylloc = yylexerLocation ()))])])
+
 #m4_define([b4_symbol_no_destructor_assert],
 #[b4_symbol_if([$1], [has_destructor],
 #              [b4_fatal([%s: %s: %%destructor does not make sense in Java],
@@ -76,8 +91,8 @@ m4_define([b4_define_state],[[
     ]b4_locations_if([/* The location where the error started.  */
     b4_location_type yyerrloc = null;
 
-    /* Location. */
-    b4_location_type yylloc = new b4_location_type (null, null);])[
+    /* Location of the lookahead, created on demand. */
+    b4_location_type yylloc = b4_push_if([new b4_location_type (null, null)], [null]);])[
 
     /* Semantic value of the lookahead.  */
     ]b4_yystype[ yylval = null;
@@ -183,11 +198,24 @@ b4_locations_if([[
   b4_locations_if([[
   private ]b4_location_type[ yylloc (YYStack rhs, int n)
   {
-    if (n > 0)
-      return new ]b4_location_type[ (rhs.locationAt (n-1).begin, rhs.locationAt (0).end);
-    else
-      return new ]b4_location_type[ (rhs.locationAt (0).end);
-  }]])[
+    rhs.setLhsLocation (n);
+    return rhs.lhsLocation ();
+  }
+
+  /**
+   * Create a location with copies of the positions, which the lexer may reuse.
+   */
+  private static ]b4_location_type[ yylocation (]b4_position_type[ begin, ]b4_position_type[ end)
+  {
+    return new ]b4_location_type[ (
+      begin != null ? new ]b4_position_type[ (begin.fileName, begin.line, begin.col) : null,
+      end != null ? new ]b4_position_type[ (end.fileName, end.line, end.col) : null);
+  }]b4_push_if([], [[
+
+  private ]b4_location_type[ yylexerLocation ()
+  {
+    return yylocation (yylexer.getStartPos (), yylexer.getEndPos ());
+  }]])])[
 
   /**
    * Communication interface between the scanner and the Bison-generated
@@ -201,6 +229,8 @@ b4_locations_if([[
 
     ]b4_locations_if([[/**
      * Method to retrieve the beginning position of the last scanned token.
+     * The parser copies the positions before calling yylex () again, so the
+     * lexer may reuse the same objects for every token.
      * @@return the position at which the last scanned token starts.
      */
     ]b4_position_type[ getStartPos ();
@@ -335,15 +365,21 @@ b4_lexer_if([[
   }
 
   private final class YYStack {
-    private int[] stateStack = new int[16];
-    ]b4_locations_if([[private ]b4_location_type[[] locStack = new ]b4_location_type[[16];]])[
+    private int[] stateStack = new int[16];]b4_locations_if([[
+    /* The begin and end positions of every entry: the line and column of
+       each in posStack and the file names in fileStack.  */
+    private int[] posStack = new int[16 * 4];
+    private String[] fileStack = new String[16 * 2];
+
+    /* The location of the left-hand side of the rule being reduced.  */
+    private String lhsBeginFile, lhsEndFile;
+    private int lhsBeginLine, lhsBeginCol, lhsEndLine, lhsEndCol;]])[
     private ]b4_yystype[[] valueStack = new ]b4_yystype[[16];
 
     public int size = 16;
     public int height = -1;
 
-    public final void push (int state, ]b4_yystype[ value]dnl
-                            b4_locations_if([, ]b4_location_type[ loc])[) {
+    private void pushState (int state, ]b4_yystype[ value) {
       height++;
       if (size == height)
         {
@@ -351,9 +387,12 @@ b4_lexer_if([[
           System.arraycopy (stateStack, 0, newStateStack, 0, height);
           stateStack = newStateStack;
           ]b4_locations_if([[
-          ]b4_location_type[[] newLocStack = new ]b4_location_type[[size * 2];
-          System.arraycopy (locStack, 0, newLocStack, 0, height);
-          locStack = newLocStack;]])
+          int[] newPosStack = new int[size * 2 * 4];
+          System.arraycopy (posStack, 0, newPosStack, 0, height * 4);
+          posStack = newPosStack;
+          String[] newFileStack = new String[size * 2 * 2];
+          System.arraycopy (fileStack, 0, newFileStack, 0, height * 2);
+          fileStack = newFileStack;]])
 
           b4_yystype[[] newValueStack = new ]b4_yystype[[size * 2];
           System.arraycopy (valueStack, 0, newValueStack, 0, height);
@@ -363,10 +402,98 @@ b4_lexer_if([[
         }
 
       stateStack[height] = state;
-      ]b4_locations_if([[locStack[height] = loc;]])[
       valueStack[height] = value;
     }
 
+    public final void push (int state, ]b4_yystype[ value]dnl
+                            b4_locations_if([, ]b4_location_type[ loc])[) {
+      pushState (state, value);]b4_locations_if([[
+      if (loc != null)
+        setPositions (loc.begin, loc.end);
+      else
+        setPositions (null, null);]])[
+    }
+]b4_locations_if([[
+    /**
+     * Push a symbol with copies of the given positions.
+     */
+    public final void push (int state, ]b4_yystype[ value,
+                            ]b4_position_type[ begin, ]b4_position_type[ end) {
+      pushState (state, value);
+      setPositions (begin, end);
+    }
+
+    private void setPositions (]b4_position_type[ begin, ]b4_position_type[ end) {
+      final int p = height * 4, f = height * 2;
+      if (begin != null)
+        {
+          posStack[p] = begin.line;
+          posStack[p + 1] = begin.col;
+          fileStack[f] = begin.fileName;
+        }
+      else
+        {
+          posStack[p] = posStack[p + 1] = 0;
+          fileStack[f] = null;
+        }
+      if (end != null)
+        {
+          posStack[p + 2] = end.line;
+          posStack[p + 3] = end.col;
+          fileStack[f + 1] = end.fileName;
+        }
+      else
+        {
+          posStack[p + 2] = posStack[p + 3] = 0;
+          fileStack[f + 1] = null;
+        }
+    }
+
+    /**
+     * Calculate the location of the left-hand side of a rule with
+     * <code>n</code> symbols, which are on the top of the stack.  An empty
+     * rule is located at the end of the previous symbol.
+     */
+    public final void setLhsLocation (int n) {
+      final int b = height - n + 1, e = height;
+      if (n > 0)
+        {
+          lhsBeginLine = posStack[b * 4];
+          lhsBeginCol = posStack[b * 4 + 1];
+          lhsBeginFile = fileStack[b * 2];
+        }
+      else
+        {
+          lhsBeginLine = posStack[e * 4 + 2];
+          lhsBeginCol = posStack[e * 4 + 3];
+          lhsBeginFile = fileStack[e * 2 + 1];
+        }
+      lhsEndLine = posStack[e * 4 + 2];
+      lhsEndCol = posStack[e * 4 + 3];
+      lhsEndFile = fileStack[e * 2 + 1];
+    }
+
+    /**
+     * Push the result of a reduction with the location calculated by
+     * <code>setLhsLocation</code>.
+     */
+    public final void pushLhs (int state, ]b4_yystype[ value) {
+      pushState (state, value);
+      final int p = height * 4, f = height * 2;
+      posStack[p] = lhsBeginLine;
+      posStack[p + 1] = lhsBeginCol;
+      posStack[p + 2] = lhsEndLine;
+      posStack[p + 3] = lhsEndCol;
+      fileStack[f] = lhsBeginFile;
+      fileStack[f + 1] = lhsEndFile;
+    }
+
+    public final ]b4_location_type[ lhsLocation () {
+      return new ]b4_location_type[ (
+        new ]b4_position_type[ (lhsBeginFile, lhsBeginLine, lhsBeginCol),
+        new ]b4_position_type[ (lhsEndFile, lhsEndLine, lhsEndCol));
+    }
+]])[
     public final void pop () {
       pop (1);
     }
@@ -375,7 +502,7 @@ b4_lexer_if([[
       // Avoid memory leaks... garbage collection is a white lie!
       if (num > 0) {
         java.util.Arrays.fill (valueStack, height - num + 1, height + 1, null);
-        ]b4_locations_if([[java.util.Arrays.fill (locStack, height - num + 1, height + 1, null);]])[
+        ]b4_locations_if([[java.util.Arrays.fill (fileStack, (height - num + 1) * 2, (height + 1) * 2, null);]])[
       }
       height -= num;
     }
@@ -385,7 +512,10 @@ b4_lexer_if([[
     }
 
     ]b4_locations_if([[public final ]b4_location_type[ locationAt (int i) {
-      return locStack[height - i];
+      final int p = (height - i) * 4, f = (height - i) * 2;
+      return new ]b4_location_type[ (
+        new ]b4_position_type[ (fileStack[f], posStack[p], posStack[p + 1]),
+        new ]b4_position_type[ (fileStack[f + 1], posStack[p + 2], posStack[p + 3]));
     }
 
     ]])[public final ]b4_yystype[ valueAt (int i) {
@@ -472,7 +602,7 @@ b4_define_state])[
   private int yyaction (int yyn, YYStack yystack, int yylen) ]b4_maybe_throws([b4_throws])[
   {
     ]b4_yystype[ yyval;
-    ]b4_locations_if([b4_location_type[ yyloc = yylloc (yystack, yylen);]])[
+    ]b4_locations_if([[yystack.setLhsLocation (yylen);]])[
 
     /* If YYLEN is nonzero, implement the default value of the action:
        '$$ = $1'.  Otherwise, use the top of the stack.
@@ -493,14 +623,16 @@ b4_define_state])[
         default: break;
       }
 
-    yy_symbol_print ("-> $$ =", yyr1_[yyn], yyval]b4_locations_if([, yyloc])[);
+    yy_symbol_print ("-> $$ =", yyr1_[yyn], yyval]b4_locations_if([,
+                     yydebug > 0 ? yystack.lhsLocation () : null])[);
 
     yystack.pop (yylen);
     // yylen = 0;
 
     /* Shift the result of the reduction.  */
     int yystate = yy_lr_goto_state_ (yystack.stateAt (0), yyr1_[yyn]);
-    yystack.push (yystate, yyval]b4_locations_if([, yyloc])[);
+    ]b4_locations_if([[yystack.pushLhs (yystate, yyval);]],
+                     [[yystack.push (yystate, yyval);]])[
     return YYNEWSTATE;
   }
 
@@ -650,8 +782,7 @@ b4_dollar_popdef[]dnl
             yycdebug ("Reading a token: ");
             yychar = yylexer.yylex ();
             yylval = yylexer.getLVal ();]b4_locations_if([
-            yylloc = new b4_location_type (yylexer.getStartPos (),
-                            yylexer.getEndPos ());])[
+            yylloc = null;])[
 ]])[
           }
 
@@ -665,7 +796,8 @@ b4_dollar_popdef[]dnl
           {
             yytoken = yytranslate_ (yychar);
             yy_symbol_print ("Next token is", yytoken,
-                             yylval]b4_locations_if([, yylloc])[);
+                             yylval]b4_locations_if([,
+                             yydebug > 0 ? ]b4_lookahead_location[ : null])[);
           }
 
         /* If the proper action on seeing token YYTOKEN is to reduce or to
@@ -690,7 +822,8 @@ b4_dollar_popdef[]dnl
           {
             /* Shift the lookahead token.  */
             yy_symbol_print ("Shifting", yytoken,
-                             yylval]b4_locations_if([, yylloc])[);
+                             yylval]b4_locations_if([,
+                             yydebug > 0 ? ]b4_lookahead_location[ : null])[);
 
             /* Discard the token being shifted.  */
             yychar = yyempty_;
@@ -701,7 +834,8 @@ b4_dollar_popdef[]dnl
               --yyerrstatus_;
 
             yystate = yyn;
-            yystack.push (yystate, yylval]b4_locations_if([, yylloc])[);
+            yystack.push (yystate, yylval]b4_locations_if([b4_push_if([, yylloc],
+                          [, yylexer.getStartPos (), yylexer.getEndPos ()])])[);
             label = YYNEWSTATE;
           }
         break;
@@ -738,10 +872,10 @@ b4_dollar_popdef[]dnl
             ++yynerrs_;
             if (yychar == yyempty_)
               yytoken = yyempty_;
-            yyerror (]b4_locations_if([yylloc, ])[yysyntax_error (yystate, yytoken));
+            yyerror (]b4_locations_if([b4_lookahead_location[, ]])[yysyntax_error (yystate, yytoken));
           }
 
-        ]b4_locations_if([yyerrloc = yylloc;])[
+        ]b4_locations_if([yyerrloc = b4_lookahead_location;])[
         if (yyerrstatus_ == 3)
           {
         /* If just tried and failed to reuse lookahead token after an
@@ -756,7 +890,7 @@ b4_dollar_popdef[]dnl
         else
           {
             yydestruct ("Error: discarding",
-                        yytoken, yylval]b4_locations_if([, yylloc])[);
+                        yytoken, yylval]b4_locations_if([, b4_lookahead_location])[);
             yychar = yyempty_;
           }
           }
@@ -820,7 +954,7 @@ b4_dollar_popdef[]dnl
 
 ]b4_locations_if([
         /* Muck with the stack to setup for yylloc.  */
-        yystack.push (0, null, yylloc);
+        yystack.push (0, null, ]b4_lookahead_location[);
         yystack.push (0, null, yyerrloc);
         yyloc = yylloc (yystack, 2);
         yystack.pop (2);])[
@@ -853,7 +987,7 @@ b4_dollar_popdef[]dnl
           user semantic actions for why this is necessary.  */
       yytoken = yytranslate_(yychar);
       yydestruct ("Cleanup: discarding lookahead",
-                  yytoken, yylval]b4_locations_if([, yylloc])[);
+                  yytoken, yylval]b4_locations_if([, b4_lookahead_location])[);
     }
     /* Do not reclaim the symbols of the rule whose action triggered
       this YYABORT or YYACCEPT.  */
@@ -937,7 +1071,7 @@ b4_both_if([[
         int token = yylexer.yylex();
         ]b4_yystype[ lval = yylexer.getLVal();
 ]b4_locations_if([dnl
-        b4_location_type yyloc = new b4_location_type (yylexer.getStartPos (),
+        b4_location_type yyloc = yylocation (yylexer.getStartPos (),
                                               yylexer.getEndPos ());])[
         ]b4_locations_if([status = push_parse(token,lval,yyloc);],[
         status = push_parse(token,lval);])[
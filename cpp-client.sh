@@ -0,0 +1,2 @@
+#/bin/sh
+exec java -cp ${0%/*}/java/out/artifacts/cpp_jar/cpp.jar c99.driver.PreprClient $@
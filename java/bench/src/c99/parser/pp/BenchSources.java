@@ -0,0 +1,148 @@
+package c99.parser.pp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import c99.DummyErrorReporter;
+import c99.IErrorReporter;
+import c99.parser.Code;
+import c99.driver.PPSymTable;
+
+/**
+ * Synthetic inputs and helpers shared by the benchmarks.
+ */
+final class BenchSources
+{
+private BenchSources () {}
+
+/** Diagnostics are not expected, but if there are any they shouldn't go to the console */
+static final IErrorReporter s_reporter =
+  new DummyErrorReporter( new PrintStream( new NullOutputStream() ) );
+
+static final class NullOutputStream extends OutputStream
+{
+  @Override public void write ( int b ) {}
+  @Override public void write ( byte[] b, int off, int len ) {}
+}
+
+/** Ordinary C code without preprocessor directives, resembling a typical function body */
+static String plainCode ( int lines )
+{
+  StringBuilder b = new StringBuilder( lines * 40 );
+  for ( int i = 0; i < lines; ++i )
+  {
+    switch (i % 6)
+    {
+    case 0: b.append( "static int func" ).append( i ).append( " ( const char * s, unsigned long n )\n" ); break;
+    case 1: b.append( "{\n" ); break;
+    case 2: b.append( "  for ( n = 0; s[n] != '\\0' && n < 0x" ).append( Integer.toHexString( i ) ).append( "UL; ++n )\n" ); break;
+    case 3: b.append( "    total += (s[n] << 3) - 1.5e2 * n; /* a comment */\n" ); break;
+    case 4: b.append( "  return printf( \"%s %d\\n\", s, total ) >= 0 ? 1 : -1; // done\n" ); break;
+    case 5: b.append( "}\n" ); break;
+    }
+  }
+  return b.toString();
+}
+
+/** Many uses of an object-like macro */
+static String objectMacros ( int lines )
+{
+  StringBuilder b = new StringBuilder( "#define LIMIT (1024 * 4)\n#define NAME buffer_size\n" );
+  for ( int i = 0; i < lines; ++i )
+    b.append( "int NAME" ).append( " = LIMIT + LIMIT;\n" );
+  return b.toString();
+}
+
+/** Many uses of nested function-like macros, with stringizing and token pasting */
+static String functionMacros ( int lines )
+{
+  StringBuilder b = new StringBuilder(
+    "#define MAX(a,b) ((a) > (b) ? (a) : (b))\n" +
+    "#define MIN(a,b) ((a) < (b) ? (a) : (b))\n" +
+    "#define CLAMP(x,lo,hi) MIN(MAX(x,lo),hi)\n" +
+    "#define STR(x) #x\n" +
+    "#define CAT(a,b) a ## b\n" );
+  for ( int i = 0; i < lines; ++i )
+    b.append( "int CAT(v," ).append( i ).append( ") = CLAMP(x + " ).append( i ).append( ", 0, 255); const char * s = STR(x+y);\n" );
+  return b.toString();
+}
+
+/** Many conditional directives with arithmetic expressions */
+static String ifExpressions ( int count )
+{
+  StringBuilder b = new StringBuilder( "#define A 10\n#define B 20\n" );
+  for ( int i = 0; i < count; ++i )
+  {
+    b.append( "#if (A * " ).append( i ).append( " + B) % 7 == 3 && defined(A) || (B << 2) > " ).append( i ).append( '\n' );
+    b.append( "x\n#elif !defined(C) && -1 < 0u\ny\n#endif\n" );
+  }
+  return b.toString();
+}
+
+/** A large translation unit exercising a bit of everything */
+static String largeUnit ( int blocks )
+{
+  StringBuilder b = new StringBuilder();
+  b.append( functionMacros( 0 ) ).append( objectMacros( 0 ) );
+  for ( int i = 0; i < blocks; ++i )
+  {
+    b.append( plainCode( 12 ) );
+    b.append( "#if defined(LIMIT) && LIMIT > " ).append( i ).append( "\n" );
+    b.append( "int CAT(w," ).append( i ).append( ") = CLAMP(LIMIT, 0, " ).append( i ).append( ");\n" );
+    b.append( "#else\nint skipped;\n#endif\n" );
+  }
+  return b.toString();
+}
+
+static byte[] bytes ( String s )
+{
+  try
+  {
+    return s.getBytes( "ISO-8859-1" );
+  }
+  catch (IOException e)
+  {
+    throw new RuntimeException( e );
+  }
+}
+
+/**
+ * Create a reader over a copy of the source. The reader modifies its buffer, so it can't be
+ * used directly.
+ */
+static LineReader reader ( byte[] src, byte[] work )
+{
+  System.arraycopy( src, 0, work, 0, src.length );
+  return new LineReader( work, src.length );
+}
+
+/** A buffer big enough for {@link #reader} */
+static byte[] workBuffer ( byte[] src )
+{
+  return new byte[src.length + 1];
+}
+
+static Prepr<PPSymbol> prepr ( byte[] src, byte[] work )
+{
+  PreprOptions opts = new PreprOptions();
+  return new Prepr<PPSymbol>( opts, s_reporter, new SearchPathFactory().finish( opts ),
+                              "bench.c", reader( src, work ), new PPSymTable() );
+}
+
+/** Preprocess the entire input and return the number of tokens */
+static int run ( Prepr<PPSymbol> pp )
+{
+  int count = 0;
+  try
+  {
+    while (pp.nextToken().code() != Code.EOF)
+      ++count;
+  }
+  finally
+  {
+    pp.close();
+  }
+  return count;
+}
+} // class
@@ -0,0 +1,51 @@
+package c99.parser.pp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import c99.parser.Code;
+
+/** Preprocessing a large synthetic translation unit into text */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBench
+{
+private byte[] m_src;
+private byte[] m_work;
+
+@Setup
+public void setup ()
+{
+  m_src = BenchSources.bytes( BenchSources.largeUnit( 10000 ) );
+  m_work = BenchSources.workBuffer( m_src );
+}
+
+@Benchmark
+public int preprocess () throws IOException
+{
+  Prepr<PPSymbol> pp = BenchSources.prepr( m_src, m_work );
+  CppWriter w = new CppWriter( new BenchSources.NullOutputStream() );
+  int count = 0;
+  try
+  {
+    PPDefs.Token tok;
+    while ( (tok = pp.nextToken()).code() != Code.EOF)
+    {
+      w.writeToken( tok );
+      ++count;
+    }
+    w.flush();
+  }
+  finally
+  {
+    pp.close();
+  }
+  return count;
+}
+} // class
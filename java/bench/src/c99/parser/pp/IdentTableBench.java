@@ -0,0 +1,49 @@
+package c99.parser.pp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import c99.driver.PPSymTable;
+
+/** Looking up identifiers which are already present in the symbol table */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentTableBench
+{
+private static final int COUNT = 1000;
+
+private final PPSymTable m_symTable = new PPSymTable();
+/** All identifiers are stored in one buffer, like in a line of source */
+private byte[] m_buf;
+private final int[] m_offsets = new int[COUNT + 1];
+
+@Setup
+public void setup ()
+{
+  StringBuilder b = new StringBuilder();
+  for ( int i = 0; i < COUNT; ++i )
+  {
+    m_offsets[i] = b.length();
+    b.append( i % 3 == 0 ? "identifier_" : "x" ).append( i );
+  }
+  m_offsets[COUNT] = b.length();
+  m_buf = BenchSources.bytes( b.toString() );
+
+  for ( int i = 0; i < COUNT; ++i )
+    m_symTable.symbol( m_buf, m_offsets[i], m_offsets[i+1] - m_offsets[i] );
+}
+
+@Benchmark
+@OperationsPerInvocation(COUNT)
+public void symbol ( Blackhole bh )
+{
+  for ( int i = 0; i < COUNT; ++i )
+    bh.consume( m_symTable.symbol( m_buf, m_offsets[i], m_offsets[i+1] - m_offsets[i] ) );
+}
+} // class
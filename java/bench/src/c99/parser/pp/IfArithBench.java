@@ -0,0 +1,119 @@
+package c99.parser.pp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import c99.Constant;
+import c99.TypeSpec;
+import c99.parser.Code;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The arithmetic of #if expressions on primitive values ({@link PPArith}) compared to the same
+ * operations on {@link Constant.IntC}, which allocate a new constant for every result and for
+ * every conversion of a signed operand to unsigned.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IfArithBench
+{
+private static final int COUNT = 4096;
+private static final Code[] s_ops = {
+  Code.ASTERISK, Code.SLASH, Code.PERCENT, Code.PLUS, Code.MINUS, Code.LESS_LESS,
+  Code.GREATER_GREATER, Code.LESS, Code.GREATER_EQUALS, Code.EQUALS_EQUALS, Code.AMPERSAND,
+  Code.CARET, Code.VERTICAL, Code.AMPERSAND_AMPERSAND
+};
+
+private Code[] m_codes;
+private long[] m_values;
+private boolean[] m_unsigned;
+private Constant.IntC[] m_constants;
+
+@Setup
+public void setup ()
+{
+  Random rnd = new Random( 1 );
+  m_codes = new Code[COUNT];
+  m_values = new long[COUNT + 1];
+  m_unsigned = new boolean[COUNT + 1];
+  m_constants = new Constant.IntC[COUNT + 1];
+  for ( int i = 0; i <= COUNT; ++i )
+  {
+    if (i < COUNT)
+      m_codes[i] = s_ops[rnd.nextInt( s_ops.length )];
+    // Small non-zero operands, so that shifts and divisions are meaningful
+    m_values[i] = rnd.nextInt( 1000 ) + 1;
+    m_unsigned[i] = rnd.nextInt( 4 ) == 0;
+    m_constants[i] = Constant.makeLong( m_unsigned[i] ? TypeSpec.UINTMAX_T : TypeSpec.INTMAX_T, m_values[i] );
+  }
+}
+
+/** Fold the operands with the operators, like a chain of binary expressions */
+@Benchmark
+public long primitive ()
+{
+  long v0 = m_values[0];
+  boolean u0 = m_unsigned[0];
+  for ( int i = 0; i < COUNT; ++i )
+  {
+    final Code code = m_codes[i];
+    final long v1 = m_values[i + 1];
+    final boolean unsigned = code == Code.LESS_LESS || code == Code.GREATER_GREATER ?
+      u0 : u0 || m_unsigned[i + 1];
+    if (v1 == 0 && (code == Code.SLASH || code == Code.PERCENT))
+      continue;
+    v0 = PPArith.binaryOp( code, v0, v1, unsigned );
+    u0 = PPArith.isUnsignedResult( code, unsigned );
+  }
+  return v0;
+}
+
+private static final Constant.IntC s_zero = Constant.makeLong( TypeSpec.INTMAX_T, 0 );
+private static final Constant.IntC s_one = Constant.makeLong( TypeSpec.INTMAX_T, 1 );
+
+/** The same as {@link #primitive()}, evaluated the way #if expressions used to be */
+@Benchmark
+public long constant ()
+{
+  Constant.IntC e0 = m_constants[0];
+  for ( int i = 0; i < COUNT; ++i )
+  {
+    final Code code = m_codes[i];
+    Constant.IntC e1 = m_constants[i + 1];
+    if (code != Code.LESS_LESS && code != Code.GREATER_GREATER)
+    {
+      TypeSpec spec = e0.spec.signed ? e1.spec : e0.spec;
+      e0 = (Constant.IntC)Constant.convert( spec, e0 );
+      e1 = (Constant.IntC)Constant.convert( spec, e1 );
+    }
+    if (e1.isZero() && (code == Code.SLASH || code == Code.PERCENT))
+      continue;
+
+    Constant.IntC res = Constant.newIntConstant( e0.spec );
+    switch (code)
+    {
+    case ASTERISK: res.mul( e0, e1 ); break;
+    case SLASH: res.div( e0, e1 ); break;
+    case PERCENT: res.rem( e0, e1 ); break;
+    case PLUS: res.add( e0, e1 ); break;
+    case MINUS: res.sub( e0, e1 ); break;
+    case LESS_LESS: res.shl( e0, e1 ); break;
+    case GREATER_GREATER: res.shr( e0, e1 ); break;
+    case LESS: res = e0.lt( e1 ) ? s_one : s_zero; break;
+    case GREATER_EQUALS: res = e0.ge( e1 ) ? s_one : s_zero; break;
+    case EQUALS_EQUALS: res = e0.eq( e1 ) ? s_one : s_zero; break;
+    case AMPERSAND: res.and( e0, e1 ); break;
+    case CARET: res.xor( e0, e1 ); break;
+    case VERTICAL: res.or( e0, e1 ); break;
+    case AMPERSAND_AMPERSAND: res = e0.isTrue() && e1.isTrue() ? s_one : s_zero; break;
+    default: assert false;
+    }
+    e0 = res;
+  }
+  return e0._getLong();
+}
+} // class
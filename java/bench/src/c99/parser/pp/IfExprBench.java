@@ -0,0 +1,31 @@
+package c99.parser.pp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Evaluation of #if expressions */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IfExprBench
+{
+private byte[] m_src;
+private byte[] m_work;
+
+@Setup
+public void setup ()
+{
+  m_src = BenchSources.bytes( BenchSources.ifExpressions( 2000 ) );
+  m_work = BenchSources.workBuffer( m_src );
+}
+
+@Benchmark
+public int evaluate ()
+{
+  return BenchSources.run( BenchSources.prepr( m_src, m_work ) );
+}
+} // class
@@ -0,0 +1,58 @@
+package c99.parser.pp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import c99.driver.PPSymTable;
+import c99.parser.Code;
+
+/** Tokenizing plain C code without any preprocessing */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBench
+{
+private static final class Lexer extends PPLexer
+{
+  Lexer ( LineReader reader )
+  {
+    super( BenchSources.s_reporter, "bench.c", reader, new PPSymTable() );
+  }
+
+  int run ()
+  {
+    int count = 0;
+    while (innerNextToken().code() != Code.EOF)
+      ++count;
+    return count;
+  }
+}
+
+private byte[] m_src;
+private byte[] m_work;
+
+@Setup
+public void setup ()
+{
+  m_src = BenchSources.bytes( BenchSources.plainCode( 10000 ) );
+  m_work = BenchSources.workBuffer( m_src );
+}
+
+@Benchmark
+public int innerNextToken ()
+{
+  Lexer lex = new Lexer( BenchSources.reader( m_src, m_work ) );
+  try
+  {
+    return lex.run();
+  }
+  finally
+  {
+    lex.close();
+  }
+}
+} // class
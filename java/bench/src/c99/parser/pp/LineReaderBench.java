@@ -0,0 +1,35 @@
+package c99.parser.pp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Splitting the input into lines */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineReaderBench
+{
+private byte[] m_src;
+private byte[] m_work;
+
+@Setup
+public void setup ()
+{
+  m_src = BenchSources.bytes( BenchSources.plainCode( 10000 ) );
+  m_work = BenchSources.workBuffer( m_src );
+}
+
+@Benchmark
+public int readNextLine ()
+{
+  LineReader reader = BenchSources.reader( m_src, m_work );
+  int lines = 0;
+  while (reader.readNextLine())
+    ++lines;
+  return lines;
+}
+} // class
@@ -0,0 +1,39 @@
+package c99.parser.pp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Macro expansion in the preprocessor */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroBench
+{
+private byte[] m_objectSrc, m_functionSrc;
+private byte[] m_objectWork, m_functionWork;
+
+@Setup
+public void setup ()
+{
+  m_objectSrc = BenchSources.bytes( BenchSources.objectMacros( 2000 ) );
+  m_objectWork = BenchSources.workBuffer( m_objectSrc );
+  m_functionSrc = BenchSources.bytes( BenchSources.functionMacros( 2000 ) );
+  m_functionWork = BenchSources.workBuffer( m_functionSrc );
+}
+
+@Benchmark
+public int objectLike ()
+{
+  return BenchSources.run( BenchSources.prepr( m_objectSrc, m_objectWork ) );
+}
+
+@Benchmark
+public int functionLike ()
+{
+  return BenchSources.run( BenchSources.prepr( m_functionSrc, m_functionWork ) );
+}
+} // class
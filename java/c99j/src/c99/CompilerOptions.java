@@ -1,5 +1,7 @@
 package c99;
 
+import java.io.File;
+
 import c99.parser.pp.IPreprOptions;
 import c99.parser.pp.PreprOptions;
 
@@ -36,5 +38,20 @@ public int getMaxIncludeDepth ()
 {
   return m_preprOptions.getMaxIncludeDepth();
 }
+
+public File getWorkingDir ()
+{
+  return m_preprOptions.getWorkingDir();
+}
+
+public boolean getLazyLocations ()
+{
+  return m_preprOptions.getLazyLocations();
+}
+
+public boolean getDependencyScan ()
+{
+  return m_preprOptions.getDependencyScan();
+}
 } // class
 
@@ -6,7 +6,6 @@ import c99.parser.pp.Prepr;
 import c99.parser.pp.SearchPathFactory;
 import c99.parser.tree.*;
 
-import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.Arrays;
 
@@ -74,7 +73,7 @@ public static void main ( String[] args )
     DummyErrorReporter reporter = new DummyErrorReporter();
     SymTable symTable = new SymTable();
     Prepr<Symbol> pp = new Prepr<Symbol>( opts, reporter, incSearch.finish( opts ),
-                          fileName, new FileInputStream( fileName ), symTable );
+                          fileName, symTable );
     BisonLexer lex = new BisonLexer(reporter, symTable, pp);
     CParser parser = new CParser(
       lex,
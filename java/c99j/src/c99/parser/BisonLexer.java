@@ -4,8 +4,8 @@ import c99.IErrorReporter;
 import c99.ISourceRange;
 import c99.SourceRange;
 import c99.Types;
-import c99.parser.pp.PPDefs;
 import c99.parser.pp.Prepr;
+import c99.parser.pp.TokenBatch;
 
 import java.io.IOException;
 
@@ -15,9 +15,18 @@ private final IErrorReporter m_reporter;
 private final SymTable m_symTab;
 private final Prepr<Symbol> m_prepr;
 
+private static final int BATCH_SIZE = 256;
+
+/** The preprocessed tokens are pulled in batches, without whitespace */
+private final TokenBatch<Symbol> m_batch = new TokenBatch<Symbol>( BATCH_SIZE, true );
+private int m_batchPos;
+/** Reused for the location of every token */
+private final SourceRange m_tokRange = new SourceRange();
+
 private Object m_yylval;
-private Position m_startPos = new Position();
-private Position m_endPos = new Position();
+/** Reused for every token */
+private final Position m_startPos = new Position();
+private final Position m_endPos = new Position();
 
 public BisonLexer ( final IErrorReporter reporter, final SymTable symTab, final Prepr<Symbol> prepr )
 {
@@ -65,15 +74,21 @@ public int yylex () throws IOException
 {
   for(;;)
   {
-    PPDefs.Token<Symbol> ppt;
-    do
-      ppt = m_prepr.nextToken();
-    while (ppt.code() == Code.NEWLINE || ppt.code() == Code.WHITESPACE);
+    if (m_batchPos == m_batch.size())
+    {
+      // EOF is always the last token of a batch, and it is never consumed
+      m_prepr.nextTokens( m_batch );
+      m_batchPos = 0;
+    }
+    final int i = m_batchPos;
+    Code code = m_batch.code( i );
+    if (code != Code.EOF)
+      ++m_batchPos;
 
-    m_startPos = new Position( ppt.fileName, ppt.line1, ppt.col1 );
-    m_endPos = new Position( ppt.fileName2 != null ? ppt.fileName2 : ppt.fileName, ppt.line2, ppt.col2 );
+    final SourceRange ppt = m_batch.locate( i, m_tokRange );
+    m_startPos.set( ppt.fileName, ppt.line1, ppt.col1 );
+    m_endPos.set( ppt.fileName2 != null ? ppt.fileName2 : ppt.fileName, ppt.line2, ppt.col2 );
 
-    Code code = ppt.code();
     //m_yylval = null;
     m_yylval = code;
 
@@ -81,7 +96,7 @@ public int yylex () throws IOException
     {
       case IDENT:
         {
-          Symbol sym = ppt.symbol();
+          Symbol sym = m_batch.symbol( i );
           Code kw = sym.keyword;
           if (kw != null)
           {
@@ -106,19 +121,13 @@ public int yylex () throws IOException
 
       case CHAR_CONST:
         code = Code.INT_NUMBER;
-        m_yylval = ppt.getCharConstValue();
+        m_yylval = m_batch.value( i );
         break;
 
       case INT_NUMBER:
-        m_yylval = ppt.getIntConstValue();
-        break;
-
       case REAL_NUMBER:
-        m_yylval = ppt.getRealConst();
-        break;
-
       case STRING_CONST:
-        m_yylval = ppt.getStringConstValue();
+        m_yylval = m_batch.value( i );
         break;
 
       case WIDE_CHAR_CONST:
@@ -127,10 +136,11 @@ public int yylex () throws IOException
         continue;
 
       default:
-        int ord = ppt.code().ordinal();
+        int ord = code.ordinal();
         if (ord >= Code.HASH.ordinal())
         {
-          m_reporter.error( ppt, "Unrecognized symbol '%s'", ppt.outputString() );
+          m_reporter.error( ppt, "Unrecognized symbol '%s'",
+                            m_batch.value( i ) != null ? m_batch.value( i ) : code.str );
           continue;
         }
         break;
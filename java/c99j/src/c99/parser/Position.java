@@ -1,9 +1,13 @@
 package c99.parser;
 
+/**
+ * A position in the source. The lexer reuses the same objects for every token: the parser
+ * copies the fields into its stack.
+ */
 public class Position
 {
-public final String fileName;
-public final int line, col;
+public String fileName;
+public int line, col;
 
 public Position ( final String fileName, final int line, final int col )
 {
@@ -18,6 +22,14 @@ public Position ()
   this.line = this.col = 0;
 }
 
+public final Position set ( final String fileName, final int line, final int col )
+{
+  this.fileName = fileName;
+  this.line = line;
+  this.col = col;
+  return this;
+}
+
 @Override
 public boolean equals ( final Object o )
 {
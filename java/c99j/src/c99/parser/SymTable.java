@@ -3,9 +3,9 @@ package c99.parser;
 public class SymTable extends IdentTable<Symbol>
 {
 @Override
-protected Symbol newIdent ( byte[] bytes, int hash )
+protected Symbol newIdent ( byte[] bytes, int id )
 {
-  return new Symbol( bytes, hash );
+  return new Symbol( bytes, id );
 }
 
 } // class
@@ -10,9 +10,9 @@ public Decl topDecl;
 public Decl topTag;
 public Object label;
 
-public Symbol ( byte bytes[], int hash )
+public Symbol ( byte bytes[], int id )
 {
-  super(bytes, hash);
+  super(bytes, id);
 }
 } // class
 
@@ -528,7 +528,7 @@ rule(<TDeclarator>,declarator):
   ;
 rule(<TDeclarator>,declarator_opt):
     declarator
-  | %empty                              { $$ = abstractDeclarator(yyloc); }
+  | %empty                              { $$ = abstractDeclarator(@$); }
   ;
 
 rule(<TDeclarator>,declarator-notyp):
@@ -537,7 +537,7 @@ rule(<TDeclarator>,declarator-notyp):
   ;
 rule(<TDeclarator>,declarator-notyp_opt):
     declarator-notyp
-  | %empty                              { $$ = abstractDeclarator(yyloc); }
+  | %empty                              { $$ = abstractDeclarator(@$); }
   ;
 
 rule(<TDeclarator>,declarator-func):
@@ -751,7 +751,7 @@ rule(<TDeclarator>,abstract-declarator):
 
 rule(<TDeclarator>,abstract-declarator_opt):
     abstract-declarator
-  | %empty                                      { $$ = abstractDeclarator(yyloc); }
+  | %empty                                      { $$ = abstractDeclarator(@$); }
   ;
 
 // (6.7.7)
@@ -763,7 +763,7 @@ rule(<TDeclarator>,direct-abstract-declarator):
 
 rule(<TDeclarator>,direct-abstract-declarator_opt):
     direct-abstract-declarator
-  | %empty                                     { $$ = abstractDeclarator(yyloc); }
+  | %empty                                     { $$ = abstractDeclarator(@$); }
   ;
 
 rule(<TDeclarator.Elem>,direct-abstract-declarator-elem):
@@ -0,0 +1,79 @@
+package c99;
+
+/**
+ * Adapts a range encoded by a {@link SourceManager} to {@link ISourceRange}. The line and column
+ * numbers are calculated the first time they are requested, so it must not be modified.
+ */
+public final class CompactRange extends SourceRange
+{
+private final SourceManager m_srcMgr;
+private final long m_range;
+private boolean m_located;
+
+public CompactRange ( SourceManager srcMgr, long range )
+{
+  m_srcMgr = srcMgr;
+  m_range = range;
+}
+
+public final SourceManager getSourceManager ()
+{
+  return m_srcMgr;
+}
+
+public final long getRange ()
+{
+  return m_range;
+}
+
+private void locate ()
+{
+  if (!m_located)
+  {
+    m_located = true;
+    m_srcMgr.locate( m_range, this );
+  }
+}
+
+@Override
+public final String getFileName ()
+{
+  locate();
+  return this.fileName;
+}
+
+@Override
+public final int getLine1 ()
+{
+  locate();
+  return this.line1;
+}
+
+@Override
+public final int getCol1 ()
+{
+  locate();
+  return this.col1;
+}
+
+@Override
+public final String getFileName2 ()
+{
+  locate();
+  return this.fileName2;
+}
+
+@Override
+public final int getLine2 ()
+{
+  locate();
+  return this.line2;
+}
+
+@Override
+public final int getCol2 ()
+{
+  locate();
+  return this.col2;
+}
+} // class
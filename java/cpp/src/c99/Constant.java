@@ -481,12 +481,12 @@ public static ArithC convert ( TypeSpec toSpec, ArithC c )
   return res;
 }
 
-static boolean unsignedLessThan ( long a, long b )
+public static boolean unsignedLessThan ( long a, long b )
 {
   return (a ^ 0x8000000000000000L) < (b ^ 0x8000000000000000L);
 }
 
-static long unsignedDivide ( long a, long b )
+public static long unsignedDivide ( long a, long b )
 {
   // First handle the case of b >= 2**63 (negative in signed representation).
   // The result of the division could only be 0 or 1 (because 'a' can't be
@@ -515,7 +515,7 @@ static long unsignedDivide ( long a, long b )
   return approx + (unsignedLessThan( rem, b ) ? 0 : 1);
 }
 
-static long unsignedRemainder ( long a, long b )
+public static long unsignedRemainder ( long a, long b )
 {
   if (b < 0) // b >= 2**63
   {
@@ -1,7 +1,20 @@
 package c99;
 
+import java.io.PrintStream;
+
 public class DummyErrorReporter implements IErrorReporter
 {
+private final PrintStream m_out;
+
+public DummyErrorReporter ()
+{
+  this( System.err );
+}
+
+public DummyErrorReporter ( PrintStream out )
+{
+  m_out = out;
+}
 
 public String formatRange ( ISourceRange rng )
 {
@@ -11,12 +24,12 @@ public String formatRange ( ISourceRange rng )
 private void print ( String severity, final ISourceRange rng, final String format, final Object... args )
 {
   if (rng != null)
-    System.err.format( "%s: %s: ", formatRange( rng ), severity );
+    m_out.format( "%s: %s: ", formatRange( rng ), severity );
   else
-    System.err.format( "%s: ", severity );
+    m_out.format( "%s: ", severity );
 
-  System.err.format( format, args );
-  System.err.println();
+  m_out.format( format, args );
+  m_out.println();
 }
 
 @Override
@@ -1,16 +1,30 @@
 package c99;
 
+/**
+ * An interned identifier. Identifiers are compared by identity.
+ *
+ * <p>Every identifier has an id, which is assigned sequentially by its {@link
+ * c99.parser.IdentTable} in the order of creation. The id is also the hash code, and identifiers
+ * are ordered by it, so they sort in the order in which they were first seen. Snapshots and
+ * shared macro tables rely on that to be deterministic.
+ */
 public class Ident implements Comparable<Ident>
 {
 public final byte[] bytes;
 public final String name;
-private final int m_hash;
+private final int m_id;
 
-public Ident ( byte bytes[], int hash )
+public Ident ( byte bytes[], int id )
 {
   this.bytes = bytes;
   this.name = Utils.asciiString( bytes, 0, bytes.length );
-  m_hash = hash;
+  m_id = id;
+}
+
+/** The sequential number of the identifier in its table, starting from 1 */
+public final int getId ()
+{
+  return m_id;
 }
 
 public final int length ()
@@ -28,7 +42,7 @@ public final boolean equals ( final Object o )
 @Override
 public final int hashCode ()
 {
-  return m_hash;
+  return m_id;
 }
 
 @Override
@@ -37,21 +51,12 @@ public String toString ()
   return this.name;
 }
 
-public static int calcHashCode( byte val[], int off, int len )
-{
-  int h = 0;
-  for (int i = 0; i < len; i++) {
-      h = 31*h + (val[off++] & 0xFF);
-  }
-  return h;
-}
-
 @Override
 public final int compareTo ( Ident o )
 {
   if (this == o)
     return 0;
-  return m_hash < o.m_hash ? -1 :
-          (m_hash > o.m_hash ? +1 : Utils.compare(this.bytes, 0, this.bytes.length, o.bytes, 0, o.bytes.length));
+  return m_id < o.m_id ? -1 :
+          (m_id > o.m_id ? +1 : Utils.compare(this.bytes, 0, this.bytes.length, o.bytes, 0, o.bytes.length));
 }
 } // class
@@ -0,0 +1,163 @@
+package c99;
+
+import java.util.Arrays;
+
+/**
+ * The line structure of a source file, which allows byte offsets in the file to be converted into
+ * line and column numbers on demand, instead of for every token.
+ *
+ * <p>The start offset of every physical line is recorded once, while the file is being read.
+ * {@code #line} directives are recorded as the physical line from which they apply, together with
+ * the presumed file name and the difference between presumed and physical line numbers.
+ */
+public final class SourceFile
+{
+private final String m_fileName;
+
+/** The file offset of the start of every line, indexed by line number (starting from 1) */
+private int[] m_lineStarts = new int[256];
+private int m_lineCount;
+/** The last line found by {@link #lineOf(int)}; lookups are usually sequential */
+private int m_lastLine = 1;
+
+private int[] m_dirLines;
+private int[] m_dirAdjustments;
+private String[] m_dirFileNames;
+private int m_dirCount;
+
+public SourceFile ( String fileName )
+{
+  m_fileName = fileName;
+}
+
+public final String getFileName ()
+{
+  return m_fileName;
+}
+
+public final int getLineCount ()
+{
+  return m_lineCount;
+}
+
+/** Record the start of the next line, which must be {@code line} */
+public final void addLine ( int line, int offset )
+{
+  assert line == m_lineCount + 1;
+  if (line == m_lineStarts.length)
+    m_lineStarts = Arrays.copyOf( m_lineStarts, m_lineStarts.length * 2 );
+  m_lineStarts[line] = offset;
+  m_lineCount = line;
+}
+
+/** The offset of the start of a line, which must have been added already */
+public final int lineStart ( int line )
+{
+  assert line >= 1 && line <= m_lineCount;
+  return m_lineStarts[line];
+}
+
+/**
+ * Record a {@code #line} directive. Directives must be added in increasing line order.
+ *
+ * @param line the first physical line to which it applies
+ * @param fileName the presumed file name
+ * @param adjustment added to the physical line numbers
+ */
+public final void addLineDirective ( int line, String fileName, int adjustment )
+{
+  if (m_dirLines == null)
+  {
+    m_dirLines = new int[4];
+    m_dirAdjustments = new int[4];
+    m_dirFileNames = new String[4];
+  }
+  else if (m_dirCount == m_dirLines.length)
+  {
+    m_dirLines = Arrays.copyOf( m_dirLines, m_dirCount * 2 );
+    m_dirAdjustments = Arrays.copyOf( m_dirAdjustments, m_dirCount * 2 );
+    m_dirFileNames = Arrays.copyOf( m_dirFileNames, m_dirCount * 2 );
+  }
+  assert m_dirCount == 0 || m_dirLines[m_dirCount - 1] <= line;
+
+  m_dirLines[m_dirCount] = line;
+  m_dirAdjustments[m_dirCount] = adjustment;
+  m_dirFileNames[m_dirCount] = fileName;
+  ++m_dirCount;
+}
+
+/** The physical line containing {@code offset} */
+public final int lineOf ( int offset )
+{
+  final int[] starts = m_lineStarts;
+  int line = m_lastLine;
+  if (line > m_lineCount)
+    line = m_lineCount;
+
+  // Check the last line and the one after it before searching
+  if (line > 0 && starts[line] <= offset)
+  {
+    if (line == m_lineCount || offset < starts[line + 1])
+      return line;
+    if (line + 1 == m_lineCount || offset < starts[line + 2])
+      return m_lastLine = line + 1;
+  }
+
+  int lo = 1, hi = m_lineCount;
+  while (lo < hi)
+  {
+    int mid = (lo + hi + 1) >>> 1;
+    if (starts[mid] <= offset)
+      lo = mid;
+    else
+      hi = mid - 1;
+  }
+  return m_lastLine = lo;
+}
+
+/** The index of the last #line directive applying to {@code line}, or -1 */
+private int directiveOf ( int line )
+{
+  int lo = 0, hi = m_dirCount - 1;
+  while (lo <= hi)
+  {
+    int mid = (lo + hi) >>> 1;
+    if (m_dirLines[mid] <= line)
+      lo = mid + 1;
+    else
+      hi = mid - 1;
+  }
+  return hi;
+}
+
+/**
+ * Set {@code rng} to the presumed location of the bytes {@code [start..end)}. The end is the
+ * position of the byte after the range.
+ */
+public final SourceRange locate ( int start, int end, SourceRange rng )
+{
+  final int line1 = lineOf( start );
+  final int line2 = lineOf( end );
+
+  String fileName = m_fileName;
+  int adjustment = 0;
+  if (m_dirCount > 0)
+  {
+    int dir = directiveOf( line1 );
+    if (dir >= 0)
+    {
+      fileName = m_dirFileNames[dir];
+      adjustment = m_dirAdjustments[dir];
+    }
+  }
+
+  return rng.setRange( fileName, line1 + adjustment, start - m_lineStarts[line1] + 1,
+                       line2 + adjustment, end - m_lineStarts[line2] + 1 );
+}
+
+@Override
+public String toString ()
+{
+  return "SourceFile{" + m_fileName + ", " + m_lineCount + " lines}";
+}
+} // class
@@ -0,0 +1,176 @@
+package c99;
+
+import java.util.Arrays;
+
+/**
+ * Assigns compact integer locations to the bytes of all source files of a translation unit, so
+ * that a source range can be stored in a single {@code long} instead of a {@link SourceRange}.
+ *
+ * <p>The locations are allocated sequentially in entries. An entry maps a contiguous range of
+ * locations to a part of a file, starting from some file offset. A file gets a new entry when it
+ * is entered and every time it is resumed after an include, so the location space doesn't depend
+ * on the size of a file, which isn't always known in advance. Every entry records the location of
+ * the #include directive, which gives the include stack of any location.
+ *
+ * <p>Location 0 is invalid. Line and column numbers are calculated by the {@link SourceFile}
+ * of the entry only when requested.
+ *
+ * <p>This is an opt-in API, used only with lazy locations ({@link
+ * c99.parser.pp.IPreprOptions#getLazyLocations()}). Memory is saved only by a consumer which keeps
+ * the {@code long} from {@code Token.getCompactRange()} instead of a copy of the token's range. The
+ * tokens themselves still extend {@link SourceRange} and store the encoded range in addition to
+ * it, and so do the parser's trees, which get their locations from the parser positions.
+ */
+public final class SourceManager
+{
+public static final int NO_LOCATION = 0;
+
+/** The first location of every entry */
+private int[] m_bases = new int[16];
+private SourceFile[] m_files = new SourceFile[16];
+/** The file offset corresponding to the first location of every entry */
+private int[] m_fileStarts = new int[16];
+/** The location of the #include directive of the file of every entry */
+private int[] m_includeLocs = new int[16];
+private int m_count;
+/** The last entry isn't closed, so it can grow */
+private boolean m_open;
+/** The first location of the next entry */
+private int m_nextBase = 1;
+/** The last entry found by {@link #entryOf(int)} */
+private int m_lastEntry;
+
+private final SourceRange m_tmpRange = new SourceRange();
+
+public static long range ( int begin, int end )
+{
+  return ((long)begin << 32) | (end & 0xFFFFFFFFL);
+}
+
+public static int rangeBegin ( long range )
+{
+  return (int)(range >>> 32);
+}
+
+public static int rangeEnd ( long range )
+{
+  return (int)range;
+}
+
+/**
+ * Start a new entry for the bytes of {@code file} starting from file offset {@code fileStart}.
+ * The previous entry must have been closed.
+ *
+ * @param includeLoc the location of the #include directive, or {@link #NO_LOCATION}
+ * @return the value to add to a file offset to obtain its location
+ */
+public final int addEntry ( SourceFile file, int fileStart, int includeLoc )
+{
+  assert !m_open;
+  if (m_count == m_bases.length)
+  {
+    final int capacity = m_count * 2;
+    m_bases = Arrays.copyOf( m_bases, capacity );
+    m_files = Arrays.copyOf( m_files, capacity );
+    m_fileStarts = Arrays.copyOf( m_fileStarts, capacity );
+    m_includeLocs = Arrays.copyOf( m_includeLocs, capacity );
+  }
+
+  m_bases[m_count] = m_nextBase;
+  m_files[m_count] = file;
+  m_fileStarts[m_count] = fileStart;
+  m_includeLocs[m_count] = includeLoc;
+  ++m_count;
+  m_open = true;
+  return m_nextBase - fileStart;
+}
+
+/**
+ * Close the last entry. No location will be allocated from it anymore.
+ * @param fileEnd the file offset after the last byte which could have been given a location
+ */
+public final void closeEntry ( int fileEnd )
+{
+  assert m_open;
+  final int last = m_count - 1;
+  final long next = (long)m_bases[last] + (fileEnd - m_fileStarts[last]) + 1;
+  if (next > Integer.MAX_VALUE)
+    throw new FatalException( "Too much source code in a single translation unit" );
+  m_nextBase = (int)next;
+  m_open = false;
+}
+
+/** The number of entries */
+public final int getEntryCount ()
+{
+  return m_count;
+}
+
+private int entryOf ( int loc )
+{
+  assert loc != NO_LOCATION && m_count > 0;
+
+  int i = m_lastEntry;
+  if (loc >= m_bases[i] && (i == m_count - 1 || loc < m_bases[i + 1]))
+    return i;
+
+  int lo = 0, hi = m_count - 1;
+  while (lo < hi)
+  {
+    int mid = (lo + hi + 1) >>> 1;
+    if (m_bases[mid] <= loc)
+      lo = mid;
+    else
+      hi = mid - 1;
+  }
+  return m_lastEntry = lo;
+}
+
+public final SourceFile getFile ( int loc )
+{
+  return m_files[entryOf( loc )];
+}
+
+public final int getFileOffset ( int loc )
+{
+  final int i = entryOf( loc );
+  return loc - m_bases[i] + m_fileStarts[i];
+}
+
+/** The location of the #include directive of the file containing {@code loc} */
+public final int getIncludeLoc ( int loc )
+{
+  return m_includeLocs[entryOf( loc )];
+}
+
+/** Set {@code rng} to the presumed location of a range */
+public final SourceRange locate ( long range, SourceRange rng )
+{
+  final int begin = rangeBegin( range ), end = rangeEnd( range );
+  final int i = entryOf( begin );
+  final int j = entryOf( end );
+
+  if (i == j)
+    return m_files[i].locate( begin - m_bases[i] + m_fileStarts[i], end - m_bases[i] + m_fileStarts[i], rng );
+
+  // The range ends in another file or after an include
+  m_files[j].locate( end - m_bases[j] + m_fileStarts[j], end - m_bases[j] + m_fileStarts[j], m_tmpRange );
+  m_files[i].locate( begin - m_bases[i] + m_fileStarts[i], begin - m_bases[i] + m_fileStarts[i], rng );
+  rng.setRange( rng.fileName, rng.line1, rng.col1,
+                m_tmpRange.fileName.equals( rng.fileName ) ? null : m_tmpRange.fileName,
+                m_tmpRange.line2, m_tmpRange.col2 );
+  return rng;
+}
+
+/** An {@link ISourceRange} view of a range, calculated on first use */
+public final CompactRange getRange ( long range )
+{
+  return new CompactRange( this, range );
+}
+
+@Override
+public String toString ()
+{
+  return "SourceManager{" + m_count + " entries}";
+}
+} // class
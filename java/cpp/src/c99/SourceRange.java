@@ -115,19 +115,19 @@ public final void translate ( int colOfs )
 }
 
 @Override
-public final String getFileName ()
+public String getFileName ()
 {
   return fileName;
 }
 
 @Override
-public final int getLine1 ()
+public int getLine1 ()
 {
   return line1;
 }
 
 @Override
-public final int getCol1 ()
+public int getCol1 ()
 {
   return col1;
 }
@@ -140,14 +140,14 @@ public String getFileName2 ()
 
 /** Inclusive */
 @Override
-public final int getLine2 ()
+public int getLine2 ()
 {
   return line2;
 }
 
 /** Exclusive */
 @Override
-public final int getCol2 ()
+public int getCol2 ()
 {
   return col2;
 }
@@ -5,9 +5,19 @@ import c99.parser.pp.PPSymbol;
 
 public class PPSymTable extends IdentTable<PPSymbol>
 {
+public PPSymTable ()
+{
+}
+
+/** Start with the identifiers of a frozen table */
+public PPSymTable ( PPSymTable base )
+{
+  super( base );
+}
+
 @Override
-protected PPSymbol newIdent ( byte[] bytes, int hash )
+protected PPSymbol newIdent ( byte[] bytes, int id )
 {
-  return new PPSymbol( bytes, hash );
+  return new PPSymbol( bytes, id );
 }
 }
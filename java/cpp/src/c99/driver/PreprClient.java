@@ -0,0 +1,128 @@
+package c99.driver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import c99.parser.pp.DirectoryIndex;
+
+/**
+ * A thin client for {@link PreprServer}. It accepts the same arguments as {@link Preprocessor},
+ * optionally preceded by {@code --port=N}, and forwards them together with the current
+ * directory to the server. The output and the exit code of the server are reproduced locally.
+ *
+ * <p>If no server of the current user is listening, the arguments are processed in-process.
+ */
+public final class PreprClient
+{
+private static int request ( Socket s, String cookie, String[] args, int from ) throws IOException
+{
+  DataOutputStream out = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+  out.writeInt( PreprServer.MAGIC );
+  out.writeUTF( cookie );
+  out.writeInt( args.length - from );
+  for ( int i = from; i < args.length; ++i )
+    out.writeUTF( args[i] );
+  out.writeUTF( new File( "" ).getAbsolutePath() );
+  out.flush();
+
+  DataInputStream in = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+  byte[] buf = new byte[8192];
+  for(;;)
+  {
+    int type = in.readByte();
+    if (type == PreprServer.FRAME_EXIT)
+      return in.readInt();
+
+    OutputStream dest = type == PreprServer.FRAME_OUT ? System.out : System.err;
+    for ( int len = in.readInt(); len > 0; )
+    {
+      int n = Math.min( len, buf.length );
+      in.readFully( buf, 0, n );
+      dest.write( buf, 0, n );
+      len -= n;
+    }
+    if (type == PreprServer.FRAME_ERR)
+      System.out.flush();
+  }
+}
+
+public static void main ( String[] args )
+{
+  int port = PreprServer.DEFAULT_PORT;
+  int from = 0;
+  if (args.length > 0 && args[0].startsWith( "--port=" ))
+  {
+    try
+    {
+      port = Integer.parseInt( args[0].substring( "--port=".length() ) );
+    }
+    catch (NumberFormatException e)
+    {
+      System.err.println( "**fatal: invalid port in " + args[0] );
+      System.exit(1);
+    }
+    from = 1;
+  }
+
+  int code;
+  try
+  {
+    // Without a cookie there is no server started by the current user
+    String cookie = PreprServer.readCookie( port );
+    Socket s = null;
+    if (cookie != null)
+    {
+      try
+      {
+        s = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+      }
+      catch (ConnectException e)
+      {
+        s = null;
+      }
+    }
+
+    if (s != null)
+    {
+      try
+      {
+        code = request( s, cookie, args, from );
+      }
+      finally
+      {
+        s.close();
+      }
+    }
+    else
+    {
+      String[] rest = new String[args.length - from];
+      System.arraycopy( args, from, rest, 0, rest.length );
+      code = Preprocessor.run( rest, null, new DirectoryIndex(), null, null, System.out, System.err );
+    }
+  }
+  catch (EOFException e)
+  {
+    System.err.println( "**fatal: the server closed the connection" );
+    code = 1;
+  }
+  catch (IOException e)
+  {
+    System.err.println( "**fatal: " + e.getMessage() );
+    code = 1;
+  }
+
+  System.out.flush();
+  System.err.flush();
+  if (code != 0)
+    System.exit( code );
+}
+} // class
@@ -0,0 +1,343 @@
+package c99.driver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import c99.parser.pp.DirectoryIndex;
+import c99.parser.pp.FileContentCache;
+import c99.parser.pp.MinimizedSourceCache;
+
+/**
+ * A long running preprocessor, which accepts requests from {@link PreprClient} on a localhost
+ * TCP port. This avoids the JVM startup and the JIT warm-up for every preprocessed file. The
+ * directory index and the contents of included files are shared by all requests.
+ *
+ * <p>The server reads and writes files with the rights of its owner, so it only accepts requests
+ * from the same user. On startup it writes a random cookie in a file readable only by its owner
+ * (see {@link #cookieFile(int)}) and every request must start with it.
+ *
+ * <p>The protocol is simple. The request is:
+ * <pre>
+ *   int MAGIC, UTF cookie, int argc, UTF arg[argc], UTF workDir
+ * </pre>
+ * The response is a sequence of frames, each starting with a frame type byte:
+ * <pre>
+ *   FRAME_OUT, int len, byte data[len]   -- a chunk of standard output
+ *   FRAME_ERR, int len, byte data[len]   -- a chunk of standard error
+ *   FRAME_EXIT, int exitCode             -- the last frame
+ * </pre>
+ */
+public final class PreprServer
+{
+public static final int DEFAULT_PORT = 7199;
+
+static final int MAGIC = 0x43393950;
+
+static final int FRAME_EXIT = 0;
+static final int FRAME_OUT = 1;
+static final int FRAME_ERR = 2;
+
+/** The maximum number of arguments in a request */
+static final int MAX_ARGS = 8192;
+/** The maximum total length of the arguments in a request */
+static final int MAX_ARGS_LENGTH = 1 << 20;
+
+private final ServerSocket m_socket;
+private final String m_cookie;
+private final ExecutorService m_pool = Executors.newCachedThreadPool();
+private final DirectoryIndex m_dirIndex = new DirectoryIndex();
+private final FileContentCache m_fileCache =
+  new FileContentCache( Preprocessor.BATCH_FILE_CACHE_SIZE );
+private final MinimizedSourceCache m_minimizedCache =
+  new MinimizedSourceCache( Preprocessor.BATCH_FILE_CACHE_SIZE );
+
+/**
+ * An output stream which sends every chunk written to it as a frame of the specified type.
+ * Several of these can share the same underlying stream.
+ */
+private static final class FrameOutputStream extends OutputStream
+{
+  private final DataOutputStream m_out;
+  private final int m_type;
+
+  FrameOutputStream ( final DataOutputStream out, final int type )
+  {
+    m_out = out;
+    m_type = type;
+  }
+
+  @Override
+  public void write ( final int b ) throws IOException
+  {
+    write( new byte[]{ (byte)b }, 0, 1 );
+  }
+
+  @Override
+  public void write ( final byte[] b, final int off, final int len ) throws IOException
+  {
+    if (len == 0)
+      return;
+    synchronized (m_out)
+    {
+      m_out.writeByte( m_type );
+      m_out.writeInt( len );
+      m_out.write( b, off, len );
+    }
+  }
+}
+
+public PreprServer ( int port ) throws IOException
+{
+  m_socket = new ServerSocket( port, 50, InetAddress.getByName( "127.0.0.1" ) );
+  try
+  {
+    m_cookie = writeCookie( getPort() );
+  }
+  catch (IOException e)
+  {
+    m_socket.close();
+    throw e;
+  }
+}
+
+/** The file with the cookie of the server listening on the specified port */
+static File cookieFile ( int port )
+{
+  return new File( new File( System.getProperty( "user.home" ), ".c99pp" ), "server-" + port );
+}
+
+/** Make a file or a directory accessible only by its owner */
+private static void restrict ( File f, boolean dir ) throws IOException
+{
+  if (!(f.setReadable( false, false ) && f.setReadable( true, true ) &&
+        f.setWritable( false, false ) && f.setWritable( true, true ) &&
+        (!dir || f.setExecutable( false, false ) && f.setExecutable( true, true ))))
+  {
+    throw new IOException( "cannot restrict the permissions of " + f );
+  }
+}
+
+private static String writeCookie ( int port ) throws IOException
+{
+  byte[] rnd = new byte[16];
+  new SecureRandom().nextBytes( rnd );
+  StringBuilder cookie = new StringBuilder( rnd.length * 2 );
+  for ( byte b : rnd )
+    cookie.append( Character.forDigit( (b >> 4) & 15, 16 ) ).append( Character.forDigit( b & 15, 16 ) );
+
+  File f = cookieFile( port );
+  File dir = f.getParentFile();
+  if (!dir.isDirectory() && !dir.mkdirs())
+    throw new IOException( "cannot create " + dir );
+  restrict( dir, true );
+  // Nobody else can access the directory, so the file can't be opened before it is restricted
+  f.delete();
+  if (!f.createNewFile())
+    throw new IOException( "cannot create " + f );
+  restrict( f, false );
+  FileOutputStream out = new FileOutputStream( f );
+  try
+  {
+    out.write( cookie.toString().getBytes( "US-ASCII" ) );
+  }
+  finally
+  {
+    out.close();
+  }
+  return cookie.toString();
+}
+
+/**
+ * Read the cookie of the server listening on the specified port.
+ * @return the cookie or null if there is none for the current user
+ */
+static String readCookie ( int port )
+{
+  File f = cookieFile( port );
+  try
+  {
+    FileInputStream in = new FileInputStream( f );
+    try
+    {
+      byte[] buf = new byte[64];
+      int len = 0, n;
+      while (len < buf.length && (n = in.read( buf, len, buf.length - len )) > 0)
+        len += n;
+      return new String( buf, 0, len, "US-ASCII" ).trim();
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+  catch (IOException e)
+  {
+    return null;
+  }
+}
+
+public int getPort ()
+{
+  return m_socket.getLocalPort();
+}
+
+/** Accept and process requests until the socket is closed */
+public void serve () throws IOException
+{
+  try
+  {
+    for(;;)
+    {
+      final Socket s = m_socket.accept();
+      m_pool.execute( new Runnable() {
+        @Override
+        public void run ()
+        {
+          handle( s );
+        }
+      } );
+    }
+  }
+  finally
+  {
+    m_pool.shutdown();
+  }
+}
+
+public void close () throws IOException
+{
+  m_socket.close();
+  cookieFile( getPort() ).delete();
+}
+
+/** Report the reason of a rejected request to the client */
+private static void reject ( DataOutputStream out, String msg ) throws IOException
+{
+  byte[] b = ("**fatal: " + msg + "\n").getBytes( "UTF-8" );
+  out.writeByte( FRAME_ERR );
+  out.writeInt( b.length );
+  out.write( b );
+  out.writeByte( FRAME_EXIT );
+  out.writeInt( 1 );
+  out.flush();
+}
+
+private void handle ( Socket s )
+{
+  try
+  {
+    try
+    {
+      DataInputStream in = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+      DataOutputStream out = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+
+      if (in.readInt() != MAGIC)
+        return;
+      if (!MessageDigest.isEqual( in.readUTF().getBytes( "UTF-8" ), m_cookie.getBytes( "UTF-8" ) ))
+      {
+        reject( out, "the request was not authorized by " + cookieFile( getPort() ) );
+        return;
+      }
+      int argc = in.readInt();
+      if (argc < 0 || argc > MAX_ARGS)
+      {
+        reject( out, "invalid number of arguments " + argc );
+        return;
+      }
+      String[] args = new String[argc];
+      int total = 0;
+      for ( int i = 0; i < args.length; ++i )
+      {
+        args[i] = in.readUTF();
+        if ((total += args[i].length()) > MAX_ARGS_LENGTH)
+        {
+          reject( out, "the arguments are too long" );
+          return;
+        }
+      }
+      String workDir = in.readUTF();
+
+      PrintStream stdout = new PrintStream(
+        new BufferedOutputStream( new FrameOutputStream( out, FRAME_OUT ) ), false );
+      PrintStream stderr = new PrintStream(
+        new BufferedOutputStream( new FrameOutputStream( out, FRAME_ERR ) ), false );
+
+      int code = Preprocessor.run( args, workDir.length() > 0 ? new File( workDir ) : null,
+                                   m_dirIndex, m_fileCache, m_minimizedCache, stdout, stderr );
+      stdout.flush();
+      stderr.flush();
+
+      out.writeByte( FRAME_EXIT );
+      out.writeInt( code );
+      out.flush();
+    }
+    finally
+    {
+      s.close();
+    }
+  }
+  catch (IOException e)
+  {
+    // The client went away. There is nobody to report this to.
+  }
+}
+
+/**
+ * Usage: {@code --server[=port]}
+ */
+public static void main ( String[] args )
+{
+  int port = DEFAULT_PORT;
+  if (args.length != 1 || !(args[0].equals( "--server" ) || args[0].startsWith( "--server=" )))
+  {
+    System.err.println( "**fatal: usage: --server[=port]" );
+    System.exit(1);
+  }
+  if (args[0].startsWith( "--server=" ))
+  {
+    try
+    {
+      port = Integer.parseInt( args[0].substring( "--server=".length() ) );
+    }
+    catch (NumberFormatException e)
+    {
+      System.err.println( "**fatal: invalid port in " + args[0] );
+      System.exit(1);
+    }
+  }
+
+  try
+  {
+    final PreprServer server = new PreprServer( port );
+    Runtime.getRuntime().addShutdownHook( new Thread() {
+      @Override
+      public void run ()
+      {
+        cookieFile( server.getPort() ).delete();
+      }
+    } );
+    System.err.println( "listening on 127.0.0.1:" + server.getPort() );
+    server.serve();
+  }
+  catch (IOException e)
+  {
+    System.err.println( "**fatal: " + e.getMessage() );
+    System.exit(1);
+  }
+}
+} // class
@@ -1,69 +1,360 @@
 package c99.driver;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import c99.DummyErrorReporter;
+import c99.IErrorReporter;
 import c99.parser.Code;
 import c99.parser.pp.*;
 
 public class Preprocessor
 {
 
-private static boolean needWS ( Code t1, Code t2 )
+/** Maximum size of the file cache in batch and server mode */
+static final long BATCH_FILE_CACHE_SIZE = 64L * 1024 * 1024;
+
+/** No dependency output */
+private static final int DEPS_NONE = 0;
+/** -M, -MM: only scan for dependencies and print them instead of the preprocessed output */
+private static final int DEPS_ONLY = 1;
+/** -MD, -MMD: preprocess and write the dependencies to a ".d" file as a side effect */
+private static final int DEPS_FILE = 2;
+
+/**
+ * Read a response file. Every non-empty line is a separate argument.
+ */
+private static void readResponseFile ( String fileName, ArrayList<String> res ) throws IOException
 {
-  switch (t1)
+  BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( fileName ) ) );
+  try
+  {
+    String line;
+    while ( (line = in.readLine()) != null)
+    {
+      line = line.trim();
+      if (line.length() > 0)
+        res.add( line );
+    }
+  }
+  finally
   {
-  case IDENT:
-  case INT_NUMBER:
-  case REAL_NUMBER:
-    return t2 == Code.IDENT || t2 == Code.INT_NUMBER || t2 == Code.REAL_NUMBER;
-
-  case NEWLINE:
-    return t2 == Code.HASH;
-
-  case HASH:
-    return t2 == Code.HASH;
-
-  case PLUS:
-    return t2 == Code.EQUALS || t2 == Code.PLUS;
-  case MINUS:
-    return t2 == Code.EQUALS || t2 == Code.MINUS || t2 == Code.GREATER;
-  case ASTERISK:
-    return t2 == Code.EQUALS || t2 == Code.SLASH;
-  case SLASH:
-    return t2 == Code.EQUALS || t2 == Code.SLASH || t2 == Code.ASTERISK;
-  case PERCENT:
-  case CARET:
-  case BANG:
-  case EQUALS:
-    return t2 == Code.EQUALS;
-  case AMPERSAND:
-    return t2 == Code.EQUALS || t2 == Code.AMPERSAND;
-  case VERTICAL:
-    return t2 == Code.EQUALS || t2 == Code.VERTICAL;
-
-  case GREATER:
-    return t2 == Code.GREATER || t2 == Code.EQUALS || t2 == Code.GREATER_EQUALS;
-  case LESS:
-    return t2 == Code.LESS || t2 == Code.EQUALS || t2 == Code.LESS_EQUALS;
-  case GREATER_GREATER:
-    return t2 == Code.EQUALS;
-  case LESS_LESS:
-    return t2 == Code.EQUALS;
+    in.close();
   }
-  return false;
 }
 
-public static void main ( String[] args )
+/**
+ * Derive the name of an output file by replacing the extension: "dir/file.c" becomes
+ * "dir/file.i" in batch mode.
+ */
+private static String outputFileName ( String fileName, String ext )
+{
+  int dot = fileName.lastIndexOf( '.' );
+  if (dot > fileName.lastIndexOf( '/' ) && dot > fileName.lastIndexOf( File.separatorChar ))
+    fileName = fileName.substring( 0, dot );
+  return fileName + ext;
+}
+
+/**
+ * The output file with extension {@code ext} corresponding to an input file. If the input
+ * already has that extension, the extension is appended instead, so that "file.i" becomes
+ * "file.i.i" and the input isn't overwritten.
+ */
+private static File outputFile ( PreprOptions opts, String fileName, String ext ) throws IOException
+{
+  File res = PreprOptions.resolveFile( opts, outputFileName( fileName, ext ) );
+  if (res.getCanonicalFile().equals( PreprOptions.resolveFile( opts, fileName ).getCanonicalFile() ))
+    res = PreprOptions.resolveFile( opts, fileName + ext );
+  return res;
+}
+
+/** Escape the characters which are special in a make rule */
+private static void appendMakeName ( StringBuilder b, String name )
+{
+  for ( int i = 0, e = name.length(); i < e; ++i )
+  {
+    final char ch = name.charAt( i );
+    if (ch == ' ' || ch == '\t' || ch == '#')
+      b.append( '\\' );
+    else if (ch == '$')
+      b.append( '$' );
+    b.append( ch );
+  }
+}
+
+/**
+ * Write a make rule listing the files read while preprocessing {@code fileName} as the
+ * prerequisites of its object file: "dir/file.c" becomes "file.o: dir/file.c dir/file.h ...".
+ */
+private static void writeDependencies ( String fileName, List<String> deps, OutputStream out )
+  throws IOException
+{
+  StringBuilder b = new StringBuilder();
+  appendMakeName( b, outputFileName( new File( fileName ).getName(), ".o" ) );
+  b.append( ':' );
+  int col = b.length();
+  StringBuilder name = new StringBuilder();
+  for ( String dep : deps )
+  {
+    name.setLength( 0 );
+    appendMakeName( name, dep );
+    // Wrap long lines like GCC
+    if (col + 1 + name.length() > 78)
+    {
+      b.append( " \\\n" );
+      col = 0;
+    }
+    b.append( ' ' ).append( name );
+    col += 1 + name.length();
+  }
+  b.append( '\n' );
+  out.write( b.toString().getBytes() );
+}
+
+/**
+ * Preprocess a single file.
+ *
+ * @param snapshot a snapshot to load before preprocessing, or null
+ * @param saveSnapshot the file in which to save a snapshot at the end, or null
+ * @param depOut the destination of the make rule with the dependencies, or null
+ * @param depSystem include the system headers in the dependencies
+ * @return the number of tokens produced
+ */
+private static long preprocess ( PreprOptions opts, IErrorReporter reporter,
+                                 ISearchPath searchPath, IFileCache fileCache,
+                                 ByteBuffer snapshot, File saveSnapshot,
+                                 OutputStream depOut, boolean depSystem,
+                                 String fileName, boolean cpp, boolean toks, OutputStream out )
+  throws IOException
+{
+  PPSymTable symTable = new PPSymTable();
+  Prepr<PPSymbol> pp = new Prepr<PPSymbol>( opts, reporter, searchPath, fileName, symTable );
+  pp.setFileCache( fileCache );
+  if (snapshot != null)
+    pp.loadSnapshot( snapshot );
+
+  CppWriter w = new CppWriter( out );
+  try
+  {
+    long count = 0;
+    PPLexer.Token tok;
+    do
+    {
+      tok = pp.nextToken();
+      ++count;
+      if (cpp)
+        w.writeToken( tok );
+      if (toks)
+      {
+        w.write( tok.toString().getBytes() );
+        w.write( '\n' );
+      }
+    }
+    while (tok.code() != Code.EOF);
+
+    w.flush();
+    if (depOut != null)
+      writeDependencies( fileName, pp.getDependencies( depSystem ), depOut );
+    if (saveSnapshot != null)
+    {
+      OutputStream so = new FileOutputStream( saveSnapshot );
+      try
+      {
+        pp.saveSnapshot( so );
+      }
+      finally
+      {
+        so.close();
+      }
+    }
+    return count;
+  }
+  finally
+  {
+    pp.close();
+  }
+}
+
+/** The outcome of preprocessing one file in batch mode */
+private static final class BatchResult
+{
+  final String fileName;
+  /** The diagnostics, which are printed only after all preceding files are done */
+  final ByteArrayOutputStream messages = new ByteArrayOutputStream();
+  long tokens;
+  long ms;
+  String failure;
+
+  BatchResult ( final String fileName )
+  {
+    this.fileName = fileName;
+  }
+}
+
+private static BatchResult batchPreprocess ( PreprOptions opts, ISearchPath searchPath,
+                                             IFileCache fileCache, ByteBuffer snapshot,
+                                             int deps, boolean depSystem,
+                                             String fileName, boolean cpp, boolean toks )
+{
+  BatchResult res = new BatchResult( fileName );
+  PrintStream msg = new PrintStream( res.messages, true );
+  long start = System.nanoTime();
+  try
+  {
+    OutputStream out = null, depOut = null;
+    try
+    {
+      // Only the ".d" file is written when scanning for dependencies
+      if (deps != DEPS_ONLY)
+        out = new FileOutputStream( outputFile( opts, fileName, ".i" ) );
+      if (deps != DEPS_NONE)
+        depOut = new FileOutputStream( outputFile( opts, fileName, ".d" ) );
+      res.tokens = preprocess( opts, new DummyErrorReporter( msg ), searchPath, fileCache,
+                               snapshot, null, depOut, depSystem, fileName, cpp, toks,
+                               out != null ? out : depOut );
+    }
+    finally
+    {
+      if (out != null)
+        out.close();
+      if (depOut != null)
+        depOut.close();
+    }
+  }
+  catch (IOException e)
+  {
+    res.failure = e.getMessage();
+  }
+  res.ms = (System.nanoTime() - start) / 1000000;
+  return res;
+}
+
+/**
+ * Preprocess many files in the same JVM, writing the output of each into a corresponding
+ * ".i" file, and the dependencies into a ".d" file if requested. The include search paths and
+ * the contents of included files are shared.
+ *
+ * <p>The files are processed concurrently by a pool of {@code jobs} threads, each file with
+ * its own symbol table. Diagnostics and statistics are reported in the order of the input
+ * files regardless of the order of completion.
+ *
+ * @param snapshot a snapshot loaded before preprocessing every file, or null
+ * @param minimizedCache used instead of {@code fileCache} when only scanning for dependencies
+ * @return false if any of the files couldn't be processed
+ */
+private static boolean runBatch ( final PreprOptions opts, final ISearchPath searchPath,
+                                  final FileContentCache fileCache,
+                                  final MinimizedSourceCache minimizedCache, final ByteBuffer snapshot,
+                                  final int deps, final boolean depSystem,
+                                  ArrayList<String> fileNames, final boolean cpp, final boolean toks,
+                                  int jobs, PrintStream err )
+  throws InterruptedException, ExecutionException
+{
+  boolean ok = true;
+  long totalTokens = 0;
+  long totalStart = System.nanoTime();
+  final boolean minimized = opts.getDependencyScan();
+  final IFileCache cache = minimized ? minimizedCache : fileCache;
+  long hits = minimized ? minimizedCache.getHitCount() : fileCache.getHitCount();
+  long misses = minimized ? minimizedCache.getMissCount() : fileCache.getMissCount();
+
+  ExecutorService pool = Executors.newFixedThreadPool( jobs );
+  try
+  {
+    ArrayList<Future<BatchResult>> results = new ArrayList<Future<BatchResult>>( fileNames.size() );
+    for ( final String fileName : fileNames )
+    {
+      results.add( pool.submit( new Callable<BatchResult>() {
+        @Override
+        public BatchResult call ()
+        {
+          return batchPreprocess( opts, searchPath, cache, snapshot, deps, depSystem,
+                                  fileName, cpp, toks );
+        }
+      } ) );
+    }
+
+    for ( Future<BatchResult> f : results )
+    {
+      BatchResult res = f.get();
+      res.messages.writeTo( err );
+      if (res.failure != null)
+      {
+        err.println( "**error: " + res.fileName + ": " + res.failure );
+        ok = false;
+        continue;
+      }
+
+      totalTokens += res.tokens;
+      err.format( "%s: %d tokens in %d ms (%d tokens/s)\n",
+                  res.fileName, res.tokens, res.ms, res.tokens * 1000 / Math.max( res.ms, 1 ) );
+    }
+  }
+  catch (IOException e)
+  {
+    throw new RuntimeException( "Unexpected", e );
+  }
+  finally
+  {
+    pool.shutdownNow();
+  }
+
+  long ms = (System.nanoTime() - totalStart) / 1000000;
+  hits = (minimized ? minimizedCache.getHitCount() : fileCache.getHitCount()) - hits;
+  misses = (minimized ? minimizedCache.getMissCount() : fileCache.getMissCount()) - misses;
+  err.format( "total: %d files, %d tokens in %d ms (%d tokens/s), file cache %d hits, %d misses\n",
+              fileNames.size(), totalTokens, ms, totalTokens * 1000 / Math.max( ms, 1 ), hits, misses );
+  return ok;
+}
+
+/**
+ * Run the preprocessor with the specified command line arguments.
+ *
+ * @param workDir the directory against which relative file names are resolved. null means
+ *        the current directory of the process
+ * @param dirIndex the directory index. It may be shared between invocations.
+ * @param fileCache the cache of file contents used in batch mode. It may be shared between
+ *        invocations. If null, a new one is created.
+ * @param minimizedCache the cache of minimized headers used when only scanning for dependencies
+ *        in batch mode. It may be shared between invocations. If null, a new one is created in
+ *        batch mode, and the headers are not minimized otherwise.
+ * @param out the destination of the preprocessed output (in non-batch mode)
+ * @param err the destination of diagnostics
+ * @return the process exit code
+ */
+static int run ( String[] args, File workDir, DirectoryIndex dirIndex, FileContentCache fileCache,
+                 MinimizedSourceCache minimizedCache, OutputStream out, PrintStream err )
 {
   try
   {
     boolean cpp = true;
     boolean toks = false;
-    String fileName = null;
+    boolean batch = false;
+    int jobs = 1;
+    String loadSnapshot = null;
+    String saveSnapshot = null;
+    int deps = DEPS_NONE;
+    boolean depSystem = true;
+    ArrayList<String> fileNames = new ArrayList<String>();
 
     PreprOptions opts = new PreprOptions();
-    SearchPathFactory incSearch = new SearchPathFactory();
+    opts.setWorkingDir( workDir );
+    SearchPathFactory incSearch = new SearchPathFactory( dirIndex );
 
     for ( int i = 0; i < args.length; ++i )
     {
@@ -82,13 +373,57 @@ public static void main ( String[] args )
         cpp = false;
       else if ("--nostdinc".equals( arg ))
         opts.setNoStdInc( true );
+      else if ("--lazy-loc".equals( arg ))
+        opts.setLazyLocations( true );
+      else if ("--batch".equals( arg ))
+        batch = true;
+      else if (arg.startsWith( "--load-snapshot=" ))
+        loadSnapshot = arg.substring( "--load-snapshot=".length() );
+      else if (arg.startsWith( "--save-snapshot=" ))
+        saveSnapshot = arg.substring( "--save-snapshot=".length() );
+      else if ("-M".equals( arg ) || "-MM".equals( arg ))
+      {
+        deps = DEPS_ONLY;
+        depSystem = "-M".equals( arg );
+      }
+      else if ("-MD".equals( arg ) || "-MMD".equals( arg ))
+      {
+        deps = DEPS_FILE;
+        depSystem = "-MD".equals( arg );
+      }
+      else if (arg.startsWith( "-isystem" ))
+      {
+        String tmp = arg.substring( "-isystem".length() );
+        if (tmp.length() == 0)
+        {
+          err.println( "**fatal: missing argument for " + arg );
+          return 1;
+        }
+        incSearch.addSystemInclude( tmp );
+      }
+      else if (arg.startsWith( "-j" ))
+      {
+        try
+        {
+          jobs = Integer.parseInt( arg.substring( 2 ) );
+        }
+        catch (NumberFormatException e)
+        {
+          jobs = 0;
+        }
+        if (jobs <= 0)
+        {
+          err.println( "**fatal: invalid number of jobs in " + arg );
+          return 1;
+        }
+      }
       else if (arg.startsWith("-I") || arg.startsWith("-i"))
       {
         String tmp = arg.substring( 2 );
         if (tmp.length() == 0)
         {
-          System.err.println( "**fatal: missing argument for " + arg );
-          System.exit(1);
+          err.println( "**fatal: missing argument for " + arg );
+          return 1;
         }
         if (arg.startsWith("-I"))
           incSearch.addInclude( tmp );
@@ -97,106 +432,115 @@ public static void main ( String[] args )
       }
       else if (arg.startsWith( "-"))
       {
-        System.err.println( "**fatal: unknown command line option '"+arg +"'" );
-        System.exit(1);
+        err.println( "**fatal: unknown command line option '"+arg +"'" );
+        return 1;
       }
-      else
+      else if (arg.startsWith( "@" ))
       {
-        if (fileName != null)
+        try
+        {
+          readResponseFile( PreprOptions.resolveFile( opts, arg.substring( 1 ) ).getPath(), fileNames );
+        }
+        catch (IOException e)
         {
-          System.err.println( "**fatal: More than one input filename specified" );
-          System.exit(1);
+          err.println( "**fatal: cannot read response file '" + arg.substring( 1 ) + "': " +
+                       e.getMessage() );
+          return 1;
         }
-        fileName = arg;
       }
+      else
+        fileNames.add( arg );
     }
 
-    if (fileName == null)
+    if (fileNames.isEmpty())
+    {
+      err.println( "**fatal: No input filename specified" );
+      return 1;
+    }
+    if (!batch && fileNames.size() > 1)
+    {
+      err.println( "**fatal: More than one input filename specified" );
+      return 1;
+    }
+    if (batch && saveSnapshot != null)
     {
-      System.err.println( "**fatal: No input filename specified" );
-      System.exit(1);
+      err.println( "**fatal: --save-snapshot is not supported in batch mode" );
+      return 1;
     }
 
-    DummyErrorReporter reporter = new DummyErrorReporter();
-    PPSymTable symTable = new PPSymTable();
-    Prepr<PPSymbol> pp = new Prepr<PPSymbol>( opts, reporter, incSearch.finish( opts ),
-                          fileName, new FileInputStream( fileName ), symTable );
+    if (deps == DEPS_ONLY)
+    {
+      opts.setDependencyScan( true );
+      cpp = false;
+      toks = false;
+    }
 
-    String lastFile = "";
-    int lastLine = -1;
-    PPLexer.Token tok;
-    Code lastTok = Code.NEWLINE;
-    boolean nl = true;
-    do
+    ByteBuffer snapshot = null;
+    if (loadSnapshot != null)
     {
-      tok = pp.nextToken();
-      if (!tok.getFileName().equals( lastFile ))
+      try
       {
-        if (cpp)
-        {
-          if (!nl)
-            System.out.println();
-          System.out.format(  "# %d %s\n", tok.getLine1(), Misc.simpleEscapeString(
-                  tok.getFileName() ));
-          nl = true;
-          lastTok = Code.NEWLINE;
-        }
-        lastLine = tok.getLine1();
+        snapshot = Prepr.mapSnapshot( PreprOptions.resolveFile( opts, loadSnapshot ) );
       }
-      else if (tok.getLine1() != lastLine)
+      catch (IOException e)
       {
-        if (tok.getLine1() - lastLine <= 10)
-        {
-          do
-          {
-            if (cpp) System.out.println();
-          }
-          while (++lastLine < tok.getLine1());
-          nl = true;
-          lastTok = Code.NEWLINE;
-        }
-        else
-        {
-          if (cpp)
-          {
-            if (!nl)
-              System.out.println();
-            System.out.format( "# %d %s\n", tok.getLine1(), Misc.simpleEscapeString(tok.getFileName()));
-            nl = true;
-            lastTok = Code.NEWLINE;
-          }
-        }
-        lastLine = tok.getLine1();
+        err.println( "**fatal: cannot read snapshot '" + loadSnapshot + "': " + e.getMessage() );
+        return 1;
       }
+    }
 
-      lastFile = tok.getFileName();
-
-      if (cpp)
+    if (batch)
+    {
+      if (fileCache == null)
+        fileCache = new FileContentCache( BATCH_FILE_CACHE_SIZE );
+      if (minimizedCache == null)
+        minimizedCache = new MinimizedSourceCache( BATCH_FILE_CACHE_SIZE );
+      if (!runBatch( opts, incSearch.finish( opts ), fileCache, minimizedCache, snapshot,
+                     deps, depSystem, fileNames, cpp, toks, jobs, err ))
       {
-        if (tok.code() != Code.NEWLINE)
-        {
-          if (nl)
-          {
-            for ( int i = 1, col = tok.getCol1(); i < col; ++i )
-            {
-              System.out.print( ' ' );
-              lastTok = Code.WHITESPACE;
-            }
-          }
-          if (needWS( lastTok, tok.code() ))
-            System.out.print( ' ' );
-          lastTok = tok.code();
-          tok.output( System.out );
-          nl = false;
-        }
+        return 1;
       }
-      if (toks) System.out.println( tok );
     }
-    while (tok.code() != Code.EOF);
+    else
+    {
+      final String fileName = fileNames.get( 0 );
+      OutputStream depOut = null;
+      if (deps == DEPS_ONLY)
+        depOut = out;
+      else if (deps == DEPS_FILE)
+        depOut = new FileOutputStream( outputFile( opts, fileName, ".d" ) );
+      try
+      {
+        preprocess( opts, new DummyErrorReporter( err ), incSearch.finish( opts ),
+                    opts.getDependencyScan() && minimizedCache != null ? minimizedCache : fileCache,
+                    snapshot, saveSnapshot != null ? PreprOptions.resolveFile( opts, saveSnapshot ) : null,
+                    depOut, depSystem, fileName, cpp, toks, out );
+      }
+      finally
+      {
+        if (depOut != null && depOut != out)
+          depOut.close();
+      }
+    }
+    return 0;
   }
   catch (Exception e)
   {
-    e.printStackTrace();
+    e.printStackTrace( err );
+    return 1;
   }
 }
+
+public static void main ( String[] args )
+{
+  if (args.length > 0 && args[0].startsWith( "--server" ))
+  {
+    PreprServer.main( args );
+    return;
+  }
+
+  int code = run( args, null, new DirectoryIndex(), null, null, System.out, System.err );
+  if (code != 0)
+    System.exit( code );
+}
 } // class
@@ -5,85 +5,171 @@ import c99.Utils;
 
 import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.HashMap;
-
+import java.util.Collection;
+
+/**
+ * Interns identifiers. This is an open-addressing hash table with linear probing, which keeps the
+ * hash codes and the symbols in parallel arrays, so a lookup doesn't allocate.
+ *
+ * <p>The hash code of an identifier is accumulated with {@link #hashStep(int, int)} starting from
+ * {@link #HASH_SEED}. The lexer does that while scanning the identifier and passes the result to
+ * {@link #symbol(byte[], int, int, int)}, so the bytes are not traversed twice.
+ *
+ * <p>Identifiers are numbered sequentially from 1 in the order of creation. The number is passed
+ * to {@link #newIdent(byte[], int)} and becomes the {@link Ident#getId() id} of the identifier,
+ * which is also its hash code and its sort order.
+ *
+ * <p>A table can be frozen and then shared as the base of other tables, which start with all of
+ * its identifiers. A frozen table is never modified, so it can be used by many threads.
+ */
 public abstract class IdentTable<T extends Ident>
 {
-private static final class Key
+public static final int HASH_SEED = 0;
+
+private static final int INITIAL_CAPACITY = 1024;
+
+/** The hash codes of the symbols in {@link #m_symbols} */
+private int[] m_hashes = new int[INITIAL_CAPACITY];
+private Ident[] m_symbols = new Ident[INITIAL_CAPACITY];
+private int m_size;
+/** Grow when the table becomes half full */
+private int m_threshold = INITIAL_CAPACITY / 2;
+/** The frozen table whose identifiers were inherited, or null */
+private final IdentTable<T> m_base;
+/** The number of identifiers inherited from the base table */
+private final int m_baseSize;
+private boolean m_frozen;
+
+protected IdentTable ()
 {
-  int hash;
-  byte val[];
-  int offset;
-  int count;
-
-  Key () {}
+  m_base = null;
+  m_baseSize = 0;
+}
 
-  Key ( final int hash, final byte[] val, int offset, int count )
-  {
-    this.hash = hash;
-    this.val = Arrays.copyOfRange( val, offset, offset + count );
-    this.offset = 0;
-    this.count = count;
-  }
+/**
+ * Start with the identifiers of a frozen table. Only the index is copied; the identifiers
+ * themselves are shared.
+ */
+protected IdentTable ( IdentTable<T> base )
+{
+  if (!base.m_frozen)
+    throw new IllegalArgumentException( "The base table must be frozen" );
+  m_base = base;
+  m_hashes = base.m_hashes.clone();
+  m_symbols = base.m_symbols.clone();
+  m_size = m_baseSize = base.m_size;
+  m_threshold = base.m_threshold;
+}
 
-  final void setVal ( final int hash, final byte[] val, final int offset, final int count )
-  {
-    this.hash = hash;
-    this.val = val;
-    this.offset = offset;
-    this.count = count;
-  }
+/** Prevent the addition of identifiers, so that the table can be shared */
+public final void freeze ()
+{
+  m_frozen = true;
+}
 
-  @Override
-  public final int hashCode ()
-  {
-    return this.hash;
-  }
+public final boolean isFrozen ()
+{
+  return m_frozen;
+}
 
-  @Override
-  public boolean equals ( final Object o )
-  {
-    if (this == o)
-      return true;
-    if (!(o instanceof Key))
-      return false;
+/** The frozen table whose identifiers were inherited, or null */
+public final IdentTable<T> getBase ()
+{
+  return m_base;
+}
 
-    Key key = (Key)o;
+/** The number of identifiers inherited from the base table. They have the lowest numbers. */
+public final int getBaseSize ()
+{
+  return m_baseSize;
+}
 
-    return
-      hash == key.hash &&
-      count == key.count &&
-      Utils.equals( this.val, this.offset, key.val, key.offset, this.count );
-  }
+/**
+ * Add the next byte of an identifier to its hash code. It is cheap because it is on the critical
+ * path of the lexer; the bits are mixed properly once per lookup by {@link #mix(int)}.
+ */
+public static int hashStep ( int hash, int b )
+{
+  return Integer.rotateLeft( hash, 5 ) ^ (b & 255);
+}
 
-  @Override
-  public String toString ()
-  {
-    return "Key{" +
-           "hash=" + hash +
-           ", count=" + count +
-           '}';
-  }
+public static int hash ( byte[] val, int offset, int len )
+{
+  int hash = HASH_SEED;
+  for ( final int end = offset + len; offset < end; ++offset )
+    hash = hashStep( hash, val[offset] );
+  return hash;
 }
 
-private final HashMap<Key,T> m_map = new HashMap<Key, T>();
-private final Key m_dummyKey = new Key();
+/** The MurmurHash3 finalizer. Every bit of the result depends on every bit of the input */
+private static int mix ( int h )
+{
+  h ^= h >>> 16;
+  h *= 0x85EBCA6B;
+  h ^= h >>> 13;
+  h *= 0xC2B2AE35;
+  h ^= h >>> 16;
+  return h;
+}
 
 public final T symbol ( byte val[], int offset, int len )
 {
-  m_dummyKey.setVal( Ident.calcHashCode( val, offset, len ), val, offset, len );
+  return symbol( val, offset, len, hash( val, offset, len ) );
+}
 
-  T symbol = m_map.get( m_dummyKey );
-  if (symbol == null)
+/**
+ * Look up or add an identifier whose hash code has already been computed.
+ * @param hash the result of {@link #hash(byte[], int, int)} for the same bytes
+ */
+@SuppressWarnings("unchecked")
+public final T symbol ( byte val[], int offset, int len, int hash )
+{
+  assert hash == hash( val, offset, len );
+
+  hash = mix( hash );
+  final Ident[] symbols = m_symbols;
+  final int mask = symbols.length - 1;
+  int i = hash & mask;
+  Ident sym;
+  while ((sym = symbols[i]) != null)
   {
-    Key key = new Key( m_dummyKey.hash, val, offset, len );
-    symbol = newIdent( key.val, m_map.size() + 1 );
-    m_map.put( key, symbol );
+    if (m_hashes[i] == hash && sym.bytes.length == len && Utils.equals( sym.bytes, 0, val, offset, len ))
+      return (T)sym;
+    i = (i + 1) & mask;
   }
 
+  if (m_frozen)
+    throw new IllegalStateException( "Adding an identifier to a frozen table" );
+  T symbol = newIdent( Arrays.copyOfRange( val, offset, offset + len ), m_size + 1 );
+  m_hashes[i] = hash;
+  symbols[i] = symbol;
+  if (++m_size > m_threshold)
+    grow();
   return symbol;
 }
 
+private void grow ()
+{
+  final int[] oldHashes = m_hashes;
+  final Ident[] oldSymbols = m_symbols;
+  final int capacity = oldSymbols.length << 1;
+  final int mask = capacity - 1;
+
+  m_hashes = new int[capacity];
+  m_symbols = new Ident[capacity];
+  m_threshold = capacity / 2;
+
+  for ( int j = 0; j < oldSymbols.length; ++j )
+    if (oldSymbols[j] != null)
+    {
+      int i = oldHashes[j] & mask;
+      while (m_symbols[i] != null)
+        i = (i + 1) & mask;
+      m_hashes[i] = oldHashes[j];
+      m_symbols[i] = oldSymbols[j];
+    }
+}
+
 private static final Charset s_latin = Charset.forName( "ISO-8859-1" );
 
 public final T symbol ( String name )
@@ -92,7 +178,71 @@ public final T symbol ( String name )
   return symbol( bytes, 0, bytes.length );
 }
 
-protected abstract T newIdent ( byte[] bytes, int hash );
+/**
+ * Create a new identifier.
+ * @param id the sequential number of the identifier in the table
+ */
+protected abstract T newIdent ( byte[] bytes, int id );
 
-} // class
+/** Add all identifiers in the table to {@code res}, in no particular order */
+@SuppressWarnings("unchecked")
+public final void getSymbols ( Collection<? super T> res )
+{
+  for ( Ident sym : m_symbols )
+    if (sym != null)
+      res.add( (T)sym );
+}
 
+/** The number of identifiers in the table */
+public final int size ()
+{
+  return m_size;
+}
+
+public final int capacity ()
+{
+  return m_symbols.length;
+}
+
+public final double loadFactor ()
+{
+  return (double)m_size / m_symbols.length;
+}
+
+/** The number of slots examined when looking up the identifier in slot {@code i} */
+private int probeLength ( int i )
+{
+  final int mask = m_symbols.length - 1;
+  return ((i - (m_hashes[i] & mask)) & mask) + 1;
+}
+
+/**
+ * The average number of slots examined when looking up an identifier which is in the table.
+ * The statistics are calculated on demand, so they don't slow down the lookups.
+ */
+public final double averageProbeLength ()
+{
+  long sum = 0;
+  for ( int i = 0; i < m_symbols.length; ++i )
+    if (m_symbols[i] != null)
+      sum += probeLength( i );
+  return m_size != 0 ? (double)sum / m_size : 0;
+}
+
+public final int maxProbeLength ()
+{
+  int max = 0;
+  for ( int i = 0; i < m_symbols.length; ++i )
+    if (m_symbols[i] != null)
+      max = Math.max( max, probeLength( i ) );
+  return max;
+}
+
+public final String formatStats ()
+{
+  return String.format( "identifiers: %d, capacity: %d, load factor: %.2f, " +
+                        "average probe length: %.2f, max probe length: %d",
+                        m_size, capacity(), loadFactor(), averageProbeLength(), maxProbeLength() );
+}
+
+} // class
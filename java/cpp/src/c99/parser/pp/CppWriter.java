@@ -0,0 +1,266 @@
+package c99.parser.pp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import c99.parser.Code;
+
+/**
+ * Formats preprocessed tokens as text, the way "cpp" does: tokens keep their lines and
+ * indentation, short gaps between lines are filled with empty lines and everything else is
+ * described with {@code # line "file"} markers.
+ *
+ * <p>The output is accumulated in a large reusable buffer and written out in big chunks. The
+ * class is not synchronized and doesn't allocate for every token. {@link #flush()} must be
+ * invoked at the end.
+ */
+public final class CppWriter extends OutputStream
+{
+public static final int DEFAULT_BUF_SIZE = 65536;
+/** Some output is formatted directly in the buffer, so it can't be smaller than this */
+public static final int MIN_BUF_SIZE = 16;
+
+/** Gaps of up to this many lines are filled with newlines instead of a line marker */
+private static final int MAX_LINE_GAP = 10;
+
+private static final byte[] s_spaces = new byte[64];
+static {
+  Arrays.fill( s_spaces, (byte)' ' );
+}
+private static final byte[] s_newlines = new byte[MAX_LINE_GAP];
+static {
+  Arrays.fill( s_newlines, (byte)'\n' );
+}
+
+private final OutputStream m_out;
+private final byte[] m_buf;
+private int m_len;
+
+private String m_lastFile = "";
+private int m_lastLine = -1;
+private Code m_lastTok = Code.NEWLINE;
+/** We are at the start of a line */
+private boolean m_nl = true;
+
+/** The file name of the last line marker and its escaped representation */
+private String m_markerFile;
+private byte[] m_markerBytes;
+
+/**
+ * @param bufSize at least {@link #MIN_BUF_SIZE}
+ * @throws IllegalArgumentException if the buffer size is too small
+ */
+public CppWriter ( OutputStream out, int bufSize )
+{
+  if (bufSize < MIN_BUF_SIZE)
+    throw new IllegalArgumentException( "Buffer size " + bufSize + " is less than " + MIN_BUF_SIZE );
+  m_out = out;
+  m_buf = new byte[bufSize];
+}
+
+public CppWriter ( OutputStream out )
+{
+  this( out, DEFAULT_BUF_SIZE );
+}
+
+private static boolean needWS ( Code t1, Code t2 )
+{
+  switch (t1)
+  {
+  case IDENT:
+  case INT_NUMBER:
+  case REAL_NUMBER:
+    return t2 == Code.IDENT || t2 == Code.INT_NUMBER || t2 == Code.REAL_NUMBER;
+
+  case NEWLINE:
+    return t2 == Code.HASH;
+
+  case HASH:
+    return t2 == Code.HASH;
+
+  case PLUS:
+    return t2 == Code.EQUALS || t2 == Code.PLUS;
+  case MINUS:
+    return t2 == Code.EQUALS || t2 == Code.MINUS || t2 == Code.GREATER;
+  case ASTERISK:
+    return t2 == Code.EQUALS || t2 == Code.SLASH;
+  case SLASH:
+    return t2 == Code.EQUALS || t2 == Code.SLASH || t2 == Code.ASTERISK;
+  case PERCENT:
+  case CARET:
+  case BANG:
+  case EQUALS:
+    return t2 == Code.EQUALS;
+  case AMPERSAND:
+    return t2 == Code.EQUALS || t2 == Code.AMPERSAND;
+  case VERTICAL:
+    return t2 == Code.EQUALS || t2 == Code.VERTICAL;
+
+  case GREATER:
+    return t2 == Code.GREATER || t2 == Code.EQUALS || t2 == Code.GREATER_EQUALS;
+  case LESS:
+    return t2 == Code.LESS || t2 == Code.EQUALS || t2 == Code.LESS_EQUALS;
+  case GREATER_GREATER:
+    return t2 == Code.EQUALS;
+  case LESS_LESS:
+    return t2 == Code.EQUALS;
+  }
+  return false;
+}
+
+/**
+ * Append the next token returned by the preprocessor, preceded by any newlines, indentation,
+ * line markers and separating whitespace it needs.
+ */
+public void writeToken ( PPDefs.AbstractToken tok ) throws IOException
+{
+  final int line = tok.getLine1();
+
+  if (!tok.getFileName().equals( m_lastFile ))
+  {
+    if (!m_nl)
+      write( '\n' );
+    writeLineMarker( line, tok.getFileName() );
+    m_nl = true;
+    m_lastTok = Code.NEWLINE;
+    m_lastLine = line;
+  }
+  else if (line != m_lastLine)
+  {
+    if (line - m_lastLine <= MAX_LINE_GAP)
+      write( s_newlines, 0, Math.max( line - m_lastLine, 1 ) );
+    else
+    {
+      if (!m_nl)
+        write( '\n' );
+      writeLineMarker( line, tok.getFileName() );
+    }
+    m_nl = true;
+    m_lastTok = Code.NEWLINE;
+    m_lastLine = line;
+  }
+
+  m_lastFile = tok.getFileName();
+
+  if (tok.code() != Code.NEWLINE)
+  {
+    if (m_nl && tok.getCol1() > 1)
+    {
+      writeSpaces( tok.getCol1() - 1 );
+      m_lastTok = Code.WHITESPACE;
+    }
+    if (needWS( m_lastTok, tok.code() ))
+      write( ' ' );
+    m_lastTok = tok.code();
+    tok.output( this );
+    m_nl = false;
+  }
+}
+
+/** Write a {@code # line "file"} marker followed by a newline */
+public void writeLineMarker ( int line, String fileName ) throws IOException
+{
+  if (!fileName.equals( m_markerFile ))
+  {
+    m_markerFile = fileName;
+    m_markerBytes = Misc.simpleEscapeString( fileName ).getBytes();
+  }
+
+  // "# " + at most 11 characters for the number + " ", which fits in MIN_BUF_SIZE
+  reserve( 14 );
+  m_buf[m_len++] = '#';
+  m_buf[m_len++] = ' ';
+  writeDecimal( line );
+  m_buf[m_len++] = ' ';
+  write( m_markerBytes, 0, m_markerBytes.length );
+  write( '\n' );
+}
+
+private void writeDecimal ( int value )
+{
+  long v = value;
+  if (v < 0)
+  {
+    m_buf[m_len++] = '-';
+    v = -v;
+  }
+  int digits = 1;
+  for ( long t = v; t >= 10; t /= 10 )
+    ++digits;
+  m_len += digits;
+  for ( int i = m_len - 1; i >= m_len - digits; --i, v /= 10 )
+    m_buf[i] = (byte)('0' + v % 10);
+}
+
+public void writeSpaces ( int count ) throws IOException
+{
+  while (count > 0)
+  {
+    int n = Math.min( count, s_spaces.length );
+    write( s_spaces, 0, n );
+    count -= n;
+  }
+}
+
+/** Make sure that there are at least {@code n} free bytes in the buffer */
+private void reserve ( int n ) throws IOException
+{
+  if (m_len + n > m_buf.length)
+    flushBuffer();
+}
+
+private void flushBuffer () throws IOException
+{
+  if (m_len > 0)
+  {
+    m_out.write( m_buf, 0, m_len );
+    m_len = 0;
+  }
+}
+
+@Override
+public void write ( int b ) throws IOException
+{
+  if (m_len == m_buf.length)
+    flushBuffer();
+  m_buf[m_len++] = (byte)b;
+}
+
+@Override
+public void write ( byte[] b, int off, int len ) throws IOException
+{
+  if (len > m_buf.length - m_len)
+  {
+    flushBuffer();
+    if (len > m_buf.length)
+    {
+      m_out.write( b, off, len );
+      return;
+    }
+  }
+  System.arraycopy( b, off, m_buf, m_len, len );
+  m_len += len;
+}
+
+@Override
+public void flush () throws IOException
+{
+  flushBuffer();
+  m_out.flush();
+}
+
+/** Flush the buffer and close the underlying stream */
+@Override
+public void close () throws IOException
+{
+  try
+  {
+    flushBuffer();
+  }
+  finally
+  {
+    m_out.close();
+  }
+}
+} // class
@@ -0,0 +1,110 @@
+package c99.parser.pp;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A thread-safe cache of directory listings, used to check whether include files exist
+ * without touching the file system for every lookup.
+ *
+ * <p>Every directory is listed once, the first time a file in it is looked up. Subdirectories
+ * (like the "sys" in {@code <sys/types.h>}) are listed on demand in the same way. A name that
+ * is missing from the listing doesn't exist, so misses are as cheap as hits.
+ *
+ * <p>A listing is re-validated against the modification time of its directory at most once
+ * per "epoch". A new epoch is started by {@link #revalidate()}, typically once per translation
+ * unit, so a single index can be shared by all translation units preprocessed in a JVM.
+ */
+public final class DirectoryIndex
+{
+private static final class Listing
+{
+  final long lastModified;
+  /** Empty if the directory doesn't exist */
+  final HashSet<String> names;
+  int epoch;
+
+  Listing ( final long lastModified, final HashSet<String> names, final int epoch )
+  {
+    this.lastModified = lastModified;
+    this.names = names;
+    this.epoch = epoch;
+  }
+}
+
+private final HashMap<File,Listing> m_listings = new HashMap<File, Listing>();
+private int m_epoch;
+
+private int m_listCount;
+
+/** The modification times of directories will be re-checked the next time they are used */
+public synchronized void revalidate ()
+{
+  ++m_epoch;
+}
+
+/** Returns the number of directories which have been listed so far (for statistics) */
+public synchronized int getListCount ()
+{
+  return m_listCount;
+}
+
+private synchronized Listing getListing ( File dir )
+{
+  Listing listing = m_listings.get( dir );
+  if (listing != null && listing.epoch == m_epoch)
+    return listing;
+
+  long lastModified = dir.lastModified();
+  if (listing != null && listing.lastModified == lastModified)
+  {
+    listing.epoch = m_epoch;
+    return listing;
+  }
+
+  String[] names = lastModified != 0 ? dir.list() : null;
+  HashSet<String> set = new HashSet<String>();
+  if (names != null)
+    set.addAll( Arrays.asList( names ) );
+
+  ++m_listCount;
+  m_listings.put( dir, listing = new Listing( lastModified, set, m_epoch ) );
+  return listing;
+}
+
+/**
+ * Checks whether a file or directory exists.
+ *
+ * @param dir the directory. null means the current directory.
+ * @param relPath a path relative to {@code dir}.
+ */
+public boolean exists ( File dir, String relPath )
+{
+  if (dir == null)
+    dir = new File( "." );
+
+  final int len = relPath.length();
+  int start = 0;
+  for(;;)
+  {
+    int end = start;
+    while (end < len && relPath.charAt( end ) != '/' && relPath.charAt( end ) != File.separatorChar)
+      ++end;
+
+    String name = relPath.substring( start, end );
+    // Empty components, "." and ".." must be resolved by the file system
+    if (name.length() == 0 || ".".equals( name ) || "..".equals( name ))
+      return new File( dir, relPath.substring( start ) ).exists();
+
+    if (!getListing( dir ).names.contains( name ))
+      return false;
+    if (end == len)
+      return true;
+
+    dir = new File( dir, name );
+    start = end + 1;
+  }
+}
+} // class
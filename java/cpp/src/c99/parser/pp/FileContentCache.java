@@ -0,0 +1,149 @@
+package c99.parser.pp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache of file contents, which allows a header to be read from disk only once
+ * when many translation units are preprocessed in the same JVM.
+ *
+ * <p>Entries are keyed on the absolute path and are re-validated against the size and the
+ * modification time of the file on every access. When the total size of the cached data
+ * exceeds the byte budget, the least recently used entries are evicted.
+ */
+public final class FileContentCache implements IFileCache
+{
+private static final class Entry
+{
+  final long size;
+  final long lastModified;
+  final byte[] data;
+
+  Entry ( final long size, final long lastModified, final byte[] data )
+  {
+    this.size = size;
+    this.lastModified = lastModified;
+    this.data = data;
+  }
+}
+
+private final long m_budget;
+private long m_usedBytes;
+private final LinkedHashMap<String,Entry> m_map = new LinkedHashMap<String, Entry>( 64, 0.75f, true );
+
+private long m_hits;
+private long m_misses;
+
+/**
+ * @param budget the maximum number of bytes to keep in the cache
+ */
+public FileContentCache ( long budget )
+{
+  m_budget = budget;
+}
+
+@Override
+public byte[] read ( final File file ) throws IOException
+{
+  if (!file.isFile())
+    return null;
+
+  final String key = file.getAbsolutePath();
+  final long size = file.length();
+  final long lastModified = file.lastModified();
+
+  synchronized (this)
+  {
+    Entry e = m_map.get( key );
+    if (e != null && e.size == size && e.lastModified == lastModified)
+    {
+      ++m_hits;
+      return e.data;
+    }
+  }
+
+  // Don't hold the lock while reading
+  if (size >= Integer.MAX_VALUE)
+    return null;
+  final byte[] data = readFully( file, (int)size );
+  if (data == null)
+    return null;
+
+  synchronized (this)
+  {
+    ++m_misses;
+    Entry old = m_map.remove( key );
+    if (old != null)
+      m_usedBytes -= old.data.length;
+
+    if (data.length <= m_budget)
+    {
+      m_map.put( key, new Entry( size, lastModified, data ) );
+      m_usedBytes += data.length;
+      evict();
+    }
+  }
+
+  return data;
+}
+
+private void evict ()
+{
+  for ( Iterator<Map.Entry<String,Entry>> it = m_map.entrySet().iterator();
+        m_usedBytes > m_budget && it.hasNext(); )
+  {
+    m_usedBytes -= it.next().getValue().data.length;
+    it.remove();
+  }
+}
+
+/**
+ * @return null if the file size changed while we were reading it
+ */
+static byte[] readFully ( File file, int size ) throws IOException
+{
+  FileInputStream input = new FileInputStream( file );
+  try
+  {
+    byte[] data = new byte[size];
+    int len = 0, n;
+    while (len < size && (n = input.read( data, len, size - len )) > 0)
+      len += n;
+    return len == size && input.read() < 0 ? data : null;
+  }
+  finally
+  {
+    input.close();
+  }
+}
+
+public synchronized void clear ()
+{
+  m_map.clear();
+  m_usedBytes = 0;
+}
+
+public synchronized long getUsedBytes ()
+{
+  return m_usedBytes;
+}
+
+public synchronized int getEntryCount ()
+{
+  return m_map.size();
+}
+
+public synchronized long getHitCount ()
+{
+  return m_hits;
+}
+
+public synchronized long getMissCount ()
+{
+  return m_misses;
+}
+} // class
@@ -0,0 +1,72 @@
+package c99.parser.pp;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifies a file regardless of how its path was spelled. Symbolic links and relative
+ * components are resolved through the canonical path, while the size and the modification
+ * time guard against a different file being reached through the same name.
+ */
+final class FileKey
+{
+public final String canonicalPath;
+public final long size;
+public final long lastModified;
+
+FileKey ( final String canonicalPath, final long size, final long lastModified )
+{
+  this.canonicalPath = canonicalPath;
+  this.size = size;
+  this.lastModified = lastModified;
+}
+
+/**
+ * @return null if the file identity cannot be determined
+ */
+public static FileKey make ( String path )
+{
+  File f = new File( path );
+  try
+  {
+    return new FileKey( f.getCanonicalPath(), f.length(), f.lastModified() );
+  }
+  catch (IOException e)
+  {
+    return null;
+  }
+}
+
+@Override
+public boolean equals ( final Object o )
+{
+  if (this == o)
+    return true;
+  if (!(o instanceof FileKey))
+    return false;
+
+  FileKey key = (FileKey)o;
+
+  return size == key.size && lastModified == key.lastModified &&
+         canonicalPath.equals( key.canonicalPath );
+}
+
+@Override
+public int hashCode ()
+{
+  int result = canonicalPath.hashCode();
+  result = 31 * result + (int)(size ^ (size >>> 32));
+  result = 31 * result + (int)(lastModified ^ (lastModified >>> 32));
+  return result;
+}
+
+@Override
+public String toString ()
+{
+  return "FileKey{" +
+         "canonicalPath='" + canonicalPath + '\'' +
+         ", size=" + size +
+         ", lastModified=" + lastModified +
+         '}';
+}
+}
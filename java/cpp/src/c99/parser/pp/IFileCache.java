@@ -0,0 +1,19 @@
+package c99.parser.pp;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A source of file contents, which can be shared between several preprocessor instances,
+ * possibly running concurrently.
+ */
+public interface IFileCache
+{
+/**
+ * @param file the file to read
+ * @return the complete contents of the file, or null if it cannot be cached (for example
+ *   because it is not a regular file) and must be read directly. The returned array may be
+ *   shared and must not be modified.
+ */
+public byte[] read ( File file ) throws IOException;
+}
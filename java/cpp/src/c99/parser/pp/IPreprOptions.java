@@ -1,5 +1,7 @@
 package c99.parser.pp;
 
+import java.io.File;
+
 public interface IPreprOptions
 {
 boolean getNoStdInc ();
@@ -7,4 +9,24 @@ boolean getGccExtensions ();
 boolean getWarnUndef ();
 
 int getMaxIncludeDepth ();
+
+/**
+ * Tokens from the lexer carry file offsets and their line and column numbers are calculated only
+ * when requested. It is worthwhile when most token locations are never looked at.
+ */
+boolean getLazyLocations ();
+
+/**
+ * Only the directives are processed, to find the included files. No tokens are returned for the
+ * other lines, which are skipped without tokenizing them.
+ * @see Prepr#getDependencies(boolean)
+ */
+boolean getDependencyScan ();
+
+/**
+ * The directory against which relative file names are resolved when opening files. The names
+ * themselves (in __FILE__, line markers and diagnostics) are not affected.
+ * null means the current directory of the process.
+ */
+File getWorkingDir ();
 }
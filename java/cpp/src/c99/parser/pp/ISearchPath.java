@@ -6,11 +6,19 @@ class Result
 {
   public final String path;
   public final String absPath;
+  /** The file was found in a system include directory */
+  public final boolean system;
 
   public Result ( final String path, final String absPath )
+  {
+    this( path, absPath, false );
+  }
+
+  public Result ( final String path, final String absPath, final boolean system )
   {
     this.path = path;
     this.absPath = absPath;
+    this.system = system;
   }
 
   @Override
@@ -19,6 +27,7 @@ class Result
     return "Result{" +
            "path='" + path + '\'' +
            ", absPath='" + absPath + '\'' +
+           ", system=" + system +
            '}';
   }
 }
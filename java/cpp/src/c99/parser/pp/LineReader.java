@@ -1,15 +1,20 @@
 package c99.parser.pp;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 
 import c99.FatalException;
 import c99.Location;
+import c99.SourceFile;
 import c99.SourceRange;
 
 public final class LineReader
 {
+public static final int DEFAULT_BUF_SIZE = 16384;
+
 private final InputStream m_input;
 private byte m_buf[];
 private int m_lineStart, m_limit;
@@ -25,6 +30,11 @@ private int m_curLineNumber;
 private int m_lineMap[] = new int[32];
 private int m_lineMapCount;
 
+/** The offset in the file of {@code m_buf[0]} */
+private int m_bufOffset;
+/** If not null, the start of every line is recorded there */
+private SourceFile m_srcFile;
+
 public LineReader ( InputStream input, int bufSize )
 {
   m_input = input;
@@ -41,8 +51,104 @@ public LineReader ( InputStream input, int bufSize )
   m_lineMapCount = 0;
 }
 
+/**
+ * Create a reader over data which has already been loaded in memory in its entirety, so
+ * the buffer never has to be refilled, compacted or resized.
+ *
+ * <p>The reader takes ownership of the buffer and modifies it. There must be room for
+ * at least one byte after {@code length} for the EOF sentinel.
+ */
+public LineReader ( byte[] buf, int length )
+{
+  assert length < buf.length;
+  m_input = null;
+  m_buf = buf;
+  m_lineStart = 0;
+  m_limit = length;
+  m_buf[m_limit] = 0; // Add a sentinel to avoid range checks at EOF
+  m_inputEOF = true;
+  m_linesEOF = false;
+
+  m_lineEnd = 0;
+  m_consumePos = 0;
+  m_startLineNumber = m_curLineNumber = 0;
+
+  m_lineMapCount = 0;
+}
+
+/**
+ * Open a file for reading. A regular file is loaded with a single read into a buffer of
+ * exactly the right size, while anything else (pipes, devices, etc) is read incrementally.
+ * If a regular file grows while it is being read, the buffer grows too, so nothing is lost.
+ */
+public static LineReader readFile ( File file ) throws IOException
+{
+  FileInputStream input = new FileInputStream( file );
+  long size = file.length();
+  if (!file.isFile() || size <= 0 || size >= Integer.MAX_VALUE)
+    return new LineReader( input, DEFAULT_BUF_SIZE );
+
+  try
+  {
+    byte[] buf = new byte[(int)size + 1];
+    int len = 0, n;
+    // The last byte is reserved for the sentinel
+    while ((n = input.read( buf, len, buf.length - 1 - len )) > 0)
+    {
+      len += n;
+      if (len == buf.length - 1)
+      {
+        // The file may have grown since its length was obtained
+        int b = input.read();
+        if (b < 0)
+          break;
+        if (buf.length >= Integer.MAX_VALUE / 2)
+          throw new IOException( file + " is too large" );
+        buf = Arrays.copyOf( buf, buf.length * 2 );
+        buf[len++] = (byte)b;
+      }
+    }
+    return new LineReader( buf, len );
+  }
+  finally
+  {
+    input.close();
+  }
+}
+
+/**
+ * Like {@link #readFile(File)}, but consult the cache first.
+ *
+ * @param cache may be null
+ */
+public static LineReader readFile ( File file, IFileCache cache ) throws IOException
+{
+  byte[] data;
+  if (cache != null && (data = cache.read( file )) != null)
+    return new LineReader( Arrays.copyOf( data, data.length + 1 ), data.length );
+  else
+    return readFile( file );
+}
+
+/**
+ * Record the line starts in {@code srcFile}, so {@link #fileOffset(int)} can be used.
+ * Must be invoked before the first line is read.
+ */
+public final void setSourceFile ( SourceFile srcFile )
+{
+  assert m_curLineNumber == 0;
+  m_srcFile = srcFile;
+}
+
+public final SourceFile getSourceFile ()
+{
+  return m_srcFile;
+}
+
 public final void close ()
 {
+  if (m_input == null)
+    return;
   try
   {
     m_input.close();
@@ -78,6 +184,7 @@ private boolean fill ()
   {
     if (m_lineStart == m_limit)
     {
+      m_bufOffset += m_limit;
       m_limit = 0;
       m_lineStart = 0;
     }
@@ -85,6 +192,7 @@ private boolean fill ()
     {
       int len = m_limit - m_lineStart;
       System.arraycopy( m_buf, m_lineStart, m_buf, 0, len );
+      m_bufOffset += m_lineStart;
       m_lineStart = 0;
       m_limit = len;
     }
@@ -124,6 +232,8 @@ public boolean readNextLine ()
   m_lineStart = m_consumePos; // consume the previous line
   m_startLineNumber = ++m_curLineNumber;
   resetMap();
+  if (m_srcFile != null)
+    m_srcFile.addLine( m_curLineNumber, m_bufOffset + m_lineStart );
 
   int ofs = 0; // offset from mark
   for(;;)
@@ -158,6 +268,8 @@ public boolean appendNextLine ( int at )
     return false;
 
   ++m_curLineNumber;
+  if (m_srcFile != null)
+    m_srcFile.addLine( m_curLineNumber, m_bufOffset + m_consumePos );
   at -= m_lineStart; // Convert to offset
   addMapEntry( at );
 
@@ -249,6 +361,31 @@ public final SourceRange calcRange ( int from, int to, SourceRange rng )
   return rng;
 }
 
+/** The file offset of the start of the current line */
+public final int lineStartOffset ()
+{
+  return m_bufOffset + m_lineStart;
+}
+
+/** The file offset after the last line read, including any line continuations */
+public final int consumedOffset ()
+{
+  return m_bufOffset + m_consumePos;
+}
+
+/**
+ * Convert a position in the current line buffer into an offset in the file.
+ * Requires {@link #setSourceFile(SourceFile)}.
+ */
+public final int fileOffset ( int pos )
+{
+  if (m_lineMapCount == 0)
+    return m_bufOffset + pos;
+
+  calcLocation( pos, m_tmpLoc );
+  return m_srcFile.lineStart( m_tmpLoc.line ) + m_tmpLoc.col - 1;
+}
+
 private void calcLocation ( int pos, Location loc )
 {
   pos -= m_lineStart; // Convert into offset
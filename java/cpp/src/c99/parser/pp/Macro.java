@@ -8,22 +8,42 @@ import java.util.Iterator;
 
 final class Macro
 {
-public final SourceRange nameLoc = new SourceRange();
-public final SourceRange bodyLoc = new SourceRange();
+public final SourceRange nameLoc;
+public final SourceRange bodyLoc;
 public final PPSymbol symbol;
 public final Builtin builtin;
 public boolean funcLike;
 public boolean variadic;
+/** Set while the macro is being expanded. It is the only state which changes after parsing. */
 public boolean expanding;
 
-public final ArrayList<ParamDecl> params = new ArrayList<ParamDecl>();
-public final TokenList<PPDefs.AbstractToken> body = new TokenList<PPDefs.AbstractToken>();
+public final ArrayList<ParamDecl> params;
+/** The replacement list. It is set once after it has been parsed */
+public PackedTokens body = PackedTokens.EMPTY;
 
 Macro ( final PPSymbol symbol, ISourceRange nameLoc, Builtin builtin )
 {
   this.symbol = symbol;
-  this.nameLoc.setRange( nameLoc );
+  this.nameLoc = new SourceRange( nameLoc );
+  this.bodyLoc = new SourceRange();
   this.builtin = builtin;
+  this.params = new ArrayList<ParamDecl>();
+}
+
+/**
+ * A copy of a macro which has been parsed, with its own {@link #expanding} flag. Everything else
+ * is shared.
+ */
+Macro ( Macro m )
+{
+  this.symbol = m.symbol;
+  this.nameLoc = m.nameLoc;
+  this.bodyLoc = m.bodyLoc;
+  this.builtin = m.builtin;
+  this.funcLike = m.funcLike;
+  this.variadic = m.variadic;
+  this.params = m.params;
+  this.body = m.body;
 }
 
 final int paramCount ()
@@ -31,18 +51,23 @@ final int paramCount ()
   return params.size();
 }
 
-void cleanUpParamScope ()
+/** The parameter named {@code sym}, or null */
+final ParamDecl findParam ( PPSymbol sym )
 {
-  for ( ParamDecl param : params )
-    param.cleanUp();
+  for ( int i = 0, e = params.size(); i < e; ++i )
+  {
+    final ParamDecl param = params.get( i );
+    if (param.symbol == sym)
+      return param;
+  }
+  return null;
 }
 
 boolean same ( Macro m )
 {
   if (this.symbol != m.symbol ||
       this.funcLike != m.funcLike ||
-      this.params.size() != m.params.size() ||
-      this.body.size() != m.body.size())
+      this.params.size() != m.params.size())
   {
     return false;
   }
@@ -53,12 +78,6 @@ boolean same ( Macro m )
     if (!p1.next().same( p2.next() ))
       return false;
 
-  Iterator<PPDefs.AbstractToken> t1 = this.body.iterator();
-  Iterator<PPDefs.AbstractToken> t2 = m.body.iterator();
-  while (t1.hasNext())
-    if (!t1.next().same( t2.next() ))
-      return false;
-
-  return true;
+  return this.body.same( m.body );
 }
 }
@@ -0,0 +1,137 @@
+package c99.parser.pp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import c99.parser.IdentTable;
+
+/**
+ * The macro definitions of a preprocessor. A table can be frozen and then shared as the immutable
+ * base layer of the tables of many other preprocessors, which may run concurrently. For example
+ * a common prefix of many translation units can be preprocessed only once.
+ *
+ * <p>The macros of the identifiers created by the symbol table of the same layer are stored
+ * directly in {@link PPSymbol#ppDecl}. The identifiers inherited from the base symbol table are
+ * shared, so their macros in this layer are kept in an overlay indexed by identifier number.
+ * A macro of the base layer is copied into the overlay the first time it is looked up, because
+ * its {@link Macro#expanding} flag is per-preprocessor; its body is shared.
+ *
+ * <p>Besides the macros, the frozen table holds the include guard and #pragma once state,
+ * which is copied by the preprocessors using it as a base.
+ */
+public final class MacroTable
+{
+/** Marks an identifier which is not defined in the overlay */
+private static final Object UNDEFINED = new Object();
+
+private final IdentTable<? extends PPSymbol> m_symTable;
+private final MacroTable m_base;
+/** The number of identifiers inherited from the base symbol table */
+private final int m_baseSize;
+/** Macro, UNDEFINED, or null if the base hasn't been consulted yet */
+private final Object[] m_overlay;
+private boolean m_frozen;
+
+HashMap<String,PPSymbol> guardedFiles;
+HashSet<FileKey> onceFiles;
+/** The files read by the instance which created the table, by absolute path */
+LinkedHashMap<String,Prepr.Dependency> dependencies;
+
+MacroTable ( IdentTable<? extends PPSymbol> symTable, MacroTable base )
+{
+  m_symTable = symTable;
+  m_base = base;
+  if (base != null)
+  {
+    if (!base.m_frozen)
+      throw new IllegalArgumentException( "The base macro table must be frozen" );
+    if (symTable.getBase() != base.m_symTable)
+      throw new IllegalArgumentException( "The symbol table must be based on the one of the base macro table" );
+    m_baseSize = symTable.getBaseSize();
+    m_overlay = new Object[m_baseSize + 1];
+  }
+  else
+  {
+    m_baseSize = 0;
+    m_overlay = null;
+  }
+}
+
+public final boolean isFrozen ()
+{
+  return m_frozen;
+}
+
+/** The macro named {@code sym}, or null */
+final Macro get ( PPSymbol sym )
+{
+  final int id = sym.getId();
+  if (id > m_baseSize)
+    return (Macro)sym.ppDecl;
+
+  Object decl = m_overlay[id];
+  if (decl == null)
+    m_overlay[id] = decl = inherit( sym );
+  return decl != UNDEFINED ? (Macro)decl : null;
+}
+
+private Object inherit ( PPSymbol sym )
+{
+  final Macro macro = m_base.get( sym );
+  return macro != null ? new Macro( macro ) : UNDEFINED;
+}
+
+final boolean isDefined ( PPSymbol sym )
+{
+  return get( sym ) != null;
+}
+
+/** Define or undefine (if {@code macro} is null) a macro */
+final void set ( PPSymbol sym, Macro macro )
+{
+  assert !m_frozen;
+  final int id = sym.getId();
+  if (id > m_baseSize)
+    sym.ppDecl = macro;
+  else
+    m_overlay[id] = macro != null ? macro : UNDEFINED;
+}
+
+/** All macros, in no particular order */
+final ArrayList<Macro> getMacros ()
+{
+  ArrayList<PPSymbol> symbols = new ArrayList<PPSymbol>();
+  m_symTable.getSymbols( symbols );
+  ArrayList<Macro> res = new ArrayList<Macro>();
+  for ( PPSymbol sym : symbols )
+  {
+    Macro macro = get( sym );
+    if (macro != null)
+      res.add( macro );
+  }
+  return res;
+}
+
+/**
+ * Make the table immutable, so that it can be shared. The lookups in the base layer are resolved
+ * eagerly, so that they don't modify the overlay later.
+ */
+final void freeze ( HashMap<String,PPSymbol> guardedFiles, HashSet<FileKey> onceFiles,
+                    LinkedHashMap<String,Prepr.Dependency> dependencies )
+{
+  if (m_overlay != null)
+  {
+    ArrayList<PPSymbol> symbols = new ArrayList<PPSymbol>();
+    m_symTable.getSymbols( symbols );
+    for ( PPSymbol sym : symbols )
+      get( sym );
+  }
+  this.guardedFiles = new HashMap<String, PPSymbol>( guardedFiles );
+  this.onceFiles = new HashSet<FileKey>( onceFiles );
+  this.dependencies = new LinkedHashMap<String, Prepr.Dependency>( dependencies );
+  m_symTable.freeze();
+  m_frozen = true;
+}
+} // class
@@ -0,0 +1,171 @@
+package c99.parser.pp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache of files reduced to their directives by {@link SourceMinimizer}. It can
+ * be used only with {@link IPreprOptions#getDependencyScan()}, to avoid scanning the same
+ * headers for directives over and over when the dependencies of many translation units are
+ * needed.
+ *
+ * <p>Like in {@link FileContentCache}, entries are keyed on the absolute path and are re-validated
+ * against the size and the modification time of the file, so an unchanged file isn't even read.
+ * The minimized form itself is kept per content hash, so identical copies of a file, or a file
+ * which was only touched, are not minimized again.
+ */
+public final class MinimizedSourceCache implements IFileCache
+{
+private static final class Entry
+{
+  final long size;
+  final long lastModified;
+  final ByteBuffer digest;
+  final byte[] data;
+
+  Entry ( final long size, final long lastModified, final ByteBuffer digest, final byte[] data )
+  {
+    this.size = size;
+    this.lastModified = lastModified;
+    this.digest = digest;
+    this.data = data;
+  }
+}
+
+private final long m_budget;
+private long m_usedBytes;
+private final LinkedHashMap<String,Entry> m_map = new LinkedHashMap<String, Entry>( 64, 0.75f, true );
+/** Maps from content hash to the minimized contents */
+private final HashMap<ByteBuffer,byte[]> m_byDigest = new HashMap<ByteBuffer, byte[]>();
+
+private long m_hits;
+private long m_misses;
+
+/**
+ * @param budget the maximum number of minimized bytes to keep in the cache
+ */
+public MinimizedSourceCache ( long budget )
+{
+  m_budget = budget;
+}
+
+private static ByteBuffer digest ( byte[] data )
+{
+  try
+  {
+    return ByteBuffer.wrap( MessageDigest.getInstance( "SHA-1" ).digest( data ) );
+  }
+  catch (NoSuchAlgorithmException e)
+  {
+    throw new RuntimeException( "Unexpected", e );
+  }
+}
+
+@Override
+public byte[] read ( final File file ) throws IOException
+{
+  if (!file.isFile())
+    return null;
+
+  final String key = file.getAbsolutePath();
+  final long size = file.length();
+  final long lastModified = file.lastModified();
+
+  synchronized (this)
+  {
+    Entry e = m_map.get( key );
+    if (e != null && e.size == size && e.lastModified == lastModified)
+    {
+      ++m_hits;
+      return e.data;
+    }
+  }
+
+  // Don't hold the lock while reading and minimizing
+  if (size >= Integer.MAX_VALUE)
+    return null;
+  final byte[] contents = FileContentCache.readFully( file, (int)size );
+  if (contents == null)
+    return null;
+  final ByteBuffer digest = digest( contents );
+
+  byte[] data;
+  synchronized (this)
+  {
+    data = m_byDigest.get( digest );
+  }
+  if (data == null)
+    data = SourceMinimizer.minimize( contents, contents.length );
+
+  synchronized (this)
+  {
+    ++m_misses;
+    Entry old = m_map.remove( key );
+    if (old != null)
+      remove( old );
+
+    if (data.length <= m_budget)
+    {
+      Entry e = new Entry( size, lastModified, digest, data );
+      m_map.put( key, e );
+      m_byDigest.put( digest, data );
+      m_usedBytes += data.length;
+      evict();
+    }
+  }
+
+  return data;
+}
+
+private void remove ( Entry e )
+{
+  m_usedBytes -= e.data.length;
+  // Other paths with the same contents keep their data, but it will be minimized again for new ones
+  if (m_byDigest.get( e.digest ) == e.data)
+    m_byDigest.remove( e.digest );
+}
+
+private void evict ()
+{
+  for ( Iterator<Map.Entry<String,Entry>> it = m_map.entrySet().iterator();
+        m_usedBytes > m_budget && it.hasNext(); )
+  {
+    remove( it.next().getValue() );
+    it.remove();
+  }
+}
+
+public synchronized void clear ()
+{
+  m_map.clear();
+  m_byDigest.clear();
+  m_usedBytes = 0;
+}
+
+public synchronized long getUsedBytes ()
+{
+  return m_usedBytes;
+}
+
+public synchronized int getEntryCount ()
+{
+  return m_map.size();
+}
+
+public synchronized long getHitCount ()
+{
+  return m_hits;
+}
+
+public synchronized long getMissCount ()
+{
+  return m_misses;
+}
+} // class
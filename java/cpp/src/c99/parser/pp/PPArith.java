@@ -0,0 +1,74 @@
+package c99.parser.pp;
+
+import c99.Constant;
+import c99.TypeSpec;
+import c99.parser.Code;
+
+/**
+ * The arithmetic of #if expressions on primitive values. All integer types act as intmax_t or
+ * uintmax_t there (6.10.1 [4]), which are 64-bit, so a value is a long together with a flag
+ * telling whether it is unsigned. Unlike {@link Constant.IntC}, nothing is allocated.
+ */
+final class PPArith
+{
+private PPArith () {}
+
+static
+{
+  assert TypeSpec.INTMAX_T.width == 64 && TypeSpec.UINTMAX_T.width == 64;
+}
+
+static boolean lessThan ( long a, long b, boolean unsigned )
+{
+  return unsigned ? Constant.unsignedLessThan( a, b ) : a < b;
+}
+
+/**
+ * Whether the result of a binary operator is unsigned. The comparison and logical operators
+ * produce an int, the others the type of their operands.
+ */
+static boolean isUnsignedResult ( Code code, boolean unsigned )
+{
+  switch (code)
+  {
+  case LESS: case GREATER: case LESS_EQUALS: case GREATER_EQUALS:
+  case EQUALS_EQUALS: case BANG_EQUALS:
+  case AMPERSAND_AMPERSAND: case VERTICAL_VERTICAL:
+    return false;
+  default:
+    return unsigned;
+  }
+}
+
+/**
+ * Evaluate a binary operator. The operands must already have the same type, except for the
+ * shifts, where {@code unsigned} is the type of the left operand. Division by zero must be
+ * checked by the caller.
+ */
+static long binaryOp ( Code code, long a, long b, boolean unsigned )
+{
+  switch (code)
+  {
+  case ASTERISK: return a * b;
+  case SLASH: return unsigned ? Constant.unsignedDivide( a, b ) : a / b;
+  case PERCENT: return unsigned ? Constant.unsignedRemainder( a, b ) : a % b;
+  case PLUS: return a + b;
+  case MINUS: return a - b;
+  case LESS_LESS: return a << b;
+  case GREATER_GREATER: return unsigned ? a >>> b : a >> b;
+  case LESS: return lessThan( a, b, unsigned ) ? 1 : 0;
+  case GREATER: return lessThan( b, a, unsigned ) ? 1 : 0;
+  case LESS_EQUALS: return !lessThan( b, a, unsigned ) ? 1 : 0;
+  case GREATER_EQUALS: return !lessThan( a, b, unsigned ) ? 1 : 0;
+  case EQUALS_EQUALS: return a == b ? 1 : 0;
+  case BANG_EQUALS: return a != b ? 1 : 0;
+  case AMPERSAND: return a & b;
+  case CARET: return a ^ b;
+  case VERTICAL: return a | b;
+  case AMPERSAND_AMPERSAND: return a != 0 && b != 0 ? 1 : 0;
+  case VERTICAL_VERTICAL: return a != 0 || b != 0 ? 1 : 0;
+  }
+  assert false : code;
+  return 0;
+}
+} // class
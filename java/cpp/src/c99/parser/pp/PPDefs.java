@@ -60,6 +60,17 @@ public static class Token<SYM extends PPSymbol> extends AbstractToken
   private final byte[] m_defaultBuf;
   private byte[] m_text;
 
+  /**
+   * When the lexer doesn't calculate locations, the range encoded by a {@link SourceManager}.
+   * The line and column numbers are calculated from it the first time they are requested.
+   * These fields are kept in addition to the inherited ones, which makes a token 16 bytes
+   * larger: 136 instead of 120 bytes, including the default text buffer, with compressed
+   * references.
+   */
+  private SourceManager m_srcMgr;
+  private long m_srcRange;
+  private boolean m_located;
+
   public Token ()
   {
     m_defaultBuf = new byte[DEFAULT_LEN];
@@ -77,8 +88,20 @@ public static class Token<SYM extends PPSymbol> extends AbstractToken
     copyFrom( tok );
   }
 
+  /** Used by {@link PackedTokens} to create tokens without a buffer; the text is not copied */
+  Token ( Code code, int length, int flags, Object object, byte[] text )
+  {
+    m_defaultBuf = null;
+    m_code = code;
+    m_length = length;
+    m_flags = flags;
+    m_object = object;
+    m_text = text;
+  }
+
   public void copyFrom ( Token tok )
   {
+    m_srcMgr = null;
     m_code = tok.m_code;
     m_length = tok.m_length;
     m_flags = tok.m_flags;
@@ -95,10 +118,96 @@ public static class Token<SYM extends PPSymbol> extends AbstractToken
     m_flags = 0;
     m_object = null;
     m_text = null;
+    m_srcMgr = null;
     this.fileName = null;
     this.line1 = this.col1 = this.line2 = this.col2 = 0;
   }
 
+  /** Set the location as a range encoded by {@code srcMgr}, to be calculated on demand */
+  public final void setCompactRange ( SourceManager srcMgr, long range )
+  {
+    m_srcMgr = srcMgr;
+    m_srcRange = range;
+    m_located = false;
+  }
+
+  /** The line and column numbers are calculated on demand */
+  public final boolean hasLazyLocation ()
+  {
+    return m_srcMgr != null;
+  }
+
+  /** The encoded range of a token with a lazy location */
+  public final long getCompactRange ()
+  {
+    assert m_srcMgr != null;
+    return m_srcRange;
+  }
+
+  public final SourceManager getSourceManager ()
+  {
+    return m_srcMgr;
+  }
+
+  /**
+   * A copy of the location which is independent of the token. A lazy location stays lazy.
+   */
+  public final SourceRange copyRange ()
+  {
+    return m_srcMgr != null ? m_srcMgr.getRange( m_srcRange ) : new SourceRange( this );
+  }
+
+  private void locate ()
+  {
+    if (m_srcMgr != null && !m_located)
+    {
+      m_located = true;
+      m_srcMgr.locate( m_srcRange, this );
+    }
+  }
+
+  @Override
+  public final String getFileName ()
+  {
+    locate();
+    return this.fileName;
+  }
+
+  @Override
+  public final int getLine1 ()
+  {
+    locate();
+    return this.line1;
+  }
+
+  @Override
+  public final int getCol1 ()
+  {
+    locate();
+    return this.col1;
+  }
+
+  @Override
+  public final String getFileName2 ()
+  {
+    locate();
+    return this.fileName2;
+  }
+
+  @Override
+  public final int getLine2 ()
+  {
+    locate();
+    return this.line2;
+  }
+
+  @Override
+  public final int getCol2 ()
+  {
+    locate();
+    return this.col2;
+  }
+
   public final boolean isNoExpand ()
   {
     return (m_flags & 1) != 0;
@@ -197,21 +306,49 @@ public static class Token<SYM extends PPSymbol> extends AbstractToken
     setIntConst( Constant.makeLong( TypeSpec.SINT, value ) );
   }
 
-  public final Constant.IntC getIntConstValue ()
+  /**
+   * Mark the token as an integer pp-number, whose value will be converted from the text
+   * on demand. {@link #setText(byte[], int, int)} must have already been called!
+   */
+  public final void setIntNumber ()
+  {
+    m_code = Code.INT_NUMBER;
+    m_object = null;
+  }
+
+  /**
+   * The value of an integer number, converted from the text and cached the first time it is
+   * requested.
+   * @param reporter reports conversion errors
+   */
+  public final Constant.IntC getIntConstValue ( IErrorReporter reporter )
   {
     assert m_code == Code.INT_NUMBER;
+    if (m_object == null)
+      m_object = PPNumber.parseInteger( this, reporter );
     return (Constant.IntC)m_object;
   }
 
+  /** {@link #setText(byte[], int, int)} must have already been called! */
   public final void setRealConst ( Constant.RealC value )
   {
     m_code = Code.REAL_NUMBER;
     m_object = value;
   }
 
-  public final Constant.RealC getRealConst ()
+  /** Like {@link #setIntNumber()} for floating point numbers */
+  public final void setRealNumber ()
+  {
+    m_code = Code.REAL_NUMBER;
+    m_object = null;
+  }
+
+  /** Like {@link #getIntConstValue(IErrorReporter)} for floating point numbers */
+  public final Constant.RealC getRealConst ( IErrorReporter reporter )
   {
     assert m_code == Code.REAL_NUMBER;
+    if (m_object == null)
+      m_object = PPNumber.parseReal( this, reporter );
     return (Constant.RealC)m_object;
   }
 
@@ -248,12 +385,11 @@ public static class Token<SYM extends PPSymbol> extends AbstractToken
       case STRING_CONST:
         return Arrays.equals( (byte[])m_object, (byte[])tok.m_object );
       case CHAR_CONST:
-      case INT_NUMBER:
         assert m_object instanceof Constant.IntC;
         return ((Constant.IntC)m_object).equals( (Constant.IntC)tok.m_object );
+      case INT_NUMBER:
       case REAL_NUMBER:
-        assert m_object instanceof Constant.RealC;
-        return ((Constant.RealC)m_object).equals( (Constant.RealC)tok.m_object );
+        return true; // The values may not have been converted yet, but the texts are the same
       default:
         assert m_object == null;
         return true;
@@ -279,6 +415,19 @@ public static class Token<SYM extends PPSymbol> extends AbstractToken
       out.write( m_code.printable );
   }
 
+  /** Copy the text of the token, as {@link #output} writes it, into {@code dst} at {@code off} */
+  public final void copyText ( byte[] dst, int off )
+  {
+    final byte[] src;
+    if (m_object instanceof PPSymbol)
+      src = ((PPSymbol)m_object).bytes;
+    else if (m_text != null)
+      src = m_text;
+    else
+      src = m_code.printable;
+    System.arraycopy( src, 0, dst, off, m_length );
+  }
+
   @Override
   public String toString ()
   {
@@ -296,6 +445,16 @@ public static class Token<SYM extends PPSymbol> extends AbstractToken
     return sb.toString();
   }
 
+  final int flags ()
+  {
+    return m_flags;
+  }
+
+  final Object object ()
+  {
+    return m_object;
+  }
+
   public final byte[] text ()
   {
     return m_text;
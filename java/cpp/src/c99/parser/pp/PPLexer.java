@@ -2,6 +2,7 @@ package c99.parser.pp;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import c99.*;
 import c99.parser.Code;
@@ -30,6 +31,20 @@ private LineReader m_reader;
 private int m_end;
 private int m_cur;
 
+/**
+ * If not null, the lexer doesn't calculate line and column numbers: tokens get ranges encoded
+ * by {@link #m_srcMgr} instead. It is enabled by {@link LineReader#setSourceFile(SourceFile)}
+ * followed by {@link #enterSourceManager(SourceManager, int)}.
+ */
+private final SourceFile m_srcFile;
+private SourceManager m_srcMgr;
+/** Added to a file offset to obtain its location */
+private int m_locDelta;
+/** The location of the #include directive of this file */
+private int m_includeLoc;
+/** The file offset of the start of the current token, when {@link #m_srcFile} is set */
+private int m_tokStart;
+
 private Token m_fifo[];
 private int m_fifoHead, m_fifoTail, m_fifoCount, m_fifoCapacity;
 
@@ -41,14 +56,15 @@ private final SourceRange m_tmpRange = new SourceRange();
 /** Special handling after #include */
 private boolean m_parseInclude;
 
-public PPLexer ( final IErrorReporter reporter, String fileName, InputStream input,
-                 final IdentTable<? extends PPSymbol> symTable, int bufSize )
+public PPLexer ( final IErrorReporter reporter, String fileName, LineReader reader,
+                 final IdentTable<? extends PPSymbol> symTable )
 {
   m_reporter = reporter;
   m_symTable = symTable;
   m_fileName = fileName;
   m_actualFileName = fileName;
-  m_reader = new LineReader( input, bufSize );
+  m_reader = reader;
+  m_srcFile = reader.getSourceFile();
   m_end = m_cur = 0;
 
   m_fifoHead = m_fifoTail = m_fifoCount = 0;
@@ -62,10 +78,16 @@ public PPLexer ( final IErrorReporter reporter, String fileName, InputStream inp
   nextLine();
 }
 
+public PPLexer ( final IErrorReporter reporter, String fileName, InputStream input,
+                 final IdentTable<? extends PPSymbol> symTable, int bufSize )
+{
+  this( reporter, fileName, new LineReader( input, bufSize ), symTable );
+}
+
 public PPLexer ( final IErrorReporter reporter, String fileName, InputStream input,
                  final IdentTable<? extends PPSymbol> symTable )
 {
-  this( reporter, fileName, input, symTable, 16384 );
+  this( reporter, fileName, input, symTable, LineReader.DEFAULT_BUF_SIZE );
 }
 
 public final void close ()
@@ -73,6 +95,42 @@ public final void close ()
   m_reader.close();
 }
 
+/**
+ * Record a #line directive applying from physical line {@code line}, with the current file name.
+ * Only needed when locations are calculated lazily.
+ */
+final void addLineDirective ( int line, int adjustment )
+{
+  if (m_srcFile != null)
+    m_srcFile.addLineDirective( line, m_fileName, adjustment );
+}
+
+/**
+ * Start allocating the locations of the tokens from {@code srcMgr}.
+ * @param includeLoc the location of the #include directive of the file, or
+ *    {@link SourceManager#NO_LOCATION}
+ */
+final void enterSourceManager ( SourceManager srcMgr, int includeLoc )
+{
+  assert m_srcFile != null;
+  m_srcMgr = srcMgr;
+  m_includeLoc = includeLoc;
+  m_locDelta = srcMgr.addEntry( m_srcFile, m_reader.lineStartOffset(), includeLoc );
+}
+
+/** Another file is being included. Locations will not be allocated until {@link #resumeSourceManager()} */
+final void suspendSourceManager ()
+{
+  if (m_srcMgr != null)
+    m_srcMgr.closeEntry( m_reader.consumedOffset() );
+}
+
+final void resumeSourceManager ()
+{
+  if (m_srcMgr != null)
+    m_locDelta = m_srcMgr.addEntry( m_srcFile, m_reader.lineStartOffset(), m_includeLoc );
+}
+
 public final String getActualFileName ()
 {
   return m_actualFileName;
@@ -91,9 +149,31 @@ private final void reportError ( ISourceRange pos, String msg, Object... args )
     m_reporter.warning( pos, msg, args );
 }
 
+private final void rangeStart ( int from )
+{
+  if (m_srcFile != null)
+    m_tokStart = m_reader.fileOffset( from );
+  else
+    m_reader.calcRangeStart( from, m_workTok );
+}
+
+/** Set the end of the current token, {@code to} being exclusive */
+private final void rangeEnd ( int to )
+{
+  if (m_srcFile != null)
+  {
+    // Map the last byte rather than the one after it, which may be on the next line of a
+    // line continuation
+    final int end = to > m_reader.getLineStart() ? m_reader.fileOffset( to - 1 ) + 1 : m_reader.fileOffset( to );
+    m_workTok.setCompactRange( m_srcMgr, SourceManager.range( m_locDelta + m_tokStart, m_locDelta + end ) );
+  }
+  else
+    m_reader.calcRangeEnd( to, m_workTok );
+}
+
 private final void calcEndPosAndReportError ( int cur, String msg, Object... args )
 {
-  m_reader.calcRangeEnd( cur, m_workTok );
+  rangeEnd( cur );
   reportError( m_workTok, msg, args );
 }
 
@@ -161,32 +241,32 @@ private final Token getFifoToken ( int headOffset )
   return m_fifo[(m_fifoHead + headOffset) & (m_fifoCapacity -1)];
 }
 
-private boolean isSpace ( int c )
+private static boolean isSpace ( int c )
 {
   return c == 32 || c == 9 || c == 11 || c == 12 || c == 13;
 }
 
-private boolean isAnySpace ( int c )
+private static boolean isAnySpace ( int c )
 {
   return c == 32 || c >= 9 && c <= 13;
 }
 
-private boolean isNewLine ( int c )
+private static boolean isNewLine ( int c )
 {
   return c == 10 || c == 13;
 }
 
-private boolean isIdentStart ( int c )
+private static boolean isIdentStart ( int c )
 {
   return c == '_' || (c|32) >= 'a' && (c|32) <= 'z';
 }
 
-private boolean isIdentBody ( int c )
+private static boolean isIdentBody ( int c )
 {
   return c == '_' || c >= '0' && c <= '9' || (c|32) >= 'a' && (c|32) <= 'z';
 }
 
-private boolean isDigit ( int c )
+private static boolean isDigit ( int c )
 {
   return c >= '0' && c <= '9';
 }
@@ -368,7 +448,7 @@ loop:
       str.write( buf[cur] & 255 );
   }
 
-  m_reader.calcRangeEnd( cur, m_workTok );
+  rangeEnd( cur );
   m_cur = cur;
   return str.toByteArray();
 }
@@ -414,243 +494,13 @@ private void parseStringConst ( int cur )
   m_workTok.setStringConst( m_reader.getLineBuf(), start, m_cur - start, value );
 }
 
-private static final Constant.IntC s_int0 = Constant.makeLong( TypeSpec.SINT, 0 );
-private static final Constant.IntC s_intMaxZero = Constant.makeLong( TypeSpec.INTMAX_T, 0 );
-private static final Constant.IntC s_eight = Constant.makeLong( TypeSpec.UINTMAX_T, 8 );
-private static final Constant.IntC s_ten = Constant.makeLong( TypeSpec.UINTMAX_T, 10 );
-private static final Constant.IntC s_sixteen = Constant.makeLong( TypeSpec.UINTMAX_T, 16 );
-
-private static final Constant.IntC s_intMax_Max =
-   Constant.makeLong( TypeSpec.UINTMAX_T, TypeSpec.INTMAX_T.maxValue );
-
-// the valid suffixes are u[l], ull, l[u], ll[u]
-// state > 23 indicates end. bit 0 is unsigned, bits 1..2 long/long long
-static final byte s_intSuffixTab[]  = {
-               // EOF,   u,   l
-   /* 0 .    */  0x40, 1*3, 4*3,
-   /* 1 u.   */  0x41, 100, 2*3,
-   /* 2 ul.  */  0x43, 100, 3*3,
-   /* 3 ull. */  0x45, 100, 100,
-   /* 4 l.   */  0x42, 7*3, 5*3,
-   /* 5 ll.  */  0x44, 6*3, 100,
-   /* 6 llu. */  0x45, 100, 100,
-   /* 7 lu.  */  0x43, 100, 100,
-                 100,
-};
-
-private final Constant.IntC parsePPInteger ( Token tok )
-{
-  int i = 0;
-  int to = tok.textLen();
-  byte[] text = tok.text();
-
-  boolean err = false;
-  Constant.IntC radixC = s_ten;
-  int radix = 10;
-
-  if (text[i] == '0')
-  {
-    ++i;
-    if (i == to)
-      return s_int0;
-    if ((text[i] | 32) == 'x')
-    {
-      ++i;
-      if (i == to)
-      {
-        reportError( tok, "Invalid integer prefix" );
-        return s_int0;
-      }
-      radixC = s_sixteen;
-      radix = 16;
-    }
-    else
-    {
-      radixC = s_eight;
-      radix = 8;
-    }
-  }
-
-  Constant.IntC res = Constant.makeLong( TypeSpec.UINTMAX_T, 0 );
-  Constant.IntC tmp = Constant.newIntConstant( TypeSpec.UINTMAX_T );
-  Constant.IntC digitC = Constant.newIntConstant( TypeSpec.UINTMAX_T );
-
-  for (; i < to; ++i )
-  {
-    char ch = (char)(text[i] & 255 | 32);
-    if (ch == 'u' || ch == 'l')
-      break;
-
-    int digit;
-    if ((digit = fromXDigit( ch )) < 0 || digit >= radix)
-    {
-      if (!err)
-      {
-        err = true;
-        reportError( tok, "not a valid integer" );
-        break;
-      }
-    }
-
-    // *= 10
-    tmp.mul( res, radixC );
-    if (tmp.lt( res ))
-    {
-      if (!err)
-      {
-        err = true;
-        reportError( tok, "Constant is too large" );
-      }
-    }
-
-    // += digit
-    digitC.setLong( digit );
-    res.add( tmp, digitC );
-    if (res.lt( tmp ))
-    {
-      if (!err)
-      {
-        err = true;
-        reportError( tok, "Constant is too large" );
-      }
-    }
-  }
-
-  boolean mustBeUnsigned = false;
-  int mustBeLong = 0;
-
-  if (i < to) // Suffix detected
-  {
-    assert s_intSuffixTab.length == 24 + 1; // 8 states * 3 + 1 extra
-    int state = 0;
-    do
-      if (i < to)
-      {
-        int ch = text[i++]&255|32;
-        if (ch == 'u') state += 1; else if (ch == 'l') state += 2; else state = 24;
-      }
-    while ( (state = s_intSuffixTab[state]) <= 23);
-
-    if (state == 100)
-    {
-      if (!err)
-      {
-        err = true;
-        reportError( tok, "Invalid integer suffix" );
-      }
-      mustBeUnsigned = true;
-      mustBeLong = 2;
-    }
-    else
-    {
-      mustBeUnsigned = (state & 1) != 0;
-      mustBeLong = (state >>> 1) & 3;
-    }
-  }
-
-  boolean mustBeSigned = !mustBeUnsigned && radix == 10;
-
-  // Determine the type
-  int typeOrd;
-  int step = 1;
-  if (mustBeLong == 1)
-    typeOrd = TypeSpec.SLONG.ordinal();
-  else if (mustBeLong == 2)
-    typeOrd = TypeSpec.SLLONG.ordinal();
-  else
-    typeOrd = TypeSpec.SINT.ordinal();
-  if (mustBeUnsigned)
-  {
-    assert TypeSpec.values()[typeOrd].signed && !TypeSpec.values()[typeOrd+1].signed;
-    ++typeOrd;
-    step = 2;
-  }
-  else if (mustBeSigned)
-    step = 2;
-
-  TypeSpec type;
-  for( ;; typeOrd += step )
-  {
-    type = TypeSpec.values()[typeOrd];
-    tmp.setLong( type.maxValue );
-    if (res.le( tmp ))
-      break;
-    if (typeOrd + step > TypeSpec.ULLONG.ordinal())
-    {
-      if (!err)
-      {
-        err = true;
-        reportWarning( tok, "Constant is too large" );
-        break;
-      }
-    }
-  }
-
-  if (res.spec != type)
-  {
-    Constant.IntC cvtRes = Constant.newIntConstant( type );
-    cvtRes.castFrom( res );
-    return cvtRes;
-  }
-  else
-    return res;
-}
-
-private final Constant.RealC parsePPReal ( Token tok )
-{
-  // Separate the suffix
-  byte[] text = tok.text();
-  int e = tok.textLen();
-  int suff = 0;
-  if (e > 0 && ((text[e-1] | 32) == 'f' || (text[e-1] | 32) == 'l'))
-  {
-    suff = text[e-1] | 32;
-    --e;
-  }
-
-  double x;
-  try
-  {
-    x = Double.parseDouble( Utils.asciiString( text, 0, e ) );
-  }
-  catch (NumberFormatException ex)
-  {
-    reportError( tok, "Invalid floating point constant" );
-    x = 1;
-  }
-
-  if (suff == 'f')
-  {
-    if (x < TypeSpec.FLOAT.minReal || x > TypeSpec.FLOAT.maxReal)
-    {
-      reportError( tok, "Constant is outside of 'float' range" );
-      x = 1;
-    }
-    return Constant.makeDouble( TypeSpec.FLOAT, x );
-  }
-  else if (suff == 'l')
-  {
-    if (x < TypeSpec.LDOUBLE.minReal || x > TypeSpec.LDOUBLE.maxReal)
-    {
-      reportError( tok, "Constant is outside of 'long double' range" );
-      x = 1;
-    }
-    return Constant.makeDouble( TypeSpec.LDOUBLE, x );
-  }
-  else
-  {
-    if (x < TypeSpec.DOUBLE.minReal || x > TypeSpec.DOUBLE.maxReal)
-    {
-      reportError( tok, "Constant is outside of 'double' range" );
-      x = 1;
-    }
-    return Constant.makeDouble( TypeSpec.DOUBLE, x );
-  }
-}
-
-private final void parsePunctuator ( int cur )
+/**
+ * Scan a punctuator (or a single unrecognized character) starting at {@code cur} into {@code tok}.
+ * Up to two bytes past the punctuator may be examined.
+ * @return the position after the punctuator
+ */
+private static int scanPunctuator ( byte[] buf, int cur, Token tok )
 {
-  byte[] buf = m_reader.getLineBuf();
   Code code;
 
   switch (buf[cur])
@@ -836,13 +686,111 @@ private final void parsePunctuator ( int cur )
       break;
 
     default:
-      m_workTok.setOther( Code.OTHER, buf, cur++, 1 );
-      m_cur = cur;
-      return;
+      tok.setOther( Code.OTHER, buf, cur, 1 );
+      return cur + 1;
   }
 
-  m_workTok.setCode( code );
-  m_cur = cur;
+  tok.setCode( code );
+  return cur;
+}
+
+/**
+ * Scan a pp-number starting at {@code cur} into {@code tok}.
+ * @return the position after the number
+ */
+private static int scanNumber ( byte[] buf, int cur, Token tok )
+{
+  final int start = cur;
+  boolean real = buf[cur] == '.';
+  ++cur;
+  for(;;)
+  {
+    if (((buf[cur] | 32) == 'e' || (buf[cur] | 32) == 'p') &&
+             (buf[cur+1] == '+' || buf[cur+1] == '-'))
+    {
+      real = true;
+      cur += 2;
+    }
+    else if (buf[cur] == '.')
+    {
+      real = true;
+      ++cur;
+    }
+    else if (isDigit( buf[cur] ) || isIdentStart( buf[cur] ))
+    {
+      ++cur;
+    }
+    else
+      break;
+  }
+
+  tok.setText( buf, start, cur - start );
+  if (!real)
+    tok.setIntNumber();
+  else
+    tok.setRealNumber();
+  return cur;
+}
+
+/**
+ * Scan a character or string constant without escape sequences. Pasting can produce only such
+ * constants: one of the pasted tokens must be a lone quote.
+ * @return the position after the constant, or -1 if it isn't a valid one
+ */
+private static int scanSimpleConst ( byte[] buf, int from, int to, Token tok )
+{
+  final byte quote = buf[from];
+  int cur = from + 1;
+  while (cur < to && buf[cur] != quote && buf[cur] != '\\')
+    ++cur;
+  if (cur == to || buf[cur] != quote)
+    return -1;
+  ++cur;
+
+  if (quote == '"')
+    tok.setStringConst( buf, from, cur - from, Arrays.copyOfRange( buf, from + 1, cur - 1 ) );
+  else if (cur - from == 3)
+    tok.setCharConst( buf, from, 3, Constant.makeLong( TypeSpec.SINT, buf[from+1] & 255 ) );
+  else
+    return -1;
+  return cur;
+}
+
+/**
+ * Lex the bytes {@code buf[from..to)} into {@code tok}, without a reader or a lexer instance.
+ * It is used to re-lex the result of token pasting. There must be at least two zero bytes after
+ * {@code to}. The location of the token is not set.
+ *
+ * @return true if the bytes form exactly one valid token
+ */
+static boolean lexSingleToken ( IdentTable<? extends PPSymbol> symTable, byte[] buf, int from, int to,
+                                Token tok )
+{
+  tok.reset();
+  if (from == to)
+    return false;
+
+  final int ch = buf[from];
+  int cur;
+  if (isDigit( ch ) || ch == '.' && isDigit( buf[from+1] ))
+    cur = scanNumber( buf, from, tok );
+  else if (ch == '"' || ch == '\'')
+    cur = scanSimpleConst( buf, from, to, tok );
+  else if (isIdentStart( ch ))
+  {
+    int hash = IdentTable.HASH_SEED;
+    cur = from;
+    do
+      hash = IdentTable.hashStep( hash, buf[cur++] );
+    while (isIdentBody( buf[cur] ));
+    tok.setIdent( symTable.symbol( buf, from, cur - from, hash ) );
+  }
+  else if (isAnySpace( ch ) || ch == '/' && (buf[from+1] == '/' || buf[from+1] == '*'))
+    return false; // Whitespace or a comment
+  else
+    cur = scanPunctuator( buf, from, tok );
+
+  return cur == to;
 }
 
 public final void setFileName ( String fileName )
@@ -866,7 +814,7 @@ private final void parseNextToken ( Token tok )
   byte[] buf = m_reader.getLineBuf();
   int cur = m_cur;
 
-  m_reader.calcRangeStart( cur, m_workTok );
+  rangeStart( cur );
 
   // Skip all whitespace
   int ws = 0; // bit 0 is new-line, bit 1 is whitespace
@@ -946,37 +894,8 @@ private final void parseNextToken ( Token tok )
   else if (isDigit( buf[cur] ) ||
            buf[cur] == '.' && isDigit( buf[cur+1] ))
   {
-    boolean real = buf[cur] == '.';
-    ++cur;
-    for(;;)
-    {
-      if (((buf[cur] | 32) == 'e' || (buf[cur] | 32) == 'p') &&
-               (buf[cur+1] == '+' || buf[cur+1] == '-'))
-      {
-        real = true;
-        cur += 2;
-      }
-      else if (buf[cur] == '.')
-      {
-        real = true;
-        ++cur;
-      }
-      else if (isDigit( buf[cur] ) || isIdentStart( buf[cur] ))
-      {
-        ++cur;
-      }
-      else
-        break;
-    }
-
-    m_workTok.setText( buf, m_cur, cur - m_cur );
-    m_reader.calcRangeEnd( cur, m_workTok );
-
-    if (!real)
-      m_workTok.setIntConst( parsePPInteger( m_workTok ) );
-    else
-      m_workTok.setRealConst( parsePPReal( m_workTok ) );
-
+    cur = scanNumber( buf, cur, m_workTok );
+    rangeEnd( cur );
     m_cur = cur;
     return;
   }
@@ -1019,42 +938,49 @@ private final void parseNextToken ( Token tok )
   //
   else if (isIdentStart( buf[cur] ))
   {
+    int hash = IdentTable.HASH_SEED;
     do
-      ++cur;
+      hash = IdentTable.hashStep( hash, buf[cur++] );
     while (isIdentBody( buf[cur] ));
 
-    m_workTok.setIdent( m_symTable.symbol( buf, m_cur, cur - m_cur ) );
+    m_workTok.setIdent( m_symTable.symbol( buf, m_cur, cur - m_cur, hash ) );
   }
   // Punctuators
   //
   else
   {
-    parsePunctuator( cur );
-    m_reader.calcRangeEnd( m_cur, m_workTok );
+    m_cur = scanPunctuator( buf, cur, m_workTok );
+    rangeEnd( m_cur );
     return;
   }
 
-  m_reader.calcRangeEnd( cur, m_workTok );
+  rangeEnd( cur );
   m_cur = cur;
 }
 
-/** Discard whole lines quickly in false conditionals. The only complication is that we
- * need to check for and handle comments */
-final Token discardLine ()
+/**
+ * Discard the rest of the current line, starting from {@code cur}. The only complication is
+ * that we need to check for and handle comments, which may continue on the following lines.
+ * On return the last line of the comment, if any, has been consumed too.
+ *
+ * @param literals skip over character and string literals, so that something looking like
+ *        a comment in them is ignored. Not done in false conditionals, where an unmatched
+ *        quote (an apostrophe in plain text) is common.
+ */
+private final void discardRestOfLine ( int cur, boolean literals )
 {
-  releaseFifoToken( m_lastTok );
-  assert getFifoCount() == 0;
-
-  m_workTok = newFifoToken();
-  m_workTok.setFileName( m_fileName );
-
   byte[] buf = m_reader.getLineBuf();
-  int cur = m_cur;
 
-  m_reader.calcRangeStart( cur, m_workTok );
   while (cur < m_end)
   {
-    if (buf[cur] == '/')
+    if (literals && (buf[cur] == '"' || buf[cur] == '\''))
+    {
+      final byte quote = buf[cur++];
+      while (cur < m_end && buf[cur] != quote)
+        cur += buf[cur] == '\\' ? 2 : 1;
+      ++cur;
+    }
+    else if (buf[cur] == '/')
     {
       ++cur;
       if (buf[cur] == '/') // line comment
@@ -1092,6 +1018,23 @@ final Token discardLine ()
     else
       ++cur;
   }
+}
+
+/**
+ * Discard whole lines quickly in false conditionals, or in active code when only scanning for
+ * dependencies.
+ * @param literals see {@link #discardRestOfLine(int, boolean)}
+ */
+final Token discardLine ( boolean literals )
+{
+  releaseFifoToken( m_lastTok );
+  assert getFifoCount() == 0;
+
+  m_workTok = newFifoToken();
+  m_workTok.setFileName( m_fileName );
+
+  m_reader.calcRangeStart( m_cur, m_workTok );
+  discardRestOfLine( m_cur, literals );
 
   if (nextLine())
   {
@@ -1107,6 +1050,78 @@ final Token discardLine ()
   return m_lastTok = m_workTok;
 }
 
+/**
+ * Skip whole lines in false conditionals without tokenizing them, stopping at the start of
+ * the first line which may contain a directive, or at EOF.
+ *
+ * <p>A line can be skipped if its first non-blank character is not '#'. Lines starting with
+ * a comment or with a character or string literal (which may contain something looking like
+ * a comment) are left to the tokenizer and {@link #discardLine(boolean)}, so the result is exactly
+ * the same as discarding the lines one by one. Must be invoked at the start of a line.
+ */
+final void skipLines ()
+{
+  assert getFifoCount() == 0 || getFifoCount() == 1 && getFifoHead() == m_lastTok;
+
+  for(;;)
+  {
+    final byte[] buf = m_reader.getLineBuf();
+    int cur = m_cur;
+    while (isSpace( buf[cur] ))
+      ++cur;
+
+    if (cur < m_end)
+    {
+      int ch = buf[cur];
+      if (ch == '#' || ch == '/' || ch == '"' || ch == '\'')
+        return;
+      if (isIdentStart( ch ))
+      {
+        do
+          ++cur;
+        while (isIdentBody( buf[cur] ));
+        // An encoding prefix of a literal
+        if (buf[cur] == '"' || buf[cur] == '\'')
+          return;
+      }
+
+      discardRestOfLine( cur, false );
+    }
+
+    if (!nextLine())
+      return;
+  }
+}
+
+/**
+ * Skip whole lines of active code when only scanning for dependencies, stopping at the start of
+ * the first line which may contain a directive, or at EOF. Literals are recognized, so unlike
+ * {@link #skipLines()} only lines starting with '#' or a comment need the tokenizer.
+ * Must be invoked at the start of a line.
+ */
+final void scanLines ()
+{
+  assert getFifoCount() == 0 || getFifoCount() == 1 && getFifoHead() == m_lastTok;
+
+  for(;;)
+  {
+    final byte[] buf = m_reader.getLineBuf();
+    int cur = m_cur;
+    while (isSpace( buf[cur] ))
+      ++cur;
+
+    if (cur < m_end)
+    {
+      if (buf[cur] == '#' || buf[cur] == '/')
+        return;
+      discardRestOfLine( cur, true );
+    }
+
+    if (!nextLine())
+      return;
+  }
+}
+
 final Token nextIncludeToken ()
 {
   releaseFifoToken( m_lastTok );
@@ -0,0 +1,329 @@
+package c99.parser.pp;
+
+import c99.Constant;
+import c99.IErrorReporter;
+import c99.TypeSpec;
+import c99.Utils;
+import c99.parser.pp.PPDefs.Token;
+
+/**
+ * Conversion of pp-numbers to values. The lexer only records the text of a number; the
+ * conversion is performed the first time the value is needed (see
+ * {@link Token#getIntConstValue(IErrorReporter)}), so numbers which are only copied to the
+ * output are never converted.
+ */
+final class PPNumber
+{
+private PPNumber () {}
+
+private static int fromXDigit ( int ch )
+{
+  ch |= 32;
+  if (ch >= '0' && ch <= '9')
+    return ch - '0';
+  else if (ch >= 'a' && ch <= 'f')
+    return ch - ('a' - 10);
+  else
+    return -1;
+}
+
+private static final Constant.IntC s_int0 = Constant.makeLong( TypeSpec.SINT, 0 );
+private static final Constant.IntC s_eight = Constant.makeLong( TypeSpec.UINTMAX_T, 8 );
+private static final Constant.IntC s_ten = Constant.makeLong( TypeSpec.UINTMAX_T, 10 );
+private static final Constant.IntC s_sixteen = Constant.makeLong( TypeSpec.UINTMAX_T, 16 );
+
+// the valid suffixes are u[l], ull, l[u], ll[u]
+// state > 23 indicates end. bit 0 is unsigned, bits 1..2 long/long long
+private static final byte s_intSuffixTab[]  = {
+               // EOF,   u,   l
+   /* 0 .    */  0x40, 1*3, 4*3,
+   /* 1 u.   */  0x41, 100, 2*3,
+   /* 2 ul.  */  0x43, 100, 3*3,
+   /* 3 ull. */  0x45, 100, 100,
+   /* 4 l.   */  0x42, 7*3, 5*3,
+   /* 5 ll.  */  0x44, 6*3, 100,
+   /* 6 llu. */  0x45, 100, 100,
+   /* 7 lu.  */  0x43, 100, 100,
+                 100,
+};
+
+/**
+ * Run the suffix of an integer through {@link #s_intSuffixTab}.
+ * @return the final state: 100 if the suffix is invalid
+ */
+private static int parseIntSuffix ( byte[] text, int i, int to )
+{
+  assert s_intSuffixTab.length == 24 + 1; // 8 states * 3 + 1 extra
+  int state = 0;
+  do
+    if (i < to)
+    {
+      int ch = text[i++]&255|32;
+      if (ch == 'u') state += 1; else if (ch == 'l') state += 2; else state = 24;
+    }
+  while ( (state = s_intSuffixTab[state]) <= 23);
+  return state;
+}
+
+/** The value of an integer in a #if expression, see {@link #parseIntMax} */
+static final class IntMax
+{
+  long value;
+  /** The type is uintmax_t rather than intmax_t */
+  boolean unsigned;
+}
+
+/**
+ * Convert an integer in a #if expression without allocating. All integer types act as
+ * intmax_t or uintmax_t there (6.10.1 [4]), so the number is unsigned only if it has an 'u'
+ * suffix. Only well-formed numbers below 2**57 are handled; the others may need diagnostics.
+ *
+ * @return false if the number must be converted by {@link #parseInteger} instead
+ */
+static boolean parseIntMax ( Token tok, IntMax res )
+{
+  final int to = tok.textLen();
+  final byte[] text = tok.text();
+  int i = 0;
+  int radix = 10;
+
+  if (text[0] == '0')
+  {
+    if (to > 1 && (text[1] | 32) == 'x')
+    {
+      i = 2;
+      radix = 16;
+      if (i == to)
+        return false;
+    }
+    else
+      radix = 8;
+  }
+
+  long value = 0;
+  for ( ; i < to; ++i )
+  {
+    final int ch = text[i] & 255 | 32;
+    if (ch == 'u' || ch == 'l')
+      break;
+    final int digit = fromXDigit( ch );
+    if (digit < 0 || digit >= radix || (value >>> 57) != 0)
+      return false;
+    value = value * radix + digit;
+  }
+
+  boolean unsigned = false;
+  if (i < to)
+  {
+    final int state = parseIntSuffix( text, i, to );
+    if (state == 100)
+      return false;
+    unsigned = (state & 1) != 0;
+  }
+
+  res.value = value;
+  res.unsigned = unsigned;
+  return true;
+}
+
+static Constant.IntC parseInteger ( Token tok, IErrorReporter reporter )
+{
+  int i = 0;
+  int to = tok.textLen();
+  byte[] text = tok.text();
+
+  boolean err = false;
+  Constant.IntC radixC = s_ten;
+  int radix = 10;
+
+  if (text[i] == '0')
+  {
+    ++i;
+    if (i == to)
+      return s_int0;
+    if ((text[i] | 32) == 'x')
+    {
+      ++i;
+      if (i == to)
+      {
+        reporter.error( tok, "Invalid integer prefix" );
+        return s_int0;
+      }
+      radixC = s_sixteen;
+      radix = 16;
+    }
+    else
+    {
+      radixC = s_eight;
+      radix = 8;
+    }
+  }
+
+  Constant.IntC res = Constant.makeLong( TypeSpec.UINTMAX_T, 0 );
+  Constant.IntC tmp = Constant.newIntConstant( TypeSpec.UINTMAX_T );
+  Constant.IntC digitC = Constant.newIntConstant( TypeSpec.UINTMAX_T );
+
+  for (; i < to; ++i )
+  {
+    char ch = (char)(text[i] & 255 | 32);
+    if (ch == 'u' || ch == 'l')
+      break;
+
+    int digit;
+    if ((digit = fromXDigit( ch )) < 0 || digit >= radix)
+    {
+      if (!err)
+      {
+        err = true;
+        reporter.error( tok, "not a valid integer" );
+        break;
+      }
+    }
+
+    // *= 10
+    tmp.mul( res, radixC );
+    if (tmp.lt( res ))
+    {
+      if (!err)
+      {
+        err = true;
+        reporter.error( tok, "Constant is too large" );
+      }
+    }
+
+    // += digit
+    digitC.setLong( digit );
+    res.add( tmp, digitC );
+    if (res.lt( tmp ))
+    {
+      if (!err)
+      {
+        err = true;
+        reporter.error( tok, "Constant is too large" );
+      }
+    }
+  }
+
+  boolean mustBeUnsigned = false;
+  int mustBeLong = 0;
+
+  if (i < to) // Suffix detected
+  {
+    final int state = parseIntSuffix( text, i, to );
+    if (state == 100)
+    {
+      if (!err)
+      {
+        err = true;
+        reporter.error( tok, "Invalid integer suffix" );
+      }
+      mustBeUnsigned = true;
+      mustBeLong = 2;
+    }
+    else
+    {
+      mustBeUnsigned = (state & 1) != 0;
+      mustBeLong = (state >>> 1) & 3;
+    }
+  }
+
+  boolean mustBeSigned = !mustBeUnsigned && radix == 10;
+
+  // Determine the type
+  int typeOrd;
+  int step = 1;
+  if (mustBeLong == 1)
+    typeOrd = TypeSpec.SLONG.ordinal();
+  else if (mustBeLong == 2)
+    typeOrd = TypeSpec.SLLONG.ordinal();
+  else
+    typeOrd = TypeSpec.SINT.ordinal();
+  if (mustBeUnsigned)
+  {
+    assert TypeSpec.values()[typeOrd].signed && !TypeSpec.values()[typeOrd+1].signed;
+    ++typeOrd;
+    step = 2;
+  }
+  else if (mustBeSigned)
+    step = 2;
+
+  TypeSpec type;
+  for( ;; typeOrd += step )
+  {
+    type = TypeSpec.values()[typeOrd];
+    tmp.setLong( type.maxValue );
+    if (res.le( tmp ))
+      break;
+    if (typeOrd + step > TypeSpec.ULLONG.ordinal())
+    {
+      if (!err)
+      {
+        err = true;
+        reporter.warning( tok, "Constant is too large" );
+        break;
+      }
+    }
+  }
+
+  if (res.spec != type)
+  {
+    Constant.IntC cvtRes = Constant.newIntConstant( type );
+    cvtRes.castFrom( res );
+    return cvtRes;
+  }
+  else
+    return res;
+}
+
+static Constant.RealC parseReal ( Token tok, IErrorReporter reporter )
+{
+  // Separate the suffix
+  byte[] text = tok.text();
+  int e = tok.textLen();
+  int suff = 0;
+  if (e > 0 && ((text[e-1] | 32) == 'f' || (text[e-1] | 32) == 'l'))
+  {
+    suff = text[e-1] | 32;
+    --e;
+  }
+
+  double x;
+  try
+  {
+    x = Double.parseDouble( Utils.asciiString( text, 0, e ) );
+  }
+  catch (NumberFormatException ex)
+  {
+    reporter.error( tok, "Invalid floating point constant" );
+    x = 1;
+  }
+
+  if (suff == 'f')
+  {
+    if (x < TypeSpec.FLOAT.minReal || x > TypeSpec.FLOAT.maxReal)
+    {
+      reporter.error( tok, "Constant is outside of 'float' range" );
+      x = 1;
+    }
+    return Constant.makeDouble( TypeSpec.FLOAT, x );
+  }
+  else if (suff == 'l')
+  {
+    if (x < TypeSpec.LDOUBLE.minReal || x > TypeSpec.LDOUBLE.maxReal)
+    {
+      reporter.error( tok, "Constant is outside of 'long double' range" );
+      x = 1;
+    }
+    return Constant.makeDouble( TypeSpec.LDOUBLE, x );
+  }
+  else
+  {
+    if (x < TypeSpec.DOUBLE.minReal || x > TypeSpec.DOUBLE.maxReal)
+    {
+      reporter.error( tok, "Constant is outside of 'double' range" );
+      x = 1;
+    }
+    return Constant.makeDouble( TypeSpec.DOUBLE, x );
+  }
+}
+} // class
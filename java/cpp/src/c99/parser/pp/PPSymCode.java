@@ -15,7 +15,8 @@ DEFINED("defined"),
 UNDEF("undef"),
 ERROR("error"),
 PRAGMA("pragma"),
-VA_ARGS("__VA_ARGS__");
+VA_ARGS("__VA_ARGS__"),
+ONCE("once");
 
 public final String name;
 
@@ -7,8 +7,8 @@ public class PPSymbol extends Ident
 public PPSymCode ppCode;
 public Object ppDecl;
 
-public PPSymbol ( byte[] bytes, int hash )
+public PPSymbol ( byte[] bytes, int id )
 {
-  super( bytes, hash );
+  super( bytes, id );
 }
 }
@@ -0,0 +1,286 @@
+package c99.parser.pp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import c99.Constant;
+import c99.TypeSpec;
+import c99.Utils;
+import c99.parser.Code;
+
+/**
+ * An immutable sequence of tokens stored in parallel arrays instead of as a list of token
+ * objects. It is used for macro replacement lists, which live as long as the macro, so that
+ * a large number of macros doesn't keep millions of token objects alive.
+ *
+ * <p>The text of all tokens is kept in a single byte array. Locations are not kept: the tokens
+ * of an expanded macro always get the location of the macro invocation.
+ *
+ * <p>Macro parameters are stored with their {@link ParamDecl}. A {@link ConcatToken} is stored
+ * as an element with code {@link Code#CONCAT} immediately followed by its children.
+ * Elements are addressed by index; {@link #next(int)} skips over the children of a concatenation.
+ */
+final class PackedTokens
+{
+private static final Code[] s_codes = Code.values();
+private static final TypeSpec[] s_specs = TypeSpec.values();
+
+/** Set in {@link #m_flags} for parameters which must be stringified */
+private static final int STRINGIFY = 0x80;
+
+static final PackedTokens EMPTY = new PackedTokens( 0, 0 );
+
+private final short[] m_codes;
+/** The flags of the token, or {@link #STRINGIFY} */
+private final byte[] m_flags;
+/** The length of the token */
+private final int[] m_lengths;
+/** The offset of the text in {@link #m_text}, -1 if none; the number of children for CONCAT */
+private final int[] m_textOfs;
+/** The symbol, the value of a constant or the {@link ParamDecl} of a parameter */
+private final Object[] m_objects;
+private byte[] m_text;
+private int m_size;
+
+private PackedTokens ( int capacity, int textCapacity )
+{
+  m_codes = new short[capacity];
+  m_flags = new byte[capacity];
+  m_lengths = new int[capacity];
+  m_textOfs = new int[capacity];
+  m_objects = new Object[capacity];
+  m_text = new byte[textCapacity];
+}
+
+private static int countElements ( TokenList<PPDefs.AbstractToken> list )
+{
+  int count = 0;
+  for ( PPDefs.AbstractToken tok : list )
+    count += tok instanceof ConcatToken ? ((ConcatToken)tok).tokens.length + 1 : 1;
+  return count;
+}
+
+static PackedTokens pack ( TokenList<PPDefs.AbstractToken> list )
+{
+  if (list.isEmpty())
+    return EMPTY;
+
+  PackedTokens res = new PackedTokens( countElements( list ), 0 );
+  int textLen = 0;
+  for ( PPDefs.AbstractToken tok : list )
+    textLen = res.add( tok, textLen );
+
+  assert res.m_size == res.m_codes.length;
+  if (textLen < res.m_text.length)
+    res.m_text = Arrays.copyOf( res.m_text, textLen );
+  return res;
+}
+
+private int add ( PPDefs.AbstractToken tok, int textLen )
+{
+  final int i = m_size++;
+  m_codes[i] = (short)tok.code().ordinal();
+  m_lengths[i] = tok.length();
+  m_textOfs[i] = -1;
+
+  if (tok instanceof ConcatToken)
+  {
+    final PPDefs.AbstractToken[] children = ((ConcatToken)tok).tokens;
+    m_textOfs[i] = children.length;
+    for ( PPDefs.AbstractToken child : children )
+      textLen = add( child, textLen );
+  }
+  else if (tok instanceof ParamToken)
+  {
+    final ParamToken pt = (ParamToken)tok;
+    m_objects[i] = pt.param;
+    if (pt.stringify)
+      m_flags[i] = (byte)STRINGIFY;
+  }
+  else
+  {
+    final PPDefs.Token t = (PPDefs.Token)tok;
+    m_flags[i] = (byte)t.flags();
+    m_objects[i] = t.object();
+    if (t.text() != null && t.code() != Code.IDENT)
+    {
+      final int len = t.textLen();
+      if (textLen + len > m_text.length)
+        m_text = Arrays.copyOf( m_text, Math.max( m_text.length * 2, textLen + len + 16 ) );
+      System.arraycopy( t.text(), 0, m_text, textLen, len );
+      m_textOfs[i] = textLen;
+      textLen += len;
+    }
+  }
+
+  return textLen;
+}
+
+/** The total number of elements, including the children of concatenations */
+final int size ()
+{
+  return m_size;
+}
+
+/** The index of the element following {@code i}, skipping the children of a concatenation */
+final int next ( int i )
+{
+  return m_codes[i] == Code.CONCAT.ordinal() ? i + 1 + m_textOfs[i] : i + 1;
+}
+
+final Code code ( int i )
+{
+  return s_codes[m_codes[i]];
+}
+
+/** The number of children of a {@link Code#CONCAT} element. They follow it. */
+final int concatCount ( int i )
+{
+  assert code( i ) == Code.CONCAT;
+  return m_textOfs[i];
+}
+
+final ParamDecl param ( int i )
+{
+  assert code( i ) == Code.MACRO_PARAM;
+  return (ParamDecl)m_objects[i];
+}
+
+final boolean isStringify ( int i )
+{
+  assert code( i ) == Code.MACRO_PARAM;
+  return (m_flags[i] & STRINGIFY) != 0;
+}
+
+/** Create a new token object with the contents of the element, which must be a token */
+@SuppressWarnings("unchecked")
+final <SYM extends PPSymbol> PPDefs.Token<SYM> newToken ( int i )
+{
+  final int ofs = m_textOfs[i];
+  final Code code = code( i );
+  assert code != Code.CONCAT && code != Code.MACRO_PARAM;
+
+  return new PPDefs.Token<SYM>( code, m_lengths[i], m_flags[i], m_objects[i],
+                                ofs >= 0 ? Arrays.copyOfRange( m_text, ofs, ofs + m_lengths[i] ) : null );
+}
+
+private boolean same ( int i, PackedTokens o, int j )
+{
+  if (m_codes[i] != o.m_codes[j] || m_lengths[i] != o.m_lengths[j] || m_flags[i] != o.m_flags[j])
+    return false;
+
+  final int ofs = m_textOfs[i];
+  switch (code( i ))
+  {
+  case CONCAT:
+    return ofs == o.m_textOfs[j];
+  case MACRO_PARAM:
+    return param( i ).same( o.param( j ) );
+  }
+
+  if ((ofs < 0) != (o.m_textOfs[j] < 0) ||
+      ofs >= 0 && !Utils.equals( m_text, ofs, o.m_text, o.m_textOfs[j], m_lengths[i] ))
+  {
+    return false;
+  }
+
+  switch (code( i ))
+  {
+  case STRING_CONST:
+    return Arrays.equals( (byte[])m_objects[i], (byte[])o.m_objects[j] );
+  case CHAR_CONST:
+    return ((Constant.IntC)m_objects[i]).equals( (Constant.IntC)o.m_objects[j] );
+  case INT_NUMBER:
+  case REAL_NUMBER:
+    return true; // The values may not have been converted yet, but the texts are the same
+  default:
+    return m_objects[i] == o.m_objects[j];
+  }
+}
+
+/** Encode the elements in a {@link Snapshot}. Parameters are encoded as their index. */
+final void write ( Snapshot.Writer w )
+{
+  w.writeInt( m_size );
+  w.writeBytes( m_text, 0, m_text.length );
+  for ( int i = 0; i < m_size; ++i )
+  {
+    w.writeInt( m_codes[i] );
+    w.writeInt( m_flags[i] );
+    w.writeInt( m_lengths[i] );
+    w.writeInt( m_textOfs[i] );
+
+    switch (code( i ))
+    {
+    case IDENT:
+      w.writeSymbol( (PPSymbol)m_objects[i] );
+      break;
+    case MACRO_PARAM:
+      w.writeInt( param( i ).index );
+      break;
+    case STRING_CONST:
+      final byte[] value = (byte[])m_objects[i];
+      w.writeBytes( value, 0, value.length );
+      break;
+    case CHAR_CONST:
+      final Constant.IntC c = (Constant.IntC)m_objects[i];
+      w.writeInt( c.spec.ordinal() );
+      w.writeLong( c._getLong() );
+      break;
+    default:
+      // The values of numbers are converted from the text again on demand
+      assert m_objects[i] == null || code( i ) == Code.INT_NUMBER || code( i ) == Code.REAL_NUMBER;
+      break;
+    }
+  }
+}
+
+/** Decode the elements written by {@link #write} */
+static PackedTokens read ( Snapshot.Reader r, ArrayList<ParamDecl> params )
+{
+  final int size = r.readLength();
+  final byte[] text = r.readBytes();
+  if (size == 0)
+    return EMPTY;
+
+  PackedTokens res = new PackedTokens( size, 0 );
+  res.m_text = text;
+  for ( int i = 0; i < size; ++i )
+  {
+    res.m_codes[i] = (short)r.readInt();
+    res.m_flags[i] = (byte)r.readInt();
+    res.m_lengths[i] = r.readInt();
+    res.m_textOfs[i] = r.readInt();
+
+    switch (res.code( i ))
+    {
+    case IDENT:
+      res.m_objects[i] = r.readSymbol();
+      break;
+    case MACRO_PARAM:
+      res.m_objects[i] = params.get( r.readInt() );
+      break;
+    case STRING_CONST:
+      res.m_objects[i] = r.readBytes();
+      break;
+    case CHAR_CONST:
+      final TypeSpec spec = s_specs[r.readInt()];
+      res.m_objects[i] = Constant.makeLong( spec, r.readLong() );
+      break;
+    }
+  }
+  res.m_size = size;
+  return res;
+}
+
+/** Compare two token sequences according to the rules for macro redefinition */
+final boolean same ( PackedTokens o )
+{
+  if (m_size != o.m_size)
+    return false;
+  for ( int i = 0; i < m_size; ++i )
+    if (!same( i, o, i ))
+      return false;
+  return true;
+}
+} // class
@@ -1,15 +1,25 @@
 package c99.parser.pp;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import c99.*;
 import c99.parser.Code;
@@ -21,17 +31,70 @@ private final IPreprOptions m_opts;
 private final IErrorReporter m_reporter;
 private final ISearchPath m_searchPath;
 private final IdentTable<SYM> m_symTable;
+private final MacroTable m_macros;
 private final PPSymbol m_sym_VA_ARGS;
+/** @see IPreprOptions#getDependencyScan() */
+private final boolean m_depScan;
+
+/**
+ * Detects whether a file is completely wrapped in an include guard:
+ * <pre>
+ *   #ifndef X
+ *   ...
+ *   #endif
+ * </pre>
+ * Only whitespace, comments and empty directives may appear outside of the guard.
+ * If X is still defined the next time the file is included, it can be skipped without
+ * opening it at all.
+ */
+private static final class IncludeGuard
+{
+  /** Nothing but whitespace seen so far */
+  static final int START = 0;
+  /** Inside the outermost #ifndef */
+  static final int INSIDE = 1;
+  /** After the #endif matching the outermost #ifndef */
+  static final int AFTER = 2;
+  /** The file isn't guarded */
+  static final int NONE = 3;
+
+  int state = START;
+  /** The controlling macro */
+  PPSymbol macro;
+  /** The size of the if-stack inside the guard */
+  int depth;
+}
 
 private static final class Source
 {
   final PPLexer lex;
   final int lineAdjustment;
+  final String absPath;
+  final boolean system;
+  final IncludeGuard guard;
 
-  Source ( final PPLexer lex, final int lineAdjustment )
+  Source ( final PPLexer lex, final int lineAdjustment, final String absPath, final boolean system,
+           final IncludeGuard guard )
   {
     this.lex = lex;
     this.lineAdjustment = lineAdjustment;
+    this.absPath = absPath;
+    this.system = system;
+    this.guard = guard;
+  }
+}
+
+/** A file read by the preprocessor */
+static final class Dependency
+{
+  final String path;
+  /** Found in a system directory, or included from such a file */
+  final boolean system;
+
+  Dependency ( final String path, final boolean system )
+  {
+    this.path = path;
+    this.system = system;
   }
 }
 
@@ -39,6 +102,27 @@ private final ArrayList<Source> m_sourceStack = new ArrayList<Source>();
 
 private PPLexer m_lex;
 private int m_lineAdjustment;
+/** Allocates the locations of the tokens when they are calculated lazily */
+private final SourceManager m_srcMgr;
+/** The absolute path of the file being lexed by {@link #m_lex} */
+private String m_absPath;
+/** The file being lexed is a system header */
+private boolean m_system;
+private IncludeGuard m_guard;
+
+/** Optional cache of included files shared with other instances */
+private IFileCache m_fileCache;
+
+/** Maps from the absolute path of a guarded file to its controlling macro */
+private final HashMap<String,PPSymbol> m_guardedFiles = new HashMap<String, PPSymbol>();
+/** Files containing #pragma once */
+private final HashSet<FileKey> m_onceFiles = new HashSet<FileKey>();
+/** Caches the identity of files by absolute path, once we have seen a #pragma once */
+private final HashMap<String,FileKey> m_fileKeys = new HashMap<String, FileKey>();
+/** Number of #include-s skipped because of an include guard or #pragma once */
+private int m_skippedIncludes;
+/** Maps from absolute path to the files read so far, in the order they were first opened */
+private final LinkedHashMap<String,Dependency> m_dependencies = new LinkedHashMap<String, Dependency>();
 
 /**
  * The whitespace skipped by some routines.
@@ -56,23 +140,46 @@ private final SourceRange m_tmpRange = new SourceRange();
 private Token m_tok;
 
 
+/**
+ * @param baseMacros a frozen macro table to start from, or null. {@code symTable} must be based
+ *        on the symbol table of the instance which created it.
+ * @see #freeze()
+ */
 public Prepr ( final IPreprOptions opts, final IErrorReporter reporter,
                final ISearchPath searchPath,
-               final String fileName, final InputStream input,
-               final IdentTable<SYM> symTable )
+               final String fileName, final LineReader reader,
+               final IdentTable<SYM> symTable, final MacroTable baseMacros )
 {
   m_opts = opts;
   m_reporter = reporter;
   m_searchPath = searchPath;
   m_symTable = symTable;
+  m_macros = new MacroTable( symTable, baseMacros );
+  m_depScan = opts.getDependencyScan();
 
-  m_lex = new PPLexer(reporter, fileName, input, symTable );
+  m_srcMgr = opts.getLazyLocations() ? new SourceManager() : null;
+  m_lex = newLexer( fileName, reader, SourceManager.NO_LOCATION );
+  m_absPath = PreprOptions.resolveFile( opts, fileName ).getAbsolutePath();
+  m_guard = new IncludeGuard();
+  m_dependencies.put( m_absPath, new Dependency( fileName, false ) );
 
-  for ( PPSymCode ppCode : PPSymCode.values() )
+  if (baseMacros == null)
+  {
+    for ( PPSymCode ppCode : PPSymCode.values() )
+    {
+      PPSymbol sym = m_symTable.symbol( ppCode.name );
+      assert sym.ppCode == null;
+      sym.ppCode = ppCode;
+    }
+  }
+  else
   {
-    PPSymbol sym = m_symTable.symbol( ppCode.name );
-    assert sym.ppCode == null;
-    sym.ppCode = ppCode;
+    // The symbols are shared with the base
+    m_guardedFiles.putAll( baseMacros.guardedFiles );
+    m_onceFiles.addAll( baseMacros.onceFiles );
+    // The inherited state depends on the files read by the base
+    for ( Map.Entry<String,Dependency> e : baseMacros.dependencies.entrySet() )
+      addDependency( e.getKey(), e.getValue() );
   }
 
   m_sym_VA_ARGS = m_symTable.symbol( PPSymCode.VA_ARGS.name );
@@ -82,14 +189,57 @@ public Prepr ( final IPreprOptions opts, final IErrorReporter reporter,
   for ( Builtin builtin : Builtin.values() )
   {
     PPSymbol sym = m_symTable.symbol( builtin.name() );
-    sym.ppDecl = new Macro( sym, new SourceRange(), builtin );
+    m_macros.set( sym, new Macro( sym, new SourceRange(), builtin ) );
   }
 
   // Generate the date string which doesn't change duing compilation
-  Macro dateMacro = (Macro) m_symTable.symbol( Builtin.__DATE__.name() ).ppDecl;
+  Macro dateMacro = m_macros.get( m_symTable.symbol( Builtin.__DATE__.name() ) );
   Token tok = new Token();
   tok.setStringConst( new SimpleDateFormat( "MMM dd yyyy" ).format( new Date() ) );
-  dateMacro.body.addLast( tok );
+  TokenList<AbstractToken> dateBody = new TokenList<AbstractToken>();
+  dateBody.addLast( tok );
+  dateMacro.body = PackedTokens.pack( dateBody );
+}
+
+public Prepr ( final IPreprOptions opts, final IErrorReporter reporter,
+               final ISearchPath searchPath,
+               final String fileName, final InputStream input,
+               final IdentTable<SYM> symTable )
+{
+  this( opts, reporter, searchPath, fileName,
+        new LineReader( input, LineReader.DEFAULT_BUF_SIZE ), symTable, null );
+}
+
+/**
+ * Preprocess the file {@code fileName}. Regular files are loaded in memory in their entirety.
+ */
+public Prepr ( final IPreprOptions opts, final IErrorReporter reporter,
+               final ISearchPath searchPath,
+               final String fileName,
+               final IdentTable<SYM> symTable ) throws IOException
+{
+  this( opts, reporter, searchPath, fileName, symTable, null );
+}
+
+/**
+ * Preprocess the file {@code fileName}, starting from the macros of a frozen macro table.
+ * @see #Prepr(IPreprOptions, IErrorReporter, ISearchPath, String, LineReader, IdentTable, MacroTable)
+ */
+public Prepr ( final IPreprOptions opts, final IErrorReporter reporter,
+               final ISearchPath searchPath,
+               final String fileName,
+               final IdentTable<SYM> symTable, final MacroTable baseMacros ) throws IOException
+{
+  this( opts, reporter, searchPath, fileName,
+        LineReader.readFile( PreprOptions.resolveFile( opts, fileName ) ), symTable, baseMacros );
+}
+
+public Prepr ( final IPreprOptions opts, final IErrorReporter reporter,
+               final ISearchPath searchPath,
+               final String fileName, final LineReader reader,
+               final IdentTable<SYM> symTable )
+{
+  this( opts, reporter, searchPath, fileName, reader, symTable, null );
 }
 
 public final void close ()
@@ -99,13 +249,248 @@ public final void close ()
   m_lex.close();
 }
 
-private final void pushSource ( String fileName, InputStream input )
+/**
+ * Freeze the macro definitions and the symbol table, so that they can be shared as the base of
+ * many other instances, which may run concurrently. This instance can't be used anymore. The
+ * include guard and #pragma once state is inherited too, but the conditional stack is not.
+ *
+ * <p>The frozen table must be safely published to other threads, for example by passing it
+ * to a task submitted to an executor.
+ */
+public final MacroTable freeze ()
+{
+  close();
+  m_macros.freeze( m_guardedFiles, m_onceFiles, m_dependencies );
+  return m_macros;
+}
+
+/**
+ * Use a cache for the contents of included files. The same cache can be shared
+ * between many instances, to avoid reading the same headers from disk again and again.
+ *
+ * @param fileCache null disables the caching
+ */
+public final void setFileCache ( IFileCache fileCache )
+{
+  m_fileCache = fileCache;
+}
+
+/**
+ * Returns the number of times a file wasn't opened at all, because it was protected by
+ * an include guard whose macro was still defined, or by a #pragma once.
+ */
+public final int getSkippedIncludeCount ()
+{
+  return m_skippedIncludes;
+}
+
+/**
+ * Returns the names of the files read so far, the main file first, the others in the order they
+ * were first included. A file skipped because of an include guard or a #pragma once is listed
+ * too. The files read by the instance which saved a loaded snapshot, or which created the
+ * frozen base macro table, are listed as well, because the inherited state depends on them.
+ *
+ * @param system include the files found in system directories and the files included by them
+ * @see IPreprOptions#getDependencyScan()
+ */
+public final List<String> getDependencies ( boolean system )
+{
+  ArrayList<String> res = new ArrayList<String>( m_dependencies.size() );
+  for ( Dependency dep : m_dependencies.values() )
+    if (system || !dep.system)
+      res.add( dep.path );
+  return res;
+}
+
+/**
+ * Returns the source manager which encodes the locations of the tokens, or null if the
+ * locations are not calculated lazily.
+ */
+public final SourceManager getSourceManager ()
+{
+  return m_srcMgr;
+}
+
+/**
+ * Save the macro definitions, the state of include guards and #pragma once, and the conditional
+ * stack in a compact binary snapshot. A snapshot taken after preprocessing a common prefix header
+ * can be loaded by other instances with {@link #loadSnapshot(ByteBuffer)}, instead of
+ * preprocessing the header again.
+ */
+public final void saveSnapshot ( OutputStream out ) throws IOException
+{
+  Snapshot.Writer w = new Snapshot.Writer();
+
+  // Keep the macros in the order in which their names were first seen
+  ArrayList<Macro> macros = new ArrayList<Macro>();
+  for ( Macro macro : m_macros.getMacros() )
+    if (macro.builtin == null)
+      macros.add( macro );
+  Collections.sort( macros, new Comparator<Macro>() {
+    @Override
+    public int compare ( Macro a, Macro b )
+    {
+      return a.symbol.compareTo( b.symbol );
+    }
+  } );
+
+  w.writeInt( macros.size() );
+  for ( Macro macro : macros )
+    Snapshot.writeMacro( w, macro );
+
+  w.writeInt( m_guardedFiles.size() );
+  for ( Map.Entry<String,PPSymbol> e : m_guardedFiles.entrySet() )
+  {
+    w.writeString( e.getKey() );
+    w.writeSymbol( e.getValue() );
+  }
+
+  w.writeInt( m_onceFiles.size() );
+  for ( FileKey key : m_onceFiles )
+  {
+    w.writeString( key.canonicalPath );
+    w.writeLong( key.size );
+    w.writeLong( key.lastModified );
+  }
+
+  w.writeInt( m_dependencies.size() );
+  for ( Map.Entry<String,Dependency> e : m_dependencies.entrySet() )
+  {
+    w.writeString( e.getKey() );
+    w.writeString( e.getValue().path );
+    w.writeBoolean( e.getValue().system );
+  }
+
+  w.writeBoolean( m_exec );
+  w.writeInt( m_ifStack.size() );
+  for ( IfState st : m_ifStack )
+    writeIfState( w, st );
+  writeIfState( w, m_ifTop );
+
+  w.writeTo( out );
+}
+
+/**
+ * Load a snapshot saved by {@link #saveSnapshot(OutputStream)}, replacing the conditional stack
+ * and defining the macros in it. It must be called before the first token is requested.
+ * The buffer is not modified, so the same snapshot can be loaded by many instances concurrently.
+ * If the snapshot is invalid, the instance should not be used anymore.
+ */
+public final void loadSnapshot ( ByteBuffer snapshot ) throws IOException
+{
+  try
+  {
+    Snapshot.Reader r = new Snapshot.Reader( snapshot, m_symTable );
+
+    for ( int count = r.readInt(); count > 0; --count )
+    {
+      Macro macro = Snapshot.readMacro( r );
+      m_macros.set( macro.symbol, macro );
+    }
+
+    for ( int count = r.readInt(); count > 0; --count )
+    {
+      String absPath = r.readString();
+      m_guardedFiles.put( absPath, r.readSymbol() );
+    }
+
+    for ( int count = r.readInt(); count > 0; --count )
+    {
+      String canonicalPath = r.readString();
+      long size = r.readLong();
+      m_onceFiles.add( new FileKey( canonicalPath, size, r.readLong() ) );
+    }
+
+    for ( int count = r.readInt(); count > 0; --count )
+    {
+      String absPath = r.readString();
+      String path = r.readString();
+      addDependency( absPath, new Dependency( path, r.readBoolean() ) );
+    }
+
+    m_exec = r.readBoolean();
+    m_ifStack.clear();
+    for ( int count = r.readInt(); count > 0; --count )
+      m_ifStack.add( readIfState( r ) );
+    m_ifTop = readIfState( r );
+    m_lex.setReportErrors( m_exec );
+
+    if (!r.atEnd())
+      throw new IOException( "Invalid preprocessor snapshot" );
+  }
+  catch (BufferUnderflowException e)
+  {
+    throw new IOException( "Truncated preprocessor snapshot", e );
+  }
+  catch (IndexOutOfBoundsException e)
+  {
+    throw new IOException( "Invalid preprocessor snapshot", e );
+  }
+}
+
+/** Map a snapshot file in memory, so that it can be loaded without reading it first */
+public static ByteBuffer mapSnapshot ( File file ) throws IOException
+{
+  RandomAccessFile f = new RandomAccessFile( file, "r" );
+  try
+  {
+    return f.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, f.length() );
+  }
+  finally
+  {
+    f.close();
+  }
+}
+
+private static void writeIfState ( Snapshot.Writer w, IfState st )
+{
+  w.writeInt( st.blockType );
+  w.writeBoolean( st.parentExec );
+  w.writeBoolean( st.cond );
+  w.writeBoolean( st.tok != null );
+  if (st.tok != null)
+  {
+    w.writeSymbol( st.tok.symbol() );
+    w.writeRange( st.tok );
+  }
+}
+
+@SuppressWarnings("unchecked")
+private static IfState readIfState ( Snapshot.Reader r )
+{
+  final int blockType = r.readInt();
+  final boolean parentExec = r.readBoolean();
+  final boolean cond = r.readBoolean();
+  Token tok = null;
+  if (r.readBoolean())
+  {
+    tok = new Token();
+    tok.setIdent( r.readSymbol() );
+    r.readRange( tok );
+  }
+  return new IfState( tok, blockType, parentExec, cond );
+}
+
+private final PPLexer newLexer ( String fileName, LineReader reader, int includeLoc )
+{
+  if (m_srcMgr == null)
+    return new PPLexer( m_reporter, fileName, reader, m_symTable );
+
+  reader.setSourceFile( new SourceFile( fileName ) );
+  PPLexer lex = new PPLexer( m_reporter, fileName, reader, m_symTable );
+  lex.enterSourceManager( m_srcMgr, includeLoc );
+  return lex;
+}
+
+private final void pushSource ( String fileName, String absPath, boolean system, LineReader reader,
+                                int includeLoc )
 {
-  PPLexer newLexer = new PPLexer(m_reporter, fileName, input, m_symTable);
+  m_lex.suspendSourceManager();
+  PPLexer newLexer = newLexer( fileName, reader, includeLoc );
   boolean ok = false;
   try
   {
-    m_sourceStack.add( new Source(m_lex, m_lineAdjustment) );
+    m_sourceStack.add( new Source(m_lex, m_lineAdjustment, m_absPath, m_system, m_guard) );
     ok = true;
   }
   finally
@@ -116,6 +501,15 @@ private final void pushSource ( String fileName, InputStream input )
 
   m_lex = newLexer;
   m_lineAdjustment = 0;
+  m_absPath = absPath;
+  m_system = system;
+  m_guard = new IncludeGuard();
+}
+
+private void addDependency ( String absPath, Dependency dep )
+{
+  if (!m_dependencies.containsKey( absPath ))
+    m_dependencies.put( absPath, dep );
 }
 
 private final boolean popSource ()
@@ -123,11 +517,16 @@ private final boolean popSource ()
   int size;
   if ( (size = m_sourceStack.size()) > 0)
   {
+    m_lex.suspendSourceManager();
     m_lex.close();
 
     Source src = m_sourceStack.remove( size - 1 );
     m_lex = src.lex;
+    m_lex.resumeSourceManager();
     m_lineAdjustment = src.lineAdjustment;
+    m_absPath = src.absPath;
+    m_system = src.system;
+    m_guard = src.guard;
     return true;
   }
   else
@@ -170,6 +569,8 @@ private final ArrayDeque<Token> m_laQueue = new ArrayDeque<Token>();
 
 private final void adjustToken ()
 {
+  if (m_tok.hasLazyLocation()) // The lexer has recorded the #line directives
+    return;
   m_tok.line1 += m_lineAdjustment;
   m_tok.line2 += m_lineAdjustment;
 }
@@ -210,7 +611,7 @@ private final void discardLine ()
   if (m_tok.code() != Code.NEWLINE && m_tok.code() != Code.EOF)
   {
     m_skippedWs = null;
-    m_tok = m_lex.discardLine();
+    m_tok = m_lex.discardLine( m_exec && m_depScan );
     assert m_tok.code() == Code.NEWLINE || m_tok.code() == Code.EOF;
     adjustToken();
   }
@@ -340,7 +741,7 @@ private final boolean parseMacroParamList ( Macro macro )
       if (m_tok.code() == Code.IDENT)
       {
         PPSymbol sym = m_tok.symbol();
-        if (sym.ppDecl instanceof ParamDecl)
+        if (macro.findParam( sym ) != null)
         {
           m_reporter.error( m_tok, "Duplicated macro parameter '%s'", sym.name );
           skipUntilEOL();
@@ -409,16 +810,9 @@ private final boolean parseMacroParamList ( Macro macro )
   return true;
 }
 
-private static ParamDecl isParam ( Token tok )
+private static ParamDecl isParam ( Macro macro, Token tok )
 {
-  if (tok.code() == Code.IDENT)
-  {
-    PPSymbol sym = tok.symbol();
-    if (sym.ppDecl instanceof ParamDecl)
-      return (ParamDecl)sym.ppDecl;
-  }
-
-  return null;
+  return tok.code() == Code.IDENT ? macro.findParam( tok.symbol() ) : null;
 }
 
 private final AbstractToken parseMacroReplacementListToken ( Macro macro )
@@ -436,7 +830,7 @@ private final AbstractToken parseMacroReplacementListToken ( Macro macro )
 
     m_skippedWs = savedWs; // Keep the space before the '# something'
 
-    if ( (param = isParam( m_tok )) != null)
+    if ( (param = isParam( macro, m_tok )) != null)
     {
       ParamToken paramToken = new ParamToken( param );
       paramToken.stringify = true;
@@ -449,7 +843,7 @@ private final AbstractToken parseMacroReplacementListToken ( Macro macro )
       return null;
     }
   }
-  else if ((param = isParam( m_tok )) != null)
+  else if ((param = isParam( macro, m_tok )) != null)
     tok = new ParamToken( param );
   else if (m_tok.code() == Code.IDENT && m_tok.symbol() == m_sym_VA_ARGS)
   {
@@ -464,8 +858,35 @@ private final AbstractToken parseMacroReplacementListToken ( Macro macro )
   return tok;
 }
 
+/**
+ * Find the parameters whose arguments are needed in macro-expanded form: everything except operands
+ * of '#' and '##'. The GCC extension ', ## __VA_ARGS__' also uses the expanded argument.
+ */
+private static void markExpandedParams ( TokenList<AbstractToken> body )
+{
+  for ( AbstractToken tok : body )
+  {
+    if (tok instanceof ParamToken)
+    {
+      if (!((ParamToken)tok).stringify)
+        ((ParamToken)tok).param.usedExpanded = true;
+    }
+    else if (tok instanceof ConcatToken)
+    {
+      final AbstractToken[] children = ((ConcatToken)tok).tokens;
+      if (children.length == 2 && children[0].code() == Code.COMMA && children[1] instanceof ParamToken)
+      {
+        final ParamToken pt = (ParamToken)children[1];
+        if (pt.param.variadic && !pt.stringify)
+          pt.param.usedExpanded = true;
+      }
+    }
+  }
+}
+
 private final boolean parseMacroReplacementList ( Macro macro )
 {
+  final TokenList<AbstractToken> body = new TokenList<AbstractToken>();
   macro.bodyLoc.setRange( m_tok );
   m_skippedWs = null;
 
@@ -477,7 +898,7 @@ private final boolean parseMacroReplacementList ( Macro macro )
     {
       /* 6.10.3.3 (1) A ## preprocessing token shall not occur at the beginning or at the end of
          a replacement list for either form of macro definition. */
-      if (macro.body.size() == 0)
+      if (body.size() == 0)
       {
         m_reporter.error( m_tok, "'##' can only occur between two tokens" );
         skipUntilEOL();
@@ -501,7 +922,7 @@ private final boolean parseMacroReplacementList ( Macro macro )
       if ( (tok = parseMacroReplacementListToken( macro )) == null)
         return false;
 
-      tok = new ConcatToken( macro.body.removeLast(), tok );
+      tok = new ConcatToken( body.removeLast(), tok );
     }
     else
     {
@@ -511,14 +932,16 @@ private final boolean parseMacroReplacementList ( Macro macro )
 
     if (m_skippedWs != null)
     {
-      macro.body.addLastClone( m_skippedWs );
+      body.addLastClone( m_skippedWs );
       m_skippedWs = null;
     }
 
-    macro.body.addLast( tok );
+    body.addLast( tok );
     macro.bodyLoc.extend( m_tok );
   }
 
+  markExpandedParams( body );
+  macro.body = PackedTokens.pack( body );
   return true;
 }
 
@@ -535,32 +958,25 @@ private final void parseDefine ()
 
   final PPSymbol macroSym = m_tok.symbol();
   final Macro macro = new Macro( macroSym, m_tok, null );
-  try
+  nextWithBlanks();
+  if (m_tok.code() == Code.L_PAREN)
   {
-    nextWithBlanks();
-    if (m_tok.code() == Code.L_PAREN)
-    {
-      macro.funcLike = true;
-      if (!parseMacroParamList( macro ))
-        return;
-    }
-    else
-    {
-      skipBlanks();
-      macro.funcLike = false;
-    }
-
-    if (!parseMacroReplacementList( macro ))
+    macro.funcLike = true;
+    if (!parseMacroParamList( macro ))
       return;
   }
-  finally
+  else
   {
-    macro.cleanUpParamScope();
+    skipBlanks();
+    macro.funcLike = false;
   }
 
-  if (macroSym.ppDecl instanceof Macro)
+  if (!parseMacroReplacementList( macro ))
+    return;
+
+  final Macro prevMacro = m_macros.get( macroSym );
+  if (prevMacro != null)
   {
-    Macro prevMacro = (Macro)macroSym.ppDecl;
     if (prevMacro.builtin != null)
     {
       m_reporter.warning( macro.nameLoc, "redefinition of builtin macro '%s'", macro.symbol.name );
@@ -574,7 +990,7 @@ private final void parseDefine ()
     }
   }
 
-  macroSym.ppDecl = macro;
+  m_macros.set( macroSym, macro );
 }
 
 private final void parseUndef ()
@@ -589,12 +1005,13 @@ private final void parseUndef ()
   }
 
   final PPSymbol macroSym = m_tok.symbol();
-  if (macroSym.ppDecl instanceof Macro)
+  final Macro prevMacro = m_macros.get( macroSym );
+  if (prevMacro != null)
   {
-    if (((Macro)macroSym.ppDecl).builtin != null)
+    if (prevMacro.builtin != null)
       m_reporter.warning( m_tok, "undefining '%s'", macroSym.name );
 
-    macroSym.ppDecl = null;
+    m_macros.set( macroSym, null );
   }
   else
     if (m_opts.getWarnUndef())
@@ -610,22 +1027,25 @@ private final void parseUndef ()
 
 private final void handleLineDirective ( int line, String fileName )
 {
-  m_lineAdjustment = line - m_tok.getLine1() + m_lineAdjustment - 1;
+  final int line1 = m_tok.getLine1();
+  final int physLine = line1 - m_lineAdjustment;
+  m_lineAdjustment = line - line1 + m_lineAdjustment - 1;
   if (fileName != null)
     m_lex.setFileName( fileName );
+  m_lex.addLineDirective( physLine + 1, m_lineAdjustment );
 
   // We have a problem if there are multiple new lines after the #line directive,
   // since they have been merged into a single token. What we want is to modify the
   // current new-line to end on the next line, and to synthesize a new one with
   // the adjusted line
-  if (m_tok.line2 - m_tok.line1 > 1)
+  if (m_tok.getLine2() - line1 > 1)
   {
     TokenList<Token> list = new TokenList<Token>();
     Token nl = new Token( Code.NEWLINE );
-    nl.fileName = fileName != null ? fileName : m_tok.fileName;
+    nl.fileName = fileName != null ? fileName : m_tok.getFileName();
     nl.line1 = line;
     nl.col1 = 1;
-    nl.line2 = m_tok.line2 + m_lineAdjustment;
+    nl.line2 = m_tok.getLine2() + m_lineAdjustment;
     nl.col2 = 1;
     list.addLast( nl );
     pushContext( new Context( list ) );
@@ -650,7 +1070,7 @@ private final int parseLineNumber ( String afterWhat )
     return -1;
   }
 
-  long lline = m_tok.getIntConstValue()._getLong();
+  long lline = m_tok.getIntConstValue( m_reporter )._getLong();
   int line = (int)lline;
   if (line < 0 || line != lline)
   {
@@ -747,7 +1167,7 @@ private final void parseLineMarker ()
 
 private final void parseInclude ()
 {
-  SourceRange pos = new SourceRange(m_tok);
+  SourceRange pos = m_tok.copyRange();
 
   assert m_laQueue.isEmpty();
   assert m_ctx == null;
@@ -854,24 +1274,47 @@ loop:
     return;
   }
 
+  // The file is a dependency even if it is skipped, because the guard could change
+  addDependency( resolvedIncludePath.absPath,
+                 new Dependency( resolvedIncludePath.path, m_system || resolvedIncludePath.system ) );
+
+  PPSymbol guardMacro = m_guardedFiles.get( resolvedIncludePath.absPath );
+  if (guardMacro != null && m_macros.isDefined( guardMacro ))
+  {
+    ++m_skippedIncludes;
+    return;
+  }
+  if (!m_onceFiles.isEmpty())
+  {
+    FileKey key = getFileKey( resolvedIncludePath.absPath );
+    if (key != null && m_onceFiles.contains( key ))
+    {
+      ++m_skippedIncludes;
+      return;
+    }
+  }
+
   if (m_sourceStack.size() == m_opts.getMaxIncludeDepth())
   {
     m_reporter.error( pos, "More than %d nested includes", m_opts.getMaxIncludeDepth() );
     return;
   }
 
-  FileInputStream input;
+  LineReader reader;
   try
   {
-    input = new FileInputStream( resolvedIncludePath.path );
+    reader = LineReader.readFile( new File( resolvedIncludePath.absPath ), m_fileCache );
   }
-  catch (FileNotFoundException e)
+  catch (IOException e)
   {
-    m_reporter.error( pos, "Can't open include file '%s': %s", name, e.getCause() );
+    m_reporter.error( pos, "Can't open include file '%s': %s", name, e.getMessage() );
     return;
   }
 
-  pushSource( resolvedIncludePath.path, input );
+  pushSource( resolvedIncludePath.path, resolvedIncludePath.absPath,
+              m_system || resolvedIncludePath.system, reader,
+              pos instanceof CompactRange ?
+                SourceManager.rangeBegin( ((CompactRange)pos).getRange() ) : SourceManager.NO_LOCATION );
   if (m_tok.code() == Code.EOF)
   {
     Token tok = new Token(Code.NEWLINE);
@@ -934,6 +1377,7 @@ private final void parseIfdef ()
   nextNoBlanks(); // consume the if[n]def
 
   boolean cond = false;
+  PPSymbol guardMacro = null; // the macro, if this could be an include guard
 
   if (!m_exec)
     skipUntilEOL();
@@ -946,15 +1390,34 @@ private final void parseIfdef ()
     }
     else
     {
-      cond = (m_tok.symbol().ppDecl instanceof Macro) ^ (tok.symbol().ppCode == PPSymCode.IFNDEF);
+      PPSymbol sym = m_tok.symbol();
+      cond = m_macros.isDefined( sym ) ^ (tok.symbol().ppCode == PPSymCode.IFNDEF);
       nextNoBlanks();
-      checkEOL(tok.symbol().ppCode.name);
+      if (m_tok.code() == Code.EOF || m_tok.code() == Code.NEWLINE)
+      {
+        if (tok.symbol().ppCode == PPSymCode.IFNDEF)
+          guardMacro = sym;
+      }
+      else
+        checkEOL(tok.symbol().ppCode.name);
     }
   }
 
   assert m_tok.code() == Code.EOF || m_tok.code() == Code.NEWLINE;
 
   pushIfState( tok, IfState.BLOCK_IF, cond, m_exec && cond );
+
+  if (m_guard.state == IncludeGuard.START)
+  {
+    if (guardMacro != null)
+    {
+      m_guard.state = IncludeGuard.INSIDE;
+      m_guard.macro = guardMacro;
+      m_guard.depth = m_ifStack.size();
+    }
+    else
+      m_guard.state = IncludeGuard.NONE;
+  }
 }
 
 private final void parseElse ()
@@ -975,6 +1438,8 @@ private final void parseElse ()
     checkEOL( "else" );
 
   assert m_tok.code() == Code.EOF || m_tok.code() == Code.NEWLINE;
+  if (m_guard.state == IncludeGuard.INSIDE && m_ifStack.size() == m_guard.depth)
+    m_guard.state = IncludeGuard.NONE;
   m_ifTop.tok = tok;
   m_ifTop.blockType = IfState.BLOCK_ELSE;
   m_exec = m_ifTop.parentExec && !m_ifTop.cond;
@@ -996,6 +1461,8 @@ private final void parseEndif ()
     checkEOL( "endif" );
 
   assert m_tok.code() == Code.EOF || m_tok.code() == Code.NEWLINE;
+  if (m_guard.state == IncludeGuard.INSIDE && m_ifStack.size() == m_guard.depth)
+    m_guard.state = IncludeGuard.AFTER;
   popIfState();
 }
 
@@ -1024,47 +1491,17 @@ private final boolean need ( Code code )
   }
 }
 
-private static final Constant.IntC s_zero = Constant.makeLong( TypeSpec.INTMAX_T, 0 );
-private static final Constant.IntC s_one = Constant.makeLong( TypeSpec.INTMAX_T, 1 );
-
-// 6.10.1 [4] For the purposes of this
-// token conversion and evaluation, all signed integer types and all unsigned integer types
-// act as if they hav e the same representation as, respectively, the types intmax_t and
-// uintmax_t defined in the header <stdint.h>
-private static Constant.IntC expandToMax ( Constant.IntC v )
-{
-  return (Constant.IntC)Constant.convert(
-    TypeRules.usualArithmeticConversions( v.spec, TypeSpec.INTMAX_T ), v
-  );
-}
-
-private static void performUsualArithmeticConversions ( Constant.ArithC e[] )
-{
-  // Normally we should do this.
-  //   TypeSpec spec = TypeRules.usualArithmeticConversions( e[0].spec, e[1].spec );
-  // However we don't have to because we know that the operands can be only one of two
-  // types. If any is unsigned, convert the other to unsigned too
-  assert e[0].spec == TypeSpec.INTMAX_T || e[0].spec == TypeSpec.UINTMAX_T;
-  assert e[1].spec == TypeSpec.INTMAX_T || e[1].spec == TypeSpec.UINTMAX_T;
-
-  TypeSpec spec = e[0].spec.signed ? e[1].spec : e[0].spec;
-  e[0] = Constant.convert( spec, e[0] );
-  e[1] = Constant.convert( spec, e[1] );
-}
-
-private static Constant.IntC performIntegerPromotion ( Constant.IntC e )
-{
-  // Normally we should do this.
-  //   return (Constant.IntC)Constant.convert( TypeRules.integerPromotion( e.spec ), e );
-  // However we don't have to because we know that the operand can be only one of two
-  // types, which don't need integer promotion at all
-  assert e.spec == TypeSpec.INTMAX_T || e.spec == TypeSpec.UINTMAX_T;
-  return e;
-}
+/**
+ * The type of the value of the last evaluated subexpression: uintmax_t if true, otherwise
+ * intmax_t. The values themselves are longs, see {@link PPArith}.
+ */
+private boolean m_exprUnsigned;
+private final PPNumber.IntMax m_intMax = new PPNumber.IntMax();
 
 private abstract class Expression
 {
-  abstract Constant.IntC parse ();
+  /** Sets {@link #m_exprUnsigned} to the type of the returned value */
+  abstract long parse ();
 }
 
 private class BinEx extends Expression
@@ -1097,29 +1534,31 @@ private class BinEx extends Expression
     this( parent, c0, c1, c2, c2 );
   }
 
-  final Constant.IntC parse ()
+  final long parse ()
   {
-    final Constant.IntC e[] = new Constant.IntC[2];
-    e[0] = m_parent.parse();
+    long v0 = m_parent.parse();
 
     for ( Code code = m_tok.code();
           code == m_c0 || code == m_c1 || code == m_c2 || code == m_c3;
           code = m_tok.code() )
     {
-      final SourceRange pos = new SourceRange( m_tok );
+      final boolean u0 = m_exprUnsigned;
+      // The position is needed only for reporting division by zero
+      final SourceRange pos = code == Code.SLASH || code == Code.PERCENT ? new SourceRange( m_tok ) : null;
 
       nextExpandNoBlanks();
 
-      e[1] = m_parent.parse();
-      e[0] = perform( pos, code, e );
+      final long v1 = m_parent.parse();
+      v0 = perform( pos, code, v0, u0, v1, m_exprUnsigned );
     }
-    return e[0];
+    return v0;
   }
 
-  Constant.IntC perform ( ISourceRange pos, Code code, Constant.IntC e[] )
+  long perform ( ISourceRange pos, Code code, long v0, boolean u0, long v1, boolean u1 )
   {
-    performUsualArithmeticConversions( e );
-    return binaryOp( pos, code, e[0], e[1] );
+    // The usual arithmetic conversions: if any operand is unsigned, the other is converted to
+    // unsigned too
+    return binaryOp( pos, code, v0, v1, u0 || u1 );
   }
 
   @Override
@@ -1129,73 +1568,65 @@ private class BinEx extends Expression
   }
 }
 
-private final Constant.IntC binaryOp ( ISourceRange pos, Code code, Constant.IntC e0, Constant.IntC e1 )
+private final long binaryOp ( ISourceRange pos, Code code, long v0, long v1, boolean unsigned )
 {
-  switch (code)
+  if (v1 == 0 && (code == Code.SLASH || code == Code.PERCENT))
   {
-  case ASTERISK: e0.mul( e0, e1 ); return e0;
-  case SLASH:
-    if (!e1.isZero())
-      e0.div( e0, e1 );
-    else
-      exprError( pos, "Division by zero in '/'" );
-    return e0;
-  case PERCENT:
-    if (!e1.isZero())
-      e0.rem( e0, e1 );
-    else
-      exprError( pos, "Division by zero in '%'" );
-    return e0;
-  case PLUS: e0.add( e0, e1 ); return e0;
-  case MINUS: e0.sub( e0, e1 ); return e0;
-  case LESS_LESS: e0.shl( e0, e1 ); return e0;
-  case GREATER_GREATER: e0.shr( e0, e1 ); return e0;
-  case LESS: return e0.lt( e1 ) ? s_one : s_zero;
-  case GREATER: return e0.gt( e1 ) ? s_one : s_zero;
-  case LESS_EQUALS: return e0.le( e1 ) ? s_one : s_zero;
-  case GREATER_EQUALS: return e0.ge( e1 ) ? s_one : s_zero;
-  case EQUALS_EQUALS: return e0.eq( e1 ) ? s_one : s_zero;
-  case BANG_EQUALS: return e0.ne( e1 ) ? s_one : s_zero;
-  case AMPERSAND: e0.and( e0, e1 ); return e0;
-  case CARET: e0.xor( e0, e1 ); return e0;
-  case VERTICAL: e0.or( e0, e1 ); return e0;
-  case AMPERSAND_AMPERSAND: return e0.isTrue() && e1.isTrue() ? s_one : s_zero;
-  case VERTICAL_VERTICAL: return e0.isTrue() || e1.isTrue() ? s_one : s_zero;
-  }
-  assert false;
-  return null;
-}
-
-/** The type of the returned value is always either intmax_t or uintmax_t */
-private final Constant.IntC primary_expression ()
-{
-  Constant.IntC res;
+    exprError( pos, "Division by zero in '%s'", code.str );
+    m_exprUnsigned = unsigned;
+    return v0;
+  }
+  m_exprUnsigned = PPArith.isUnsignedResult( code, unsigned );
+  return PPArith.binaryOp( code, v0, v1, unsigned );
+}
+
+private final long primary_expression ()
+{
+  long res;
 
   switch (m_tok.code())
   {
   case IDENT:
     nextExpandNoBlanks();
-    return s_zero;
+    m_exprUnsigned = false;
+    return 0;
 
   case INT_NUMBER:
-    res = expandToMax( m_tok.getIntConstValue() );
+    if (PPNumber.parseIntMax( m_tok, m_intMax ))
+    {
+      res = m_intMax.value;
+      m_exprUnsigned = m_intMax.unsigned;
+    }
+    else
+    {
+      // The complete conversion reports any errors
+      Constant.IntC value = m_tok.getIntConstValue( m_reporter );
+      res = value._getLong();
+      m_exprUnsigned = !value.spec.signed;
+    }
     nextExpandNoBlanks();
     return res;
 
   case CHAR_CONST:
-    res = expandToMax( m_tok.getCharConstValue() );
+    {
+      Constant.IntC value = m_tok.getCharConstValue();
+      res = value._getLong();
+      m_exprUnsigned = !value.spec.signed;
+    }
     nextExpandNoBlanks();
     return res;
 
   case REAL_NUMBER:
     exprError( m_tok, "floating point constants are not valid in preprocessor expressions" );
     nextExpandNoBlanks();
-    return s_zero;
+    m_exprUnsigned = false;
+    return 0;
 
   case STRING_CONST:
     exprError( m_tok, "strings are not valid in preprocessor expressions" );
     nextExpandNoBlanks();
-    return s_zero;
+    m_exprUnsigned = false;
+    return 0;
 
   case L_PAREN:
     nextExpandNoBlanks();
@@ -1208,31 +1639,30 @@ private final Constant.IntC primary_expression ()
       exprError( m_tok, "unexpected end of line in preprocessor expression" );
     else
       exprError( m_tok, "unexpected token '%s' in preprocessor expression", m_tok.outputString() );
-    return s_zero;
+    m_exprUnsigned = false;
+    return 0;
   }
 }
 
-private final Constant.IntC unary_expression ()
+private final long unary_expression ()
 {
-  Constant.IntC res;
+  long res;
   switch (m_tok.code())
   {
   case PLUS:
     nextExpandNoBlanks();
-    return performIntegerPromotion( unary_expression() );
+    return unary_expression();
   case MINUS:
     nextExpandNoBlanks();
-    res = performIntegerPromotion( unary_expression() );
-    res.neg( res );
-    return res;
+    return -unary_expression();
   case TILDE:
     nextExpandNoBlanks();
-    res = performIntegerPromotion( unary_expression() );
-    res.not( res );
-    return res;
+    return ~unary_expression();
   case BANG:
     nextExpandNoBlanks();
-    return unary_expression().isZero() ? s_one : s_zero;
+    res = unary_expression() == 0 ? 1 : 0;
+    m_exprUnsigned = false;
+    return res;
 
   case IDENT:
     {
@@ -1249,11 +1679,11 @@ private final Constant.IntC unary_expression ()
       if (m_tok.code() != Code.IDENT)
       {
         exprError( m_tok, "Identifier expected after 'defined'" );
-        res = s_zero;
+        res = 0;
       }
       else
       {
-        res = (m_tok.symbol().ppDecl instanceof Macro) ? s_one : s_zero;
+        res = m_macros.isDefined( m_tok.symbol() ) ? 1 : 0;
         if (paren)
           nextNoBlanks();
         else
@@ -1268,6 +1698,7 @@ private final Constant.IntC unary_expression ()
           nextExpandNoBlanks();
       }
 
+      m_exprUnsigned = false;
       return res;
     }
   }
@@ -1276,15 +1707,16 @@ private final Constant.IntC unary_expression ()
 }
 
 private final Expression m_unary = new Expression() {
-  @Override Constant.IntC parse () { return unary_expression(); }
+  @Override long parse () { return unary_expression(); }
 };
 
 private final BinEx m_multipl    = new BinEx(m_unary,      Code.ASTERISK, Code.SLASH, Code.PERCENT );
 private final BinEx m_additive   = new BinEx(m_multipl,    Code.PLUS, Code.MINUS );
 
 private final Expression m_shift = new BinEx(m_additive,   Code.LESS_LESS, Code.GREATER_GREATER) {
-  @Override Constant.IntC perform (ISourceRange pos, Code code, Constant.IntC e[]) {
-    return binaryOp( pos, code, performIntegerPromotion(e[0]), performIntegerPromotion(e[1]) );
+  // No usual arithmetic conversions: the result has the type of the left operand
+  @Override long perform (ISourceRange pos, Code code, long v0, boolean u0, long v1, boolean u1) {
+    return binaryOp( pos, code, v0, v1, u0 );
   }
 };
 
@@ -1296,30 +1728,31 @@ private final BinEx m_Or         = new BinEx(m_Xor,        Code.VERTICAL);
 private final BinEx m_logicalAnd = new BinEx(m_Or,         Code.AMPERSAND_AMPERSAND);
 private final BinEx m_logicalOR  = new BinEx(m_logicalAnd, Code.VERTICAL_VERTICAL);
 
-private final Constant.IntC conditional_expression ()
+private final long conditional_expression ()
 {
-  Constant.IntC cond = m_logicalOR.parse();
+  final long cond = m_logicalOR.parse();
   if (m_tok.code() == Code.QUESTION)
   {
-    cond = performIntegerPromotion( cond );
-
     nextExpandNoBlanks();
 
-    Constant.IntC e[] = new Constant.IntC[2];
-    e[0] = constant_expression();
+    final long v0 = constant_expression();
+    final boolean u0 = m_exprUnsigned;
+    long v1 = 0;
+    boolean u1 = false;
     if (need( Code.COLON ))
-      e[1] = conditional_expression();
-    else
-      e[1] = s_zero;
+    {
+      v1 = conditional_expression();
+      u1 = m_exprUnsigned;
+    }
 
-    performUsualArithmeticConversions( e );
-    return cond.isTrue() ? e[0] : e[1];
+    m_exprUnsigned = u0 || u1;
+    return cond != 0 ? v0 : v1;
   }
   else
     return cond;
 }
 
-private final Constant.IntC constant_expression ()
+private final long constant_expression ()
 {
   return conditional_expression();
 }
@@ -1327,10 +1760,10 @@ private final Constant.IntC constant_expression ()
 private final boolean parseExpression ()
 {
   m_exprErrorReported = false;
-  Constant.IntC intC = conditional_expression();
+  final long value = conditional_expression();
   if (m_exprErrorReported)
     skipUntilEOL();
-  return intC.isTrue();
+  return value != 0;
 }
 
 private final void _parseIf ( Token tok, String what )
@@ -1391,6 +1824,8 @@ private final void parseElif ()
 
   assert m_tok.code() == Code.EOF || m_tok.code() == Code.NEWLINE;
 
+  if (m_guard.state == IncludeGuard.INSIDE && m_ifStack.size() == m_guard.depth)
+    m_guard.state = IncludeGuard.NONE;
   m_exec = m_ifTop.parentExec && !m_ifTop.cond && cond;
   m_ifTop.tok = tok;
   m_ifTop.cond |= cond;
@@ -1411,9 +1846,34 @@ private final void parseErrorDirective ()
   m_reporter.error( m_tok, "#error %s", msg.toString() );
 }
 
+private final FileKey getFileKey ( String absPath )
+{
+  FileKey key;
+  if ( (key = m_fileKeys.get( absPath )) == null)
+  {
+    if ( (key = FileKey.make( absPath )) != null)
+      m_fileKeys.put( absPath, key );
+  }
+  return key;
+}
+
 private final void parsePragmaDirective ()
 {
-  m_reporter.warning( m_tok, "Ignoring unsupported #pragma" );
+  SourceRange pos = new SourceRange( m_tok );
+  nextNoBlanks(); // consume the 'pragma'
+
+  if (m_tok.code() == Code.IDENT && m_tok.symbol().ppCode == PPSymCode.ONCE)
+  {
+    nextNoBlanks();
+    checkEOL( "pragma once" );
+
+    FileKey key = getFileKey( m_absPath );
+    if (key != null)
+      m_onceFiles.add( key );
+    return;
+  }
+
+  m_reporter.warning( pos, "Ignoring unsupported #pragma" );
   skipUntilEOL();
 }
 
@@ -1421,6 +1881,15 @@ private final void parseDirective ()
 {
   nextNoBlanks(); // consume the '#'
 
+  // Anything but an empty directive outside of an include guard means the file isn't guarded.
+  // The #ifndef starting the guard is handled in parseIfdef()
+  if (m_guard.state != IncludeGuard.INSIDE && m_tok.code() != Code.NEWLINE &&
+      !(m_guard.state == IncludeGuard.START && m_tok.code() == Code.IDENT &&
+        m_tok.symbol().ppCode == PPSymCode.IFNDEF))
+  {
+    m_guard.state = IncludeGuard.NONE;
+  }
+
   switch (m_tok.code())
   {
   case NEWLINE:
@@ -1524,49 +1993,30 @@ private final Token stringify ( TokenList<Token> toks )
   }
 }
 
+/** Scratch buffer and token for re-lexing the result of '##' */
+private byte[] m_pasteBuf = new byte[64];
+private final Token m_pasteTok = new Token();
+
 private final Token concatTokens ( ISourceRange pos, Token a, Token b )
 {
-  ByteArrayOutputStream os = new ByteArrayOutputStream(a.length() + b.length());
-  try
-  {
-    a.output(os);
-    b.output(os);
-  }
-  catch (IOException e)
-  {
-    throw new RuntimeException( "Unexpected", e );
-  }
-  byte[] bytes = os.toByteArray();
-  ByteArrayInputStream is = new ByteArrayInputStream(bytes);
-
-  final int[] errorCount = new int[1];
-
-  final IErrorReporter reporter = new IErrorReporter()
-  {
-    @Override
-    public void warning ( final ISourceRange rng, final String format, final Object... args ) {}
-
-    @Override
-    public void error ( final ISourceRange rng, final String format, final Object... args )
-    {
-      ++errorCount[0];
-    }
+  final int lenA = a.length();
+  final int len = lenA + b.length();
+  if (len + 2 > m_pasteBuf.length) // We need two zeroes after the text
+    m_pasteBuf = new byte[Math.max( len + 2, m_pasteBuf.length * 2 )];
 
-    @Override
-    public String formatRange ( final ISourceRange rng ) {return "";}
-  };
+  a.copyText( m_pasteBuf, 0 );
+  b.copyText( m_pasteBuf, lenA );
+  m_pasteBuf[len] = 0;
+  m_pasteBuf[len + 1] = 0;
 
-  PPLexer lexer = new PPLexer( reporter, "", is, m_symTable, bytes.length+1 );
-  Token res = lexer.innerNextToken();
-  if (res.code() == Code.EOF || res.code() == Code.WHITESPACE || errorCount[0] != 0 ||
-      lexer.lookAhead(1).code() != Code.EOF)
+  if (!PPLexer.lexSingleToken( m_symTable, m_pasteBuf, 0, len, m_pasteTok ))
   {
     m_reporter.error( pos, "Combining \"%s\" and \"%s\" does not produce a valid token",
-                      Utils.asciiString( bytes, 0, a.length() ),
-                      Utils.asciiString( bytes, a.length(), b.length() ) );
+                      Utils.asciiString( m_pasteBuf, 0, lenA ),
+                      Utils.asciiString( m_pasteBuf, lenA, len - lenA ) );
     return null;
   }
-  return res.clone();
+  return m_pasteTok.clone();
 }
 
 
@@ -1603,13 +2053,6 @@ private final boolean expand ( ISourceRange pos, Macro macro, ArrayList<Arg> arg
           arg.original.addLast(new Token(Code.WHITESPACE));
         }
         arg.original.transferAll(args.get(i).original);
-        if (!arg.expanded.isEmpty())
-        {
-          // vaArgs.add( new Token(Code.WHITESPACE) );
-          arg.expanded.addLast(new Token(Code.COMMA));
-          arg.expanded.addLast(new Token(Code.WHITESPACE));
-        }
-        arg.expanded.transferAll(args.get(i).expanded);
       }
 
       for ( int i = args.size() - 1; i > macro.paramCount(); --i )
@@ -1672,7 +2115,7 @@ private final boolean expandFuncMacro ( SourceRange pos, Macro macro )
     for (;;)
     {
       TokenList<Token> original = parseMacroArg();
-      args.add( new Arg( original, expandTokens( original ) ) );
+      args.add( new Arg( original ) );
 
       if (m_tok.code() == Code.R_PAREN)
         break;
@@ -1691,7 +2134,15 @@ private final boolean expandFuncMacro ( SourceRange pos, Macro macro )
   assert m_tok.code() == Code.R_PAREN;
   //nextWithBlanks();
 
-  pos.extend( m_tok );
+  if (!(pos instanceof CompactRange))
+    pos.extend( m_tok );
+  else if (m_tok.hasLazyLocation())
+  {
+    pos = m_srcMgr.getRange( SourceManager.range( SourceManager.rangeBegin( ((CompactRange)pos).getRange() ),
+                                                  SourceManager.rangeEnd( m_tok.getCompactRange() ) ) );
+  }
+  else
+    pos = new SourceRange( pos ).extend( m_tok );
 
   return expand( pos, macro, args );
 }
@@ -1709,7 +2160,7 @@ private final boolean expandBuiltin ( ISourceRange pos, Macro macro )
     tok.setStringConst( pos.getFileName() );
     break;
   case __DATE__:
-    tok.copyFrom( (Token) macro.body.first());
+    tok.copyFrom( macro.body.newToken( 0 ) );
     break;
   }
 
@@ -1738,9 +2189,9 @@ private final boolean expandObjectMacro ( ISourceRange pos, Macro macro )
  */
 private final boolean possiblyExpandMacro ( Token tok )
 {
-  if (!(tok.symbol().ppDecl instanceof Macro))
+  final Macro macro = m_macros.get( tok.symbol() );
+  if (macro == null)
     return false;
-  Macro macro = (Macro) tok.symbol().ppDecl;
 
   if (macro.funcLike && lookAheadForLParen().code() != Code.L_PAREN)
     return false;
@@ -1748,7 +2199,7 @@ private final boolean possiblyExpandMacro ( Token tok )
   if (tok.isNoExpand())
     return false;
 
-  SourceRange pos = new SourceRange(tok);
+  SourceRange pos = tok.copyRange();
   return
     macro.funcLike ? expandFuncMacro( pos, macro ) : expandObjectMacro( pos, macro );
 }
@@ -1761,10 +2212,14 @@ private final TokenList<Token> expandTokens ( TokenList<Token> tokens )
   Token saveTok = m_tok.clone(); // to be on the safe side
   try
   {
-    pushContext( new Context( tokens ) );
+    final Context ctx = new Context( tokens );
+    pushContext( ctx );
 
     while (nextExpandWithBlanks().code() != Code.EOF)
       expanded.addLastClone( m_tok );
+
+    if (m_ctx == ctx) // Don't leave the exhausted context on top of the caller's
+      popContext();
   }
   finally
   {
@@ -1792,10 +2247,28 @@ public final Token<SYM> nextToken ()
         parseDirective();
       else
       {
-        if (m_exec)
+        if (m_guard.state != IncludeGuard.INSIDE &&
+            m_tok.code() != Code.NEWLINE && m_tok.code() != Code.EOF)
+        {
+          m_guard.state = IncludeGuard.NONE;
+        }
+
+        if (m_exec && !m_depScan)
           curExpandWithBlanks();
         else
+        {
           discardLine();
+          // Jump over the following lines which can't contain a directive. The include guard
+          // state is not affected by them: it is already INSIDE or NONE.
+          if (m_tok.code() == Code.NEWLINE && m_ctx == null &&
+              (m_guard.state == IncludeGuard.INSIDE || m_guard.state == IncludeGuard.NONE))
+          {
+            if (m_exec)
+              m_lex.scanLines();
+            else
+              m_lex.skipLines();
+          }
+        }
       }
     }
     else
@@ -1806,6 +2279,8 @@ public final Token<SYM> nextToken ()
     else if (m_tok.code() == Code.EOF)
     {
       m_lineBeg = true;
+      if (m_guard.state == IncludeGuard.AFTER)
+        m_guardedFiles.put( m_absPath, m_guard.macro );
       m_lex.close();
       if (popSource())
         continue;
@@ -1813,7 +2288,7 @@ public final Token<SYM> nextToken ()
         break;
     }
 
-    if (m_exec)
+    if (m_exec && !m_depScan)
       return m_tok;
   }
 
@@ -1825,15 +2300,75 @@ public final Token<SYM> nextToken ()
   return m_tok;
 }
 
+/**
+ * Fill {@code batch} with the next tokens, up to its capacity, so that a consumer doesn't need
+ * a call per token. The EOF token is always the last one in a batch.
+ *
+ * @return the number of tokens in the batch
+ */
+public final int nextTokens ( TokenBatch<SYM> batch )
+{
+  batch.clear( m_srcMgr );
+  final boolean skipWhitespace = batch.isSkipWhitespace();
+  do
+  {
+    final Token<SYM> tok = nextToken();
+    final Code code = tok.code();
+    if (skipWhitespace && (code == Code.WHITESPACE || code == Code.NEWLINE))
+      continue;
+    batch.add( tok, m_reporter );
+    if (code == Code.EOF)
+      break;
+  }
+  while (!batch.isFull());
+  return batch.size();
+}
+
+/**
+ * Macro-expand an argument of the macro in the current context, the first time it is needed.
+ * The argument is expanded as if the macro context hadn't been pushed yet: the macro itself may be
+ * expanded and the lookahead and skipped whitespace of the caller are preserved.
+ */
+private final TokenList<Token> expandArg ( Macro macro, Arg arg )
+{
+  if (arg.expanded == null)
+  {
+    Token[] la = null;
+    if (!m_laQueue.isEmpty())
+    {
+      la = m_laQueue.toArray( new Token[m_laQueue.size()] );
+      m_laQueue.clear();
+    }
+    final Token savedWs = m_skippedWs;
+    final boolean expanding = macro.expanding;
+    macro.expanding = false;
+    try
+    {
+      arg.expanded = expandTokens( arg.original );
+    }
+    finally
+    {
+      macro.expanding = expanding;
+      m_skippedWs = savedWs;
+      if (la != null)
+      {
+        assert m_laQueue.isEmpty();
+        Collections.addAll( m_laQueue, la );
+      }
+    }
+  }
+  return arg.expanded;
+}
+
 private static final class Arg
 {
   public final TokenList<Token> original;
-  public final TokenList<Token> expanded;
+  /** The macro-expanded argument, computed on demand by {@link #expandArg} */
+  public TokenList<Token> expanded;
 
-  private Arg ( final TokenList<Token> original, final TokenList<Token> expanded )
+  private Arg ( final TokenList<Token> original )
   {
     this.original = original;
-    this.expanded = expanded;
   }
 }
 
@@ -1844,37 +2379,49 @@ private static enum ContextState
 
 private final class Context
 {
-  private final SourceRange m_pos = new SourceRange();
+  private final SourceRange m_pos;
+  /** The encoded range of the invocation, if it has a lazy location */
+  private SourceManager m_posMgr;
+  private long m_posRange;
   final Macro macro;
   private final ArrayList<Arg> m_args;
-  private final TokenList<AbstractToken> m_tokens;
+  private final PackedTokens m_body;
   private ContextState m_state;
-  private AbstractToken m_next;
+  /** Index of the next element of {@link #m_body} */
+  private int m_next;
 
   private TokenList<Token> m_argTokens;
   private Token m_argNext;
 
-  private AbstractToken[] m_concatChildren;
-  private int m_concatIndex;
+  /** Index of the next child of the current concatenation in {@link #m_body} and the end */
+  private int m_concatIndex, m_concatEnd;
   private Token m_concatA, m_concatB;
 
   Context ( ISourceRange pos, final Macro macro, final ArrayList<Arg> args )
   {
     this.macro = macro;
-    m_pos.setRange( pos );
+    if (pos instanceof CompactRange) // It is immutable
+    {
+      m_pos = (CompactRange)pos;
+      m_posMgr = ((CompactRange)pos).getSourceManager();
+      m_posRange = ((CompactRange)pos).getRange();
+    }
+    else
+      m_pos = new SourceRange( pos );
     m_args = args;
-    m_tokens = macro.body;
+    m_body = macro.body;
     m_state = ContextState.MACRO;
-    m_next = m_tokens.first();
+    m_next = 0;
   }
 
   Context ( TokenList<Token> tokens )
   {
+    m_pos = new SourceRange();
     this.macro = null;
     m_args = null;
-    m_tokens = null;
+    m_body = PackedTokens.EMPTY;
     m_state = ContextState.PARAM;
-    m_next = null;
+    m_next = 0;
 
     m_argTokens = tokens;
     m_argNext = m_argTokens.first();
@@ -1886,19 +2433,20 @@ private final class Context
     if (res == null)
       return null;
 
-    if (m_pos.line1 > 0)
-      res.setRange( m_pos );
-
     if (!res.isNoExpand() && res.code() == Code.IDENT)
-      if (res.symbol().ppDecl instanceof Macro)
+    {
+      final Macro macro = m_macros.get( res.symbol() );
+      if (macro != null && macro.expanding)
       {
-        Macro macro = (Macro) res.symbol().ppDecl;
-        if (macro.expanding)
-        {
-          res = res.clone();
-          res.setNoExpand( true );
-        }
+        res = res.clone();
+        res.setNoExpand( true );
       }
+    }
+
+    if (m_posMgr != null)
+      res.setCompactRange( m_posMgr, m_posRange );
+    else if (m_pos.line1 > 0)
+      res.setRange( m_pos );
 
     return res;
   }
@@ -1907,31 +2455,31 @@ private final class Context
   {
     for(;;)
     {
-      AbstractToken tok;
-
       switch (m_state)
       {
         case MACRO:
         {
-          if ((tok = m_next) == null)
+          final int tok;
+          if ((tok = m_next) == m_body.size())
           {
             popContext();
             return null;
           }
-          m_next = m_tokens.next(m_next);
+          m_next = m_body.next( tok );
 
-          switch (tok.code())
+          switch (m_body.code( tok ))
           {
             case MACRO_PARAM:
             {
-              ParamToken pt = (ParamToken)tok;
+              ParamDecl param = m_body.param( tok );
               // Note: we must check args.size() because in a variadic macro the last argument may be missing
-              Arg arg = pt.param.index < m_args.size() ? m_args.get( pt.param.index ) : null;
-              if (pt.stringify)
+              Arg arg = param.index < m_args.size() ? m_args.get( param.index ) : null;
+              if (m_body.isStringify( tok ))
                 return stringify(arg != null ? arg.original : null);
               else if (arg != null)
               {
-                m_argTokens = arg.expanded;
+                assert param.usedExpanded;
+                m_argTokens = expandArg( macro, arg );
                 m_argNext = m_argTokens.first();
                 m_state = ContextState.PARAM;
               }
@@ -1939,31 +2487,30 @@ private final class Context
             break;
 
             case CONCAT:
-              m_concatChildren = ((ConcatToken)tok).tokens;
-              m_concatIndex = 0;
+              m_concatIndex = tok + 1;
+              m_concatEnd = m_next;
               m_concatA = m_concatB = null;
 
               // GCC extension. ', ## __VA_ARGS__' eliminates the comma if __VA_ARGS__ is null
               //
               if (m_opts.getGccExtensions() &&
-                  m_concatChildren.length == 2 &&
-                  m_concatChildren[0].code() == Code.COMMA &&
-                  m_concatChildren[1].code() == Code.MACRO_PARAM &&
-                  ((ParamToken)m_concatChildren[1]).param.variadic &&
-                  !((ParamToken)m_concatChildren[1]).stringify)
+                  m_body.concatCount( tok ) == 2 &&
+                  m_body.code( tok + 1 ) == Code.COMMA &&
+                  m_body.code( tok + 2 ) == Code.MACRO_PARAM &&
+                  m_body.param( tok + 2 ).variadic &&
+                  !m_body.isStringify( tok + 2 ))
               {
-                ParamToken pt = (ParamToken)m_concatChildren[1];
+                ParamDecl param = m_body.param( tok + 2 );
                 // Note: we must check args.size() because in a variadic macro the last argument may be missing
-                Arg arg = pt.param.index < m_args.size() ? m_args.get( pt.param.index ) : null;
+                Arg arg = param.index < m_args.size() ? m_args.get( param.index ) : null;
                 if (arg != null)
                 {
-                  m_argTokens = arg.expanded;
+                  assert param.usedExpanded;
+                  m_argTokens = expandArg( macro, arg );
                   m_argNext = m_argTokens.first();
                   m_state = ContextState.SPACE_BEFORE_PARAM;
 
-                  Token res = (Token)m_concatChildren[0];
-                  m_concatChildren = null;
-                  return res;
+                  return m_body.newToken( tok + 1 );
                 }
                 else
                   break;
@@ -1972,7 +2519,7 @@ private final class Context
               break;
 
             default:
-              return (Token)tok;
+              return m_body.newToken( tok );
           }
         }
         break;
@@ -2014,9 +2561,8 @@ private final class Context
             }
           }
 
-          if (m_concatIndex == m_concatChildren.length)
+          if (m_concatIndex == m_concatEnd)
           {
-            m_concatChildren = null;
             m_state = ContextState.MACRO;
             if (m_concatA != null)
             {
@@ -2028,13 +2574,13 @@ private final class Context
               break;
           }
 
-          AbstractToken child = m_concatChildren[ m_concatIndex++ ];
-          if (child instanceof ParamToken)
+          final int child = m_concatIndex++;
+          if (m_body.code( child ) == Code.MACRO_PARAM)
           {
-            ParamToken pt = (ParamToken)child;
+            ParamDecl param = m_body.param( child );
             // Note: we must check args.size() because in a variadic macro the last argument may be missing
-            Arg arg = pt.param.index < m_args.size() ? m_args.get( pt.param.index ) : null;
-            if (pt.stringify)
+            Arg arg = param.index < m_args.size() ? m_args.get( param.index ) : null;
+            if (m_body.isStringify( child ))
             {
               m_concatB = stringify(arg != null ? arg.original : null);
               m_state = ContextState.CONCAT;
@@ -2056,7 +2602,7 @@ private final class Context
           }
           else
           {
-            m_concatB = (Token)child;
+            m_concatB = m_body.newToken( child );
             m_state = ContextState.CONCAT;
             break;
           }
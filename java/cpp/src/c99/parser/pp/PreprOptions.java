@@ -1,5 +1,7 @@
 package c99.parser.pp;
 
+import java.io.File;
+
 public class PreprOptions implements IPreprOptions
 {
 private boolean m_noStdInc = false;
@@ -7,14 +9,38 @@ private boolean m_gccExtensions = true;
 
 private boolean m_warnUndef = false;
 private int m_maxIncludeDepth = 256;
+private File m_workingDir = null;
+private boolean m_lazyLocations = false;
+private boolean m_dependencyScan = false;
 
 @Override public boolean getNoStdInc () { return m_noStdInc; }
 @Override public boolean getGccExtensions () { return m_gccExtensions; }
 @Override public boolean getWarnUndef () { return m_warnUndef; }
 @Override public int getMaxIncludeDepth () { return m_maxIncludeDepth; }
+@Override public File getWorkingDir () { return m_workingDir; }
+@Override public boolean getLazyLocations () { return m_lazyLocations; }
+@Override public boolean getDependencyScan () { return m_dependencyScan; }
 
 public void setNoStdInc ( boolean noStdInc ) { this.m_noStdInc = noStdInc; }
 public void setGccExtensions ( boolean gccExtensions ) { this.m_gccExtensions = gccExtensions; }
 public void setWarnUndef ( boolean warnUndef ) { this.m_warnUndef = warnUndef; }
 public void setMaxIncludeDepth ( int maxIncludeDepth ) { this.m_maxIncludeDepth = maxIncludeDepth; }
+public void setWorkingDir ( File workingDir ) { this.m_workingDir = workingDir; }
+public void setLazyLocations ( boolean lazyLocations ) { this.m_lazyLocations = lazyLocations; }
+public void setDependencyScan ( boolean dependencyScan ) { this.m_dependencyScan = dependencyScan; }
+
+/**
+ * Resolve a relative file against a working directory.
+ * @param workDir null means the current directory of the process
+ */
+public static File resolveFile ( File workDir, File f )
+{
+  return workDir != null && !f.isAbsolute() ? new File( workDir, f.getPath() ) : f;
+}
+
+/** Resolve a relative file name against the working directory in the options */
+public static File resolveFile ( IPreprOptions opts, String fileName )
+{
+  return resolveFile( opts.getWorkingDir(), new File( fileName ) );
+}
 }
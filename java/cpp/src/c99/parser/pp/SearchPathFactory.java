@@ -1,21 +1,46 @@
 package c99.parser.pp;
 
 import java.io.File;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SearchPathFactory
 {
+/** Marks a negative result in the caches */
+private static final ISearchPath.Result s_notFound = new ISearchPath.Result( null, null );
+
+private final DirectoryIndex m_index;
+/** Relative paths are resolved against this directory. null means the current directory */
+private File m_workDir;
+
 private LinkedHashSet<File> m_defSet = new LinkedHashSet<File>();
+/** Searched after the -I directories and, unlike the default ones, kept with -nostdinc */
+private LinkedHashSet<File> m_systemSet = new LinkedHashSet<File>();
 private LinkedHashSet<File> m_angledSet = new LinkedHashSet<File>();
 private LinkedHashSet<File> m_quotedSet = new LinkedHashSet<File>();
 
-private final HashMap<File,ISearchPath.Result> m_angledCache = new HashMap<File, ISearchPath.Result>();
+// The caches are concurrent, because the ISearchPath may be shared by several threads
+private final ConcurrentHashMap<File,ISearchPath.Result> m_angledCache =
+  new ConcurrentHashMap<File, ISearchPath.Result>();
 /**
  * Maps from "cur-directory:q-include-name" to Result
  */
-private final HashMap<String,ISearchPath.Result> m_quotedCache = new HashMap<String, ISearchPath.Result>();
+private final ConcurrentHashMap<String,ISearchPath.Result> m_quotedCache =
+  new ConcurrentHashMap<String, ISearchPath.Result>();
+
+public SearchPathFactory ()
+{
+  this( new DirectoryIndex() );
+}
+
+/**
+ * @param index an index of directory contents, which may be shared with other instances
+ */
+public SearchPathFactory ( DirectoryIndex index )
+{
+  m_index = index;
+}
 
 public void addDefaultInclude ( String path )
 {
@@ -23,6 +48,12 @@ public void addDefaultInclude ( String path )
   m_defSet.add( new File(path) );
 }
 
+public void addSystemInclude ( String path )
+{
+  assert path != null;
+  m_systemSet.add( new File(path) );
+}
+
 public void addInclude ( String path )
 {
   assert path != null;
@@ -35,28 +66,44 @@ public void addQuotedInclude ( String path )
   m_quotedSet.add( new File(path) );
 }
 
-/** Must be invoked after all options have been parsed, to prepare the internal structures */
+/**
+ * Must be invoked after all options have been parsed, to prepare the internal structures.
+ * The returned object is thread-safe.
+ */
 public ISearchPath finish ( IPreprOptions opts )
 {
+  m_workDir = opts.getWorkingDir();
+
   if (opts.getNoStdInc())
     m_defSet.clear();
   else
     m_angledSet.removeAll( m_defSet );
+  m_angledSet.removeAll( m_systemSet );
+  m_defSet.removeAll( m_systemSet );
 
   // Remove all non-existent include directories to speed up the lookup later
   for (Iterator<File> it = m_defSet.iterator(); it.hasNext(); )
   {
     final File dirPath = it.next();
-    if (!dirPath.isDirectory())
+    if (!resolve( dirPath ).isDirectory())
+      it.remove();
+  }
+  for (Iterator<File> it = m_systemSet.iterator(); it.hasNext(); )
+  {
+    final File dirPath = it.next();
+    if (!resolve( dirPath ).isDirectory())
       it.remove();
   }
   for (Iterator<File> it = m_angledSet.iterator(); it.hasNext(); )
   {
     final File dirPath = it.next();
-    if (!dirPath.isDirectory())
+    if (!resolve( dirPath ).isDirectory())
       it.remove();
   }
 
+  // Pick up any changes in the directories since the index was last used
+  m_index.revalidate();
+
   return new ISearchPath(){
     @Override
     public Result searchQuoted ( final String curFile, final String fileName )
@@ -83,20 +130,21 @@ private final ISearchPath.Result _searchQuoted ( final String curFile, final Fil
 
   if ( (res = m_quotedCache.get( key )) == null )
   {
-    File f = new File( curDir, fileName.getPath() );
-    if (!f.exists())
+    File f;
+    if (m_index.exists( curDir != null ? resolve( curDir ) : m_workDir, fileName.getPath() ))
+      f = new File( curDir, fileName.getPath() );
+    else
       f = search( m_quotedSet, fileName.getPath() );
 
     if (f != null)
-      res = new ISearchPath.Result( f.getPath(), f.getAbsolutePath() );
+      res = new ISearchPath.Result( f.getPath(), resolve( f ).getAbsolutePath() );
     else
       res = _searchAngled( fileName );
 
-    if (res != null)
-      m_quotedCache.put( key, res );
+    m_quotedCache.put( key, res != null ? res : s_notFound );
   }
 
-  return res;
+  return res != s_notFound ? res : null;
 }
 
 private final ISearchPath.Result _searchAngled ( final File fileName )
@@ -106,6 +154,7 @@ private final ISearchPath.Result _searchAngled ( final File fileName )
   if ( (res = m_angledCache.get( fileName )) == null)
   {
     File f;
+    boolean system = false;
 
     if (fileName.isAbsolute())
     {
@@ -115,22 +164,30 @@ private final ISearchPath.Result _searchAngled ( final File fileName )
         f = null;
     }
     else if ( (f = search( m_angledSet, fileName.getPath() )) == null)
-      f = search( m_defSet, fileName.getPath() );
+    {
+      system = true;
+      if ( (f = search( m_systemSet, fileName.getPath() )) == null)
+        f = search( m_defSet, fileName.getPath() );
+    }
 
-    if (f != null)
-      m_angledCache.put( fileName, res = new ISearchPath.Result(f.getPath(), f.getAbsolutePath()) );
+    res = f != null ? new ISearchPath.Result(f.getPath(), resolve( f ).getAbsolutePath(), system) : s_notFound;
+    m_angledCache.put( fileName, res );
   }
 
-  return res;
+  return res != s_notFound ? res : null;
+}
+
+private File resolve ( File f )
+{
+  return PreprOptions.resolveFile( m_workDir, f );
 }
 
-private static File search ( LinkedHashSet<File> set, String fileName )
+private File search ( LinkedHashSet<File> set, String fileName )
 {
   for ( File dir : set )
   {
-    File file = new File(dir, fileName);
-    if (file.exists())
-      return file;
+    if (m_index.exists( resolve( dir ), fileName ))
+      return new File(dir, fileName);
   }
   return null;
 }
@@ -0,0 +1,284 @@
+package c99.parser.pp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import c99.ISourceRange;
+import c99.SourceRange;
+import c99.parser.IdentTable;
+
+/**
+ * The binary encoding of the preprocessor state saved by {@link Prepr#saveSnapshot}.
+ *
+ * <p>Numbers are encoded as zig-zag varints, so small values take a single byte. Symbols and
+ * strings are stored the first time they are referenced; afterwards they are referenced by
+ * index. Symbols are interned in the symbol table of the loading preprocessor only once. Strings
+ * are encoded in UTF-8.
+ */
+final class Snapshot
+{
+/** "C99S" */
+static final int MAGIC = 0x43393953;
+static final int VERSION = 3;
+
+private static final Charset s_utf8 = Charset.forName( "UTF-8" );
+
+static final class Writer
+{
+  private byte[] m_buf = new byte[4096];
+  private int m_len;
+  private final IdentityHashMap<PPSymbol,Integer> m_symbols = new IdentityHashMap<PPSymbol, Integer>();
+  private final HashMap<String,Integer> m_strings = new HashMap<String, Integer>();
+
+  Writer ()
+  {
+    writeRawInt( MAGIC );
+    writeRawInt( VERSION );
+  }
+
+  private void ensure ( int len )
+  {
+    if (m_len + len > m_buf.length)
+      m_buf = Arrays.copyOf( m_buf, Math.max( m_buf.length * 2, m_len + len ) );
+  }
+
+  private void writeRawInt ( int v )
+  {
+    ensure( 4 );
+    m_buf[m_len++] = (byte)(v >>> 24);
+    m_buf[m_len++] = (byte)(v >>> 16);
+    m_buf[m_len++] = (byte)(v >>> 8);
+    m_buf[m_len++] = (byte)v;
+  }
+
+  final void writeLong ( long v )
+  {
+    ensure( 10 );
+    v = (v << 1) ^ (v >> 63);
+    while ((v & ~0x7FL) != 0)
+    {
+      m_buf[m_len++] = (byte)((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    m_buf[m_len++] = (byte)v;
+  }
+
+  final void writeInt ( int v )
+  {
+    writeLong( v );
+  }
+
+  final void writeBoolean ( boolean v )
+  {
+    writeLong( v ? 1 : 0 );
+  }
+
+  final void writeBytes ( byte[] b, int off, int len )
+  {
+    writeInt( len );
+    ensure( len );
+    System.arraycopy( b, off, m_buf, m_len, len );
+    m_len += len;
+  }
+
+  final void writeSymbol ( PPSymbol sym )
+  {
+    Integer index = m_symbols.get( sym );
+    if (index != null)
+      writeInt( index );
+    else
+    {
+      writeInt( m_symbols.size() );
+      m_symbols.put( sym, m_symbols.size() );
+      writeBytes( sym.bytes, 0, sym.bytes.length );
+    }
+  }
+
+  /** @param s may be null */
+  final void writeString ( String s )
+  {
+    if (s == null)
+    {
+      writeInt( 0 );
+      return;
+    }
+    Integer index = m_strings.get( s );
+    if (index != null)
+      writeInt( index + 1 );
+    else
+    {
+      writeInt( m_strings.size() + 1 );
+      m_strings.put( s, m_strings.size() );
+      byte[] b = s.getBytes( s_utf8 );
+      writeBytes( b, 0, b.length );
+    }
+  }
+
+  final void writeRange ( ISourceRange rng )
+  {
+    writeString( rng.getFileName() );
+    writeInt( rng.getLine1() );
+    writeInt( rng.getCol1() );
+    writeString( rng.getFileName2() );
+    writeInt( rng.getLine2() );
+    writeInt( rng.getCol2() );
+  }
+
+  final void writeTo ( OutputStream out ) throws IOException
+  {
+    out.write( m_buf, 0, m_len );
+  }
+}
+
+static final class Reader
+{
+  private final ByteBuffer m_buf;
+  private final IdentTable<? extends PPSymbol> m_symTable;
+  private final ArrayList<PPSymbol> m_symbols = new ArrayList<PPSymbol>();
+  private final ArrayList<String> m_strings = new ArrayList<String>();
+  /** Symbol names are read here, because the symbol table copies them anyway */
+  private byte[] m_tmp = new byte[64];
+
+  /** @param buf it is not modified */
+  Reader ( ByteBuffer buf, IdentTable<? extends PPSymbol> symTable ) throws IOException
+  {
+    m_buf = buf.duplicate();
+    m_symTable = symTable;
+
+    if (m_buf.remaining() < 8 || m_buf.getInt() != MAGIC)
+      throw new IOException( "Not a preprocessor snapshot" );
+    int version = m_buf.getInt();
+    if (version != VERSION)
+      throw new IOException( "Unsupported preprocessor snapshot version " + version );
+  }
+
+  final long readLong ()
+  {
+    long v = 0;
+    int shift = 0;
+    byte b;
+    do
+    {
+      b = m_buf.get();
+      v |= (long)(b & 0x7F) << shift;
+      shift += 7;
+    }
+    while (b < 0);
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  final int readInt ()
+  {
+    return (int)readLong();
+  }
+
+  final boolean readBoolean ()
+  {
+    return readLong() != 0;
+  }
+
+  /**
+   * Read the length of the data which follows, or the number of elements each taking at least a
+   * byte. An invalid value throws {@link IndexOutOfBoundsException}, like the other corruptions.
+   */
+  final int readLength ()
+  {
+    int len = readInt();
+    if (len < 0 || len > m_buf.remaining())
+      throw new IndexOutOfBoundsException( "Invalid length " + len );
+    return len;
+  }
+
+  final byte[] readBytes ()
+  {
+    byte[] b = new byte[readLength()];
+    m_buf.get( b );
+    return b;
+  }
+
+  final PPSymbol readSymbol ()
+  {
+    int index = readInt();
+    if (index < m_symbols.size())
+      return m_symbols.get( index );
+
+    int len = readLength();
+    if (len > m_tmp.length)
+      m_tmp = new byte[Math.max( len, m_tmp.length * 2 )];
+    m_buf.get( m_tmp, 0, len );
+    PPSymbol sym = m_symTable.symbol( m_tmp, 0, len );
+    m_symbols.add( sym );
+    return sym;
+  }
+
+  final String readString ()
+  {
+    int index = readInt();
+    if (index == 0)
+      return null;
+    if (index <= m_strings.size())
+      return m_strings.get( index - 1 );
+
+    String s = new String( readBytes(), s_utf8 );
+    m_strings.add( s );
+    return s;
+  }
+
+  final SourceRange readRange ( SourceRange rng )
+  {
+    String fileName = readString();
+    int line1 = readInt(), col1 = readInt();
+    String fileName2 = readString();
+    int line2 = readInt(), col2 = readInt();
+    return rng.setRange( fileName, line1, col1, fileName2, line2, col2 );
+  }
+
+  final boolean atEnd ()
+  {
+    return !m_buf.hasRemaining();
+  }
+}
+
+static void writeMacro ( Writer w, Macro macro )
+{
+  assert macro.builtin == null;
+  w.writeSymbol( macro.symbol );
+  w.writeRange( macro.nameLoc );
+  w.writeRange( macro.bodyLoc );
+  w.writeBoolean( macro.funcLike );
+  w.writeBoolean( macro.variadic );
+  w.writeInt( macro.params.size() );
+  for ( ParamDecl param : macro.params )
+  {
+    w.writeSymbol( param.symbol );
+    w.writeBoolean( param.variadic );
+    w.writeBoolean( param.usedExpanded );
+  }
+  macro.body.write( w );
+}
+
+static Macro readMacro ( Reader r )
+{
+  PPSymbol sym = r.readSymbol();
+  Macro macro = new Macro( sym, r.readRange( new SourceRange() ), null );
+  r.readRange( macro.bodyLoc );
+  macro.funcLike = r.readBoolean();
+  macro.variadic = r.readBoolean();
+
+  final int paramCount = r.readInt();
+  for ( int i = 0; i < paramCount; ++i )
+  {
+    ParamDecl param = new ParamDecl( r.readSymbol(), i, r.readBoolean() );
+    param.usedExpanded = r.readBoolean();
+    macro.params.add( param );
+  }
+  macro.body = PackedTokens.read( r, macro.params );
+  return macro;
+}
+} // class
@@ -0,0 +1,186 @@
+package c99.parser.pp;
+
+import java.util.Arrays;
+
+/**
+ * Reduces a source file to its preprocessor directives, which is all that is needed to find the
+ * included files and the resulting macro definitions. The directive lines are copied verbatim,
+ * with their comments and line continuations. Every other line is replaced by its newlines, so
+ * the line numbers don't change.
+ *
+ * <p>Comments and character and string literals are recognized, so something looking like
+ * a directive in them is not kept. Text following a directive on the next lines of a block
+ * comment it starts is part of the directive, as in translation phase 3.
+ *
+ * @see MinimizedSourceCache
+ */
+public final class SourceMinimizer
+{
+private final byte[] m_src;
+private final int m_len;
+private byte[] m_out;
+private int m_outLen;
+
+private SourceMinimizer ( final byte[] src, final int len )
+{
+  m_src = src;
+  m_len = len;
+  m_out = new byte[Math.max( len / 8, 64 )];
+}
+
+/**
+ * @param src the contents of the file. It is not modified.
+ * @param len the number of valid bytes in {@code src}
+ * @return the minimized contents
+ */
+public static byte[] minimize ( final byte[] src, final int len )
+{
+  SourceMinimizer m = new SourceMinimizer( src, len );
+  m.run();
+  return Arrays.copyOf( m.m_out, m.m_outLen );
+}
+
+private void run ()
+{
+  int p = 0;
+  while (p < m_len)
+  {
+    final int first = skipBlanks( p );
+    final int end = endOfLine( first );
+    if (first < m_len && m_src[first] == '#')
+      append( p, end );
+    else
+    {
+      for ( int i = p; i < end; ++i )
+        if (m_src[i] == '\n')
+          appendByte( '\n' );
+    }
+    p = end;
+  }
+}
+
+private void appendByte ( int b )
+{
+  if (m_outLen == m_out.length)
+    m_out = Arrays.copyOf( m_out, m_out.length * 2 );
+  m_out[m_outLen++] = (byte)b;
+}
+
+private void append ( int from, int to )
+{
+  final int len = to - from;
+  if (m_outLen + len > m_out.length)
+    m_out = Arrays.copyOf( m_out, Math.max( m_out.length * 2, m_outLen + len ) );
+  System.arraycopy( m_src, from, m_out, m_outLen, len );
+  m_outLen += len;
+}
+
+private static boolean isSpace ( int c )
+{
+  return c == 32 || c == 9 || c == 11 || c == 12 || c == 13;
+}
+
+/**
+ * If there is a line continuation (a backslash followed only by whitespace until the end of
+ * the line) at {@code i}, return the start of the next line, otherwise return -1.
+ */
+private int splice ( int i )
+{
+  assert m_src[i] == '\\';
+  ++i;
+  while (i < m_len && isSpace( m_src[i] ))
+    ++i;
+  return i < m_len && m_src[i] == '\n' ? i + 1 : -1;
+}
+
+private boolean at ( int i, char c )
+{
+  return i < m_len && m_src[i] == c;
+}
+
+/** Skip whitespace, block comments and line continuations at the start of a line */
+private int skipBlanks ( int i )
+{
+  while (i < m_len)
+  {
+    final byte c = m_src[i];
+    int next;
+    if (isSpace( c ))
+      ++i;
+    else if (c == '\\' && (next = splice( i )) >= 0)
+      i = next;
+    else if (c == '/' && at( i + 1, '*' ))
+      i = skipBlockComment( i + 2 );
+    else
+      break;
+  }
+  return i;
+}
+
+/** @return the position after the end of the comment, or the end of the file */
+private int skipBlockComment ( int i )
+{
+  for ( ; i < m_len; ++i )
+    if (m_src[i] == '*' && at( i + 1, '/' ))
+      return i + 2;
+  return m_len;
+}
+
+/**
+ * @return the position of the closing quote or the newline ending an unterminated literal
+ */
+private int skipLiteral ( int i )
+{
+  final byte quote = m_src[i++];
+  while (i < m_len)
+  {
+    final byte c = m_src[i];
+    if (c == quote || c == '\n')
+      return i;
+    if (c == '\\')
+    {
+      final int next = splice( i );
+      i = next >= 0 ? next : i + 2;
+    }
+    else
+      ++i;
+  }
+  return m_len;
+}
+
+/**
+ * Find the end of the logical line starting at {@code i}, taking into account line
+ * continuations and block comments spanning lines.
+ *
+ * @return the position after the newline, or the end of the file
+ */
+private int endOfLine ( int i )
+{
+  while (i < m_len)
+  {
+    final byte c = m_src[i];
+    int next;
+    if (c == '\n')
+      return i + 1;
+    else if (c == '\\' && (next = splice( i )) >= 0)
+      i = next;
+    else if (c == '"' || c == '\'')
+    {
+      i = skipLiteral( i );
+      if (i < m_len && m_src[i] != '\n')
+        ++i;
+    }
+    else if (c == '/' && at( i + 1, '*' ))
+      i = skipBlockComment( i + 2 );
+    else if (c == '/' && at( i + 1, '/' ))
+    {
+      // A line comment, which may be continued on the next lines too
+      for ( i += 2; i < m_len && m_src[i] != '\n'; )
+        i = m_src[i] == '\\' && (next = splice( i )) >= 0 ? next : i + 1;
+    }
+    else
+      ++i;
+  }
+  return m_len;
+}
+} // class
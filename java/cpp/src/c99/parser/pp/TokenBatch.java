@@ -0,0 +1,168 @@
+package c99.parser.pp;
+
+import c99.IErrorReporter;
+import c99.SourceManager;
+import c99.SourceRange;
+import c99.parser.Code;
+
+/**
+ * A reusable buffer of preprocessed tokens, filled by {@link Prepr#nextTokens(TokenBatch)}. The
+ * tokens are kept in parallel arrays, so filling the buffer doesn't allocate once it has reached
+ * its capacity.
+ *
+ * <p>Every token has a code and a value:
+ * <ul>
+ *   <li>{@code IDENT}: the symbol</li>
+ *   <li>{@code INT_NUMBER}, {@code CHAR_CONST}: the {@link c99.Constant.IntC}</li>
+ *   <li>{@code REAL_NUMBER}: the {@link c99.Constant.RealC}</li>
+ *   <li>{@code STRING_CONST}: the {@code byte[]} value</li>
+ *   <li>any other token whose spelling is not determined by its code: the spelling as a String,
+ *       which is mostly needed for reporting errors</li>
+ *   <li>everything else: null</li>
+ * </ul>
+ * Numbers are converted, and conversion errors reported, while the batch is being filled.
+ *
+ * <p>The location of a token is packed in a {@code long} if it was produced by a
+ * {@link SourceManager}. Otherwise it is stored in the eager location arrays, which are allocated
+ * only if needed.
+ */
+public final class TokenBatch<SYM extends PPSymbol>
+{
+private final boolean m_skipWhitespace;
+
+private final Code[] m_codes;
+private final Object[] m_values;
+/** The compact ranges, or 0 if the location is in the eager arrays */
+private final long[] m_ranges;
+/** fileName and fileName2 of every token with an eager location */
+private String[] m_fileNames;
+/** line1, col1, line2, col2 of every token with an eager location */
+private int[] m_lineCols;
+
+private SourceManager m_srcMgr;
+private int m_size;
+
+/**
+ * @param capacity the maximum number of tokens returned by a single call
+ * @param skipWhitespace {@code WHITESPACE} and {@code NEWLINE} tokens are not stored
+ */
+public TokenBatch ( int capacity, boolean skipWhitespace )
+{
+  assert capacity > 0;
+  m_skipWhitespace = skipWhitespace;
+  m_codes = new Code[capacity];
+  m_values = new Object[capacity];
+  m_ranges = new long[capacity];
+}
+
+public final boolean isSkipWhitespace ()
+{
+  return m_skipWhitespace;
+}
+
+public final int capacity ()
+{
+  return m_codes.length;
+}
+
+public final int size ()
+{
+  return m_size;
+}
+
+public final boolean isFull ()
+{
+  return m_size == m_codes.length;
+}
+
+/** The source manager decoding the compact ranges, or null */
+public final SourceManager getSourceManager ()
+{
+  return m_srcMgr;
+}
+
+final void clear ( SourceManager srcMgr )
+{
+  // Release the values of the previous batch
+  for ( int i = 0; i < m_size; ++i )
+    m_values[i] = null;
+  m_size = 0;
+  m_srcMgr = srcMgr;
+}
+
+/** Append a token, converting its value */
+final void add ( PPDefs.Token<SYM> tok, IErrorReporter reporter )
+{
+  assert m_size < m_codes.length;
+  final int i = m_size++;
+  final Code code = tok.code();
+  m_codes[i] = code;
+
+  final Object value;
+  switch (code)
+  {
+    case IDENT: value = tok.symbol(); break;
+    case INT_NUMBER: value = tok.getIntConstValue( reporter ); break;
+    case REAL_NUMBER: value = tok.getRealConst( reporter ); break;
+    case CHAR_CONST: value = tok.getCharConstValue(); break;
+    case STRING_CONST: value = tok.getStringConstValue(); break;
+    case EOF: case NEWLINE: value = null; break;
+    default: value = code.printable.length == 0 ? tok.outputString() : null; break;
+  }
+  m_values[i] = value;
+
+  if (tok.hasLazyLocation())
+    m_ranges[i] = tok.getCompactRange();
+  else
+  {
+    m_ranges[i] = 0;
+    if (m_fileNames == null)
+    {
+      m_fileNames = new String[m_codes.length * 2];
+      m_lineCols = new int[m_codes.length * 4];
+    }
+    m_fileNames[i*2] = tok.getFileName();
+    m_fileNames[i*2 + 1] = tok.getFileName2();
+    m_lineCols[i*4] = tok.getLine1();
+    m_lineCols[i*4 + 1] = tok.getCol1();
+    m_lineCols[i*4 + 2] = tok.getLine2();
+    m_lineCols[i*4 + 3] = tok.getCol2();
+  }
+}
+
+public final Code code ( int i )
+{
+  assert i < m_size;
+  return m_codes[i];
+}
+
+public final Object value ( int i )
+{
+  assert i < m_size;
+  return m_values[i];
+}
+
+@SuppressWarnings("unchecked")
+public final SYM symbol ( int i )
+{
+  assert m_codes[i] == Code.IDENT;
+  return (SYM)m_values[i];
+}
+
+/** The compact range of a token, or 0 if it doesn't have one */
+public final long range ( int i )
+{
+  assert i < m_size;
+  return m_ranges[i];
+}
+
+/** Set {@code rng} to the location of a token */
+public final SourceRange locate ( int i, SourceRange rng )
+{
+  assert i < m_size;
+  if (m_ranges[i] != 0)
+    return m_srcMgr.locate( m_ranges[i], rng );
+  return rng.setRange( m_fileNames[i*2], m_lineCols[i*4], m_lineCols[i*4 + 1],
+                       m_fileNames[i*2 + 1], m_lineCols[i*4 + 2], m_lineCols[i*4 + 3] );
+}
+} // class
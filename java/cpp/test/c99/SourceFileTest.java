@@ -0,0 +1,54 @@
+package c99;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SourceFileTest
+{
+private static SourceFile lines ( String text )
+{
+  SourceFile sf = new SourceFile( "a.c" );
+  int line = 1;
+  sf.addLine( line, 0 );
+  for ( int i = 0; i < text.length() - 1; ++i )
+    if (text.charAt( i ) == '\n')
+      sf.addLine( ++line, i + 1 );
+  return sf;
+}
+
+@Test
+public void testLocate ()
+{
+  SourceFile sf = lines( "ab\ncdef\n\ngh\n" );
+  assertEquals( 4, sf.getLineCount() );
+  assertEquals( 1, sf.lineOf( 0 ) );
+  assertEquals( 2, sf.lineOf( 3 ) );
+  assertEquals( 4, sf.lineOf( 9 ) );
+  assertEquals( 1, sf.lineOf( 2 ) );
+  assertEquals( 3, sf.lineOf( 8 ) );
+
+  SourceRange rng = sf.locate( 4, 7, new SourceRange() );
+  assertEquals( "a.c", rng.getFileName() );
+  assertEquals( 2, rng.getLine1() );
+  assertEquals( 2, rng.getCol1() );
+  assertEquals( 2, rng.getLine2() );
+  assertEquals( 5, rng.getCol2() );
+}
+
+@Test
+public void testLineDirective ()
+{
+  SourceFile sf = lines( "a\nb\nc\nd\n" );
+  sf.addLineDirective( 3, "b.h", 97 );
+
+  SourceRange rng = sf.locate( 2, 3, new SourceRange() );
+  assertEquals( "a.c", rng.getFileName() );
+  assertEquals( 2, rng.getLine1() );
+
+  rng = sf.locate( 6, 7, rng );
+  assertEquals( "b.h", rng.getFileName() );
+  assertEquals( 101, rng.getLine1() );
+  assertEquals( 1, rng.getCol1() );
+}
+} // class
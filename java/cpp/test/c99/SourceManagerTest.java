@@ -0,0 +1,85 @@
+package c99;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SourceManagerTest
+{
+/** A file with lines of 10 bytes */
+private static SourceFile file ( String name, int lines )
+{
+  SourceFile sf = new SourceFile( name );
+  for ( int line = 1; line <= lines; ++line )
+    sf.addLine( line, (line - 1) * 10 );
+  return sf;
+}
+
+@Test
+public void testRange ()
+{
+  long r = SourceManager.range( 5, -7 );
+  assertEquals( 5, SourceManager.rangeBegin( r ) );
+  assertEquals( -7, SourceManager.rangeEnd( r ) );
+  r = SourceManager.range( Integer.MAX_VALUE, 1 );
+  assertEquals( Integer.MAX_VALUE, SourceManager.rangeBegin( r ) );
+  assertEquals( 1, SourceManager.rangeEnd( r ) );
+}
+
+@Test
+public void testInclude ()
+{
+  SourceManager mgr = new SourceManager();
+  SourceFile a = file( "a.c", 10 ), b = file( "b.h", 2 );
+
+  // a.c includes b.h on line 3, then continues from line 3
+  int deltaA = mgr.addEntry( a, 0, SourceManager.NO_LOCATION );
+  final int incLoc = deltaA + 20;
+  mgr.closeEntry( 30 );
+  int deltaB = mgr.addEntry( b, 0, incLoc );
+  mgr.closeEntry( 20 );
+  int deltaA2 = mgr.addEntry( a, 20, SourceManager.NO_LOCATION );
+  assertEquals( 3, mgr.getEntryCount() );
+
+  final int locA = deltaA + 12, locB = deltaB + 15, locA2 = deltaA2 + 45;
+  assertTrue( locA < locB && locB < locA2 );
+
+  assertSame( a, mgr.getFile( locA ) );
+  assertSame( b, mgr.getFile( locB ) );
+  assertSame( a, mgr.getFile( locA2 ) );
+  assertEquals( 15, mgr.getFileOffset( locB ) );
+  assertEquals( 45, mgr.getFileOffset( locA2 ) );
+  assertEquals( incLoc, mgr.getIncludeLoc( locB ) );
+  assertEquals( SourceManager.NO_LOCATION, mgr.getIncludeLoc( locA2 ) );
+
+  ISourceRange rng = mgr.getRange( SourceManager.range( locB, locB + 3 ) );
+  assertEquals( "b.h", rng.getFileName() );
+  assertEquals( 2, rng.getLine1() );
+  assertEquals( 6, rng.getCol1() );
+  assertEquals( 9, rng.getCol2() );
+
+  rng = mgr.getRange( SourceManager.range( locA2, locA2 + 12 ) );
+  assertEquals( "a.c", rng.getFileName() );
+  assertEquals( 5, rng.getLine1() );
+  assertEquals( 6, rng.getCol1() );
+  assertEquals( 6, rng.getLine2() );
+  assertEquals( 8, rng.getCol2() );
+}
+
+@Test
+public void testCrossFileRange ()
+{
+  SourceManager mgr = new SourceManager();
+  int deltaA = mgr.addEntry( file( "a.c", 5 ), 0, SourceManager.NO_LOCATION );
+  mgr.closeEntry( 10 );
+  int deltaB = mgr.addEntry( file( "b.h", 5 ), 0, deltaA + 5 );
+
+  ISourceRange rng = mgr.getRange( SourceManager.range( deltaA + 2, deltaB + 14 ) );
+  assertEquals( "a.c", rng.getFileName() );
+  assertEquals( 1, rng.getLine1() );
+  assertEquals( 3, rng.getCol1() );
+  assertEquals( "b.h", rng.getFileName2() );
+  assertEquals( 2, rng.getLine2() );
+  assertEquals( 5, rng.getCol2() );
+}
+} // class
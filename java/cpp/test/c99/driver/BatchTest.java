@@ -0,0 +1,101 @@
+package c99.driver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import c99.parser.pp.DirectoryIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BatchTest
+{
+private File m_dir;
+
+private static void write ( File f, String text ) throws IOException
+{
+  FileOutputStream out = new FileOutputStream( f );
+  try
+  {
+    out.write( text.getBytes( "ISO-8859-1" ) );
+  }
+  finally
+  {
+    out.close();
+  }
+}
+
+private static String read ( File f ) throws IOException
+{
+  FileInputStream in = new FileInputStream( f );
+  try
+  {
+    byte[] b = new byte[(int)f.length()];
+    int len = 0, n;
+    while (len < b.length && (n = in.read( b, len, b.length - len )) > 0)
+      len += n;
+    return new String( b, 0, len, "ISO-8859-1" );
+  }
+  finally
+  {
+    in.close();
+  }
+}
+
+@Before
+public void setUp () throws IOException
+{
+  m_dir = File.createTempFile( "batch", "" );
+  m_dir.delete();
+  m_dir.mkdir();
+}
+
+@After
+public void tearDown ()
+{
+  File[] files = m_dir.listFiles();
+  if (files != null)
+    for ( File f : files )
+      f.delete();
+  m_dir.delete();
+}
+
+private int run ( String... args )
+{
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  PrintStream err = new PrintStream( new ByteArrayOutputStream(), true );
+  return Preprocessor.run( args, m_dir, new DirectoryIndex(), null, null, out, err );
+}
+
+@Test
+public void testOutputNames () throws IOException
+{
+  write( new File( m_dir, "a.c" ), "#define X 1\nint a = X;\n" );
+  assertEquals( 0, run( "--batch", "-MD", "a.c" ) );
+  assertTrue( read( new File( m_dir, "a.i" ) ).contains( "int a = 1;" ) );
+  assertTrue( read( new File( m_dir, "a.d" ) ).startsWith( "a.o: a.c" ) );
+}
+
+@Test
+public void testOutputIsInput () throws IOException
+{
+  // The inputs must not be overwritten by their own outputs
+  final String i = "int x;\n", d = "int y;\n";
+  write( new File( m_dir, "a.i" ), i );
+  write( new File( m_dir, "b.d" ), d );
+  assertEquals( 0, run( "--batch", "-MD", "a.i", "b.d" ) );
+
+  assertEquals( i, read( new File( m_dir, "a.i" ) ) );
+  assertEquals( d, read( new File( m_dir, "b.d" ) ) );
+  assertTrue( read( new File( m_dir, "a.i.i" ) ).contains( "int x;" ) );
+  assertTrue( read( new File( m_dir, "a.d" ) ).startsWith( "a.o: a.i" ) );
+  assertTrue( read( new File( m_dir, "b.i" ) ).contains( "int y;" ) );
+  assertTrue( read( new File( m_dir, "b.d.d" ) ).startsWith( "b.o: b.d" ) );
+}
+} // class
@@ -0,0 +1,56 @@
+package c99.parser;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import c99.driver.PPSymTable;
+import c99.parser.pp.PPSymbol;
+
+import static org.junit.Assert.*;
+
+public class IdentTableTest
+{
+@Test
+public void testIntern ()
+{
+  PPSymTable tab = new PPSymTable();
+  PPSymbol a = tab.symbol( "abc" );
+  byte[] buf = "xxabcxx".getBytes();
+
+  assertSame( a, tab.symbol( buf, 2, 3 ) );
+  assertSame( a, tab.symbol( buf, 2, 3, IdentTable.hash( buf, 2, 3 ) ) );
+  assertNotSame( a, tab.symbol( buf, 2, 2 ) );
+  assertNotSame( a, tab.symbol( "" ) );
+  assertSame( tab.symbol( "" ), tab.symbol( buf, 0, 0 ) );
+  assertEquals( 3, tab.size() );
+
+  // Identifiers are numbered and ordered by creation
+  PPSymbol z = tab.symbol( "z" );
+  assertEquals( 1, a.getId() );
+  assertEquals( 4, z.getId() );
+  assertEquals( z.getId(), z.hashCode() );
+  assertTrue( a.compareTo( z ) < 0 );
+}
+
+@Test
+public void testGrow ()
+{
+  PPSymTable tab = new PPSymTable();
+  ArrayList<PPSymbol> syms = new ArrayList<PPSymbol>();
+  for ( int i = 0; i < 10000; ++i )
+    syms.add( tab.symbol( "id" + i ) );
+
+  assertEquals( 10000, tab.size() );
+  assertTrue( tab.loadFactor() <= 0.5 );
+  for ( int i = 0; i < 10000; ++i )
+  {
+    PPSymbol sym = syms.get( i );
+    assertSame( sym, tab.symbol( "id" + i ) );
+    assertEquals( "id" + i, sym.name );
+    assertEquals( i + 1, sym.hashCode() );
+  }
+  assertTrue( tab.averageProbeLength() >= 1 && tab.averageProbeLength() < 2 );
+  assertTrue( tab.maxProbeLength() >= 1 && tab.maxProbeLength() < tab.capacity() );
+}
+} // class
@@ -0,0 +1,65 @@
+package c99.parser.pp;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CppWriterTest
+{
+@Test
+public void testLineMarker () throws Exception
+{
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  CppWriter w = new CppWriter( out, 16 );
+  w.writeLineMarker( 1, "a.c" );
+  w.writeLineMarker( 1234567890, "dir/b\"c.h" );
+  w.writeLineMarker( 0, "a.c" );
+  w.flush();
+  assertEquals( "# 1 \"a.c\"\n# 1234567890 \"dir/b\\\"c.h\"\n# 0 \"a.c\"\n", out.toString( "ISO-8859-1" ) );
+}
+
+@Test
+public void testSmallBuffer () throws Exception
+{
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  CppWriter w = new CppWriter( out, 16 );
+  w.write( "abc".getBytes() );
+  w.writeSpaces( 100 );
+  w.write( "0123456789012345678901234567890123456789".getBytes() );
+  w.write( 'x' );
+  w.flush();
+
+  StringBuilder exp = new StringBuilder( "abc" );
+  for ( int i = 0; i < 100; ++i )
+    exp.append( ' ' );
+  exp.append( "0123456789012345678901234567890123456789x" );
+  assertEquals( exp.toString(), out.toString( "ISO-8859-1" ) );
+}
+
+@Test
+public void testTinyBuffer () throws Exception
+{
+  for ( int size : new int[]{ 0, 1, CppWriter.MIN_BUF_SIZE - 1 } )
+  {
+    try
+    {
+      new CppWriter( new ByteArrayOutputStream(), size );
+      fail( "accepted a buffer of " + size + " bytes" );
+    }
+    catch (IllegalArgumentException e)
+    {
+      // Expected
+    }
+  }
+
+  // The longest line marker prefix fits in the smallest buffer, even after other output
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  CppWriter w = new CppWriter( out, CppWriter.MIN_BUF_SIZE );
+  w.write( 'x' );
+  w.writeLineMarker( Integer.MIN_VALUE, "a.c" );
+  w.flush();
+  assertEquals( "x# -2147483648 \"a.c\"\n", out.toString( "ISO-8859-1" ) );
+}
+} // class
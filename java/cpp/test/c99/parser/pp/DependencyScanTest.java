@@ -0,0 +1,198 @@
+package c99.parser.pp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import c99.DummyErrorReporter;
+import c99.driver.PPSymTable;
+import c99.parser.Code;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DependencyScanTest
+{
+private static final String MAIN =
+  "#include \"a.h\"\n" +
+  "char *s = \"/* not a comment\";\n" +
+  "#include \"b.h\"\n" +
+  "int x = '\"'; /* a comment\n" +
+  "#include \"none.h\"\n" +
+  "*/ int y;\n" +
+  "  # /* a directive */ include \"a.h\"\n" +
+  "#if defined(A_H) && FOO == 2\n" +
+  "#include <s.h>\n" +
+  "#endif\n" +
+  "#ifdef NONE\n" +
+  "#include \"none.h\"\n" +
+  "#endif\n" +
+  "FOO\n";
+
+private File m_dir, m_sysDir, m_main;
+
+private static File write ( File dir, String name, String text ) throws IOException
+{
+  File f = new File( dir, name );
+  FileOutputStream out = new FileOutputStream( f );
+  try
+  {
+    out.write( text.getBytes() );
+  }
+  finally
+  {
+    out.close();
+  }
+  return f;
+}
+
+private static void delete ( File f )
+{
+  File[] files = f.listFiles();
+  if (files != null)
+    for ( File c : files )
+      delete( c );
+  f.delete();
+}
+
+@Before
+public void setUp () throws IOException
+{
+  m_dir = File.createTempFile( "deps", "" );
+  m_dir.delete();
+  m_dir.mkdir();
+  m_sysDir = new File( m_dir, "sys" );
+  m_sysDir.mkdir();
+
+  m_main = write( m_dir, "main.c", MAIN );
+  write( m_dir, "a.h", "#ifndef A_H\n#define A_H\n#define FOO 2\nint a;\n#endif\n" );
+  write( m_dir, "b.h", "int b;\n" );
+  write( m_sysDir, "s.h", "#include \"t.h\"\n" );
+  write( m_sysDir, "t.h", "int t;\n" );
+}
+
+@After
+public void tearDown ()
+{
+  delete( m_dir );
+}
+
+private Prepr<PPSymbol> prepr ( boolean scan, PrintStream msg ) throws IOException
+{
+  return prepr( scan, msg, null );
+}
+
+private Prepr<PPSymbol> prepr ( boolean scan, PrintStream msg, IFileCache cache ) throws IOException
+{
+  PreprOptions opts = new PreprOptions();
+  opts.setDependencyScan( scan );
+  SearchPathFactory search = new SearchPathFactory();
+  search.addSystemInclude( m_sysDir.getPath() );
+  Prepr<PPSymbol> pp = new Prepr<PPSymbol>( opts, new DummyErrorReporter( msg ), search.finish( opts ),
+                                            m_main.getPath(), new PPSymTable() );
+  pp.setFileCache( cache );
+  return pp;
+}
+
+@Test
+public void testScan () throws IOException
+{
+  ByteArrayOutputStream msg = new ByteArrayOutputStream();
+  Prepr<PPSymbol> pp = prepr( true, new PrintStream( msg, true ) );
+  // Only EOF is returned
+  assertEquals( Code.EOF, pp.nextToken().code() );
+  pp.close();
+  assertEquals( "", msg.toString() );
+
+  final String dir = m_dir.getPath() + File.separator;
+  final String sysDir = m_sysDir.getPath() + File.separator;
+  assertEquals( Arrays.asList( m_main.getPath(), dir + "a.h", dir + "b.h", sysDir + "s.h", sysDir + "t.h" ),
+                pp.getDependencies( true ) );
+  assertEquals( Arrays.asList( m_main.getPath(), dir + "a.h", dir + "b.h" ),
+                pp.getDependencies( false ) );
+  assertEquals( 1, pp.getSkippedIncludeCount() );
+}
+
+@Test
+public void testSameAsFull () throws IOException
+{
+  ByteArrayOutputStream msg = new ByteArrayOutputStream();
+  Prepr<PPSymbol> full = prepr( false, new PrintStream( msg, true ) );
+  while (full.nextToken().code() != Code.EOF)
+    {}
+  full.close();
+  assertEquals( "", msg.toString() );
+
+  Prepr<PPSymbol> scan = prepr( true, new PrintStream( msg, true ) );
+  scan.nextToken();
+  scan.close();
+
+  List<String> deps = full.getDependencies( true );
+  assertEquals( 5, deps.size() );
+  assertEquals( deps, scan.getDependencies( true ) );
+}
+
+@Test
+public void testMinimized () throws IOException
+{
+  ByteArrayOutputStream msg = new ByteArrayOutputStream();
+  Prepr<PPSymbol> scan = prepr( true, new PrintStream( msg, true ) );
+  scan.nextToken();
+  scan.close();
+
+  MinimizedSourceCache cache = new MinimizedSourceCache( 1 << 20 );
+  for ( int i = 0; i < 2; ++i )
+  {
+    Prepr<PPSymbol> pp = prepr( true, new PrintStream( msg, true ), cache );
+    assertEquals( Code.EOF, pp.nextToken().code() );
+    pp.close();
+    assertEquals( scan.getDependencies( true ), pp.getDependencies( true ) );
+  }
+  assertEquals( "", msg.toString() );
+  assertEquals( 4, cache.getMissCount() );
+  assertEquals( 4, cache.getHitCount() );
+}
+
+@Test
+public void testSnapshot () throws IOException
+{
+  // a.h is skipped because of the guard saved in the snapshot, and g.h isn't included again
+  File prelude = write( m_dir, "prelude.h", "#include \"a.h\"\n#include \"g.h\"\n" );
+  write( m_dir, "g.h", "#define G 1\n" );
+  File main = write( m_dir, "m.c", "#include \"a.h\"\nG\n" );
+
+  PreprOptions opts = new PreprOptions();
+  SearchPathFactory search = new SearchPathFactory();
+  ByteArrayOutputStream msg = new ByteArrayOutputStream();
+  Prepr<PPSymbol> pp = new Prepr<PPSymbol>( opts, new DummyErrorReporter( new PrintStream( msg, true ) ),
+                                            search.finish( opts ), prelude.getPath(), new PPSymTable() );
+  while (pp.nextToken().code() != Code.EOF)
+    {}
+  ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+  pp.saveSnapshot( snapshot );
+  pp.close();
+
+  for ( boolean scan : new boolean[]{ false, true } )
+  {
+    opts.setDependencyScan( scan );
+    pp = new Prepr<PPSymbol>( opts, new DummyErrorReporter( new PrintStream( msg, true ) ),
+                              search.finish( opts ), main.getPath(), new PPSymTable() );
+    pp.loadSnapshot( ByteBuffer.wrap( snapshot.toByteArray() ) );
+    while (pp.nextToken().code() != Code.EOF)
+      {}
+    pp.close();
+    assertEquals( 1, pp.getSkippedIncludeCount() );
+    final String dir = m_dir.getPath() + File.separator;
+    assertEquals( Arrays.asList( main.getPath(), prelude.getPath(), dir + "a.h", dir + "g.h" ),
+                  pp.getDependencies( false ) );
+  }
+  assertEquals( "", msg.toString() );
+}
+} // class
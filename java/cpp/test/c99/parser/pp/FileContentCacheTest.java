@@ -0,0 +1,89 @@
+package c99.parser.pp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileContentCacheTest
+{
+private File m_a, m_b;
+
+private static void write ( File f, String contents ) throws IOException
+{
+  FileOutputStream out = new FileOutputStream( f );
+  try
+  {
+    out.write( contents.getBytes( "ISO-8859-1" ) );
+  }
+  finally
+  {
+    out.close();
+  }
+}
+
+@Before
+public void setUp () throws Exception
+{
+  m_a = File.createTempFile( "fcc", ".h" );
+  m_b = File.createTempFile( "fcc", ".h" );
+  write( m_a, "0123456789" );
+  write( m_b, "abcdefghij" );
+}
+
+@After
+public void tearDown () throws Exception
+{
+  m_a.delete();
+  m_b.delete();
+}
+
+@Test
+public void testHitAndInvalidate () throws Exception
+{
+  FileContentCache cache = new FileContentCache( 1000 );
+
+  byte[] d1 = cache.read( m_a );
+  assertEquals( "0123456789", new String( d1, "ISO-8859-1" ) );
+  assertSame( d1, cache.read( m_a ) );
+  assertEquals( 1, cache.getMissCount() );
+  assertEquals( 1, cache.getHitCount() );
+
+  // A different size invalidates the entry
+  write( m_a, "01234" );
+  assertEquals( "01234", new String( cache.read( m_a ), "ISO-8859-1" ) );
+  assertEquals( 2, cache.getMissCount() );
+  assertEquals( 5, cache.getUsedBytes() );
+}
+
+@Test
+public void testEviction () throws Exception
+{
+  FileContentCache cache = new FileContentCache( 15 );
+
+  cache.read( m_a );
+  cache.read( m_b );
+  // Only one of the files fits in the budget and 'a' is the least recently used
+  assertEquals( 1, cache.getEntryCount() );
+  assertEquals( 10, cache.getUsedBytes() );
+
+  cache.read( m_b );
+  assertEquals( 1, cache.getHitCount() );
+  cache.read( m_a );
+  assertEquals( 3, cache.getMissCount() );
+}
+
+@Test
+public void testNotCached () throws Exception
+{
+  FileContentCache cache = new FileContentCache( 5 );
+  assertNotNull( cache.read( m_a ) );
+  assertEquals( 0, cache.getEntryCount() );
+  assertNull( cache.read( m_a.getParentFile() ) );
+}
+} // class
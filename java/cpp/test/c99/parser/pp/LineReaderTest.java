@@ -0,0 +1,70 @@
+package c99.parser.pp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LineReaderTest
+{
+private File m_file;
+
+@Before
+public void setUp () throws Exception
+{
+  m_file = File.createTempFile( "lines", ".c" );
+  FileOutputStream out = new FileOutputStream( m_file );
+  try
+  {
+    for ( int i = 0; i < 1000; ++i )
+      out.write( ("line " + i + "\n").getBytes( "ISO-8859-1" ) );
+  }
+  finally
+  {
+    out.close();
+  }
+}
+
+@After
+public void tearDown () throws Exception
+{
+  m_file.delete();
+}
+
+private static String readAll ( LineReader reader ) throws IOException
+{
+  StringBuilder res = new StringBuilder();
+  while (reader.readNextLine())
+    res.append( new String( reader.getLineBuf(), reader.getLineStart(),
+                            reader.getLineEnd() - reader.getLineStart(), "ISO-8859-1" ) );
+  reader.close();
+  return res.toString();
+}
+
+@Test
+public void testGrownFile () throws IOException
+{
+  final String exp = readAll( new LineReader( new FileInputStream( m_file ), 64 ) );
+  assertEquals( m_file.length(), exp.length() );
+  assertEquals( exp, readAll( LineReader.readFile( m_file ) ) );
+
+  // The file has grown after its length was obtained
+  for ( final long length : new long[]{ 1, 100, m_file.length() - 1 } )
+  {
+    File grown = new File( m_file.getPath() ) {
+      @Override
+      public long length ()
+      {
+        return length;
+      }
+    };
+    assertEquals( exp, readAll( LineReader.readFile( grown ) ) );
+  }
+}
+} // class
@@ -0,0 +1,154 @@
+package c99.parser.pp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import c99.driver.PPSymTable;
+import org.junit.Test;
+
+import static c99.parser.pp.PreprTests.run;
+import static org.junit.Assert.*;
+
+public class MacroTableTest
+{
+private static final String PREFIX =
+  "#define A 1\n" +
+  "#define F(x) (x + A)\n" +
+  "#define REC REC + 1\n";
+
+private static Prepr<PPSymbol> prepr ( String src, PPSymTable symTable, MacroTable base )
+{
+  return PreprTests.prepr( new PreprOptions(), src, symTable, base );
+}
+
+private static PPSymTable s_baseSyms;
+
+private static MacroTable base ( String prefix )
+{
+  s_baseSyms = new PPSymTable();
+  Prepr<PPSymbol> pp = prepr( prefix, s_baseSyms, null );
+  run( pp );
+  return pp.freeze();
+}
+
+private static String fork ( MacroTable base, String src )
+{
+  return run( prepr( src, new PPSymTable( s_baseSyms ), base ) );
+}
+
+@Test
+public void testOverlay ()
+{
+  MacroTable base = base( PREFIX );
+  assertTrue( base.isFrozen() );
+
+  final String src = "A F(2) REC new\n";
+  assertEquals( "1 ( 2 + 1 ) REC + 1 new ", fork( base, src ) );
+  // Changes in one instance are not visible in the base or in other instances
+  assertEquals( "A ( 2 + A ) REC + 1 ", fork( base, "#undef A\nA F(2) REC\n" ) );
+  assertEquals( "2 ( 2 + 2 ) ", fork( base, "#undef A\n#define A 2\nA F(2)\n" ) );
+  assertEquals( "1 ( 2 + 1 ) REC + 1 new ", fork( base, src ) );
+  assertEquals( "ok ", fork( base, "#if defined(A) && F(1) == 2\nok\n#endif\n" ) );
+}
+
+@Test
+public void testLayers ()
+{
+  // A fork can itself be frozen and used as a base
+  MacroTable base = base( PREFIX );
+  PPSymTable syms1 = new PPSymTable( s_baseSyms );
+  Prepr<PPSymbol> pp = prepr( "#undef A\n#define A 3\n#define B A\n", syms1, base );
+  run( pp );
+  MacroTable base1 = pp.freeze();
+
+  assertEquals( "3 ( 1 + 3 ) 3 ",
+                run( prepr( "B F(1) A\n", new PPSymTable( syms1 ), base1 ) ) );
+  assertEquals( "1 B ", fork( base, "A B\n" ) );
+}
+
+@Test
+public void testFrozen ()
+{
+  base( PREFIX );
+  try
+  {
+    s_baseSyms.symbol( "new_identifier" );
+    fail( "frozen symbol table modified" );
+  }
+  catch (IllegalStateException expected)
+  {}
+  assertNotNull( s_baseSyms.symbol( "A" ) );
+}
+
+@Test(expected = IllegalArgumentException.class)
+public void testWrongSymbolTable ()
+{
+  MacroTable base = base( PREFIX );
+  prepr( "", new PPSymTable(), base );
+}
+
+@Test
+public void testIncludeGuard () throws IOException
+{
+  File header = File.createTempFile( "guard", ".h" );
+  try
+  {
+    FileOutputStream out = new FileOutputStream( header );
+    out.write( "#ifndef GUARD_H\n#define GUARD_H\nint x;\n#endif\n".getBytes() );
+    out.close();
+
+    final String inc = "#include \"" + header.getAbsolutePath() + "\"\n";
+    MacroTable base = base( inc );
+    Prepr<PPSymbol> pp = prepr( inc + "y\n", new PPSymTable( s_baseSyms ), base );
+    assertEquals( "y ", run( pp ) );
+    assertEquals( 1, pp.getSkippedIncludeCount() );
+  }
+  finally
+  {
+    header.delete();
+  }
+}
+
+@Test
+public void testConcurrent () throws Exception
+{
+  final MacroTable base = base( PREFIX );
+  ExecutorService pool = Executors.newFixedThreadPool( 4 );
+  try
+  {
+    ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+    for ( int i = 0; i < 32; ++i )
+    {
+      final int n = i;
+      results.add( pool.submit( new Callable<String>() {
+        @Override
+        public String call ()
+        {
+          StringBuilder src = new StringBuilder( "#undef A\n#define A " + n + "\n" );
+          for ( int j = 0; j < 100; ++j )
+            src.append( "F(REC) id" ).append( j ).append( '\n' );
+          return fork( base, src.toString() );
+        }
+      } ) );
+    }
+
+    for ( int i = 0; i < results.size(); ++i )
+    {
+      StringBuilder exp = new StringBuilder();
+      for ( int j = 0; j < 100; ++j )
+        exp.append( "( REC + 1 + " ).append( i ).append( " ) id" ).append( j ).append( ' ' );
+      assertEquals( exp.toString(), results.get( i ).get() );
+    }
+  }
+  finally
+  {
+    pool.shutdownNow();
+  }
+}
+} // class
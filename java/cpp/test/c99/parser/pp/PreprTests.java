@@ -0,0 +1,44 @@
+package c99.parser.pp;
+
+import java.util.Arrays;
+
+import c99.DummyErrorReporter;
+import c99.driver.PPSymTable;
+import c99.parser.Code;
+
+/** Helpers shared by the preprocessor tests */
+final class PreprTests
+{
+private PreprTests () {}
+
+/** A preprocessor of the in-memory source {@code src}, named "a.c" */
+static Prepr<PPSymbol> prepr ( PreprOptions opts, String src, PPSymTable symTable, MacroTable base )
+{
+  byte[] bytes = src.getBytes();
+  return new Prepr<PPSymbol>( opts, new DummyErrorReporter(), new SearchPathFactory().finish( opts ),
+                              "a.c", new LineReader( Arrays.copyOf( bytes, bytes.length + 1 ), bytes.length ),
+                              symTable, base );
+}
+
+static Prepr<PPSymbol> prepr ( PreprOptions opts, String src )
+{
+  return prepr( opts, src, new PPSymTable(), null );
+}
+
+static Prepr<PPSymbol> prepr ( String src )
+{
+  return prepr( new PreprOptions(), src );
+}
+
+/** Preprocess until EOF, close the preprocessor and return the significant tokens separated by spaces */
+static String run ( Prepr<PPSymbol> pp )
+{
+  StringBuilder res = new StringBuilder();
+  PPDefs.Token<PPSymbol> tok;
+  while ((tok = pp.nextToken()).code() != Code.EOF)
+    if (tok.code() != Code.WHITESPACE && tok.code() != Code.NEWLINE)
+      res.append( tok.outputString() ).append( ' ' );
+  pp.close();
+  return res.toString();
+}
+} // class
@@ -0,0 +1,130 @@
+package c99.parser.pp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import c99.driver.PPSymTable;
+import org.junit.Test;
+
+import static c99.parser.pp.PreprTests.prepr;
+import static c99.parser.pp.PreprTests.run;
+import static org.junit.Assert.*;
+
+public class SnapshotTest
+{
+private static final String PREFIX =
+  "#define STR(x) #x\n" +
+  "#define CAT(a,b) a ## b\n" +
+  "#define MAX(a,b) ((a) > (b) ? (a) : (b))\n" +
+  "#define V(fmt, ...) printf(fmt, __VA_ARGS__)\n" +
+  "#define CH 'z'\n" +
+  "#define S \"str\\n\"\n" +
+  "#define N 0x10UL\n" +
+  "#define R 1.5e3\n" +
+  "#define GONE 1\n" +
+  "#undef GONE\n";
+
+private static final String SOURCE =
+  "STR(a b) CAT(x,y) MAX(1,CAT(N,)) V(\"%d\", 1, 2) CH S N R GONE\n" +
+  "#if N == 16 && CH == 'z' && R > 1\n" +
+  "ok\n" +
+  "#endif\n";
+
+private static ByteBuffer snapshot ( String prefix ) throws IOException
+{
+  Prepr<PPSymbol> pp = prepr( prefix );
+  run( pp );
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  pp.saveSnapshot( out );
+  return ByteBuffer.wrap( out.toByteArray() );
+}
+
+@Test
+public void testMacros () throws IOException
+{
+  final String exp = run( prepr( PREFIX + SOURCE ) );
+  final ByteBuffer snapshot = snapshot( PREFIX );
+
+  // The same snapshot can be loaded many times
+  for ( int i = 0; i < 2; ++i )
+  {
+    Prepr<PPSymbol> pp = prepr( SOURCE );
+    pp.loadSnapshot( snapshot );
+    assertEquals( exp, run( pp ) );
+  }
+}
+
+@Test
+public void testIfStack () throws IOException
+{
+  // Unterminated conditionals continue in the next instance
+  final String prefix = "#if 1\n#ifdef X\n#else\n";
+  final String source = "a\n#endif\nb\n#endif\nc\n";
+  final ByteBuffer snapshot = snapshot( prefix );
+  Prepr<PPSymbol> pp = prepr( source );
+  pp.loadSnapshot( snapshot );
+  assertEquals( run( prepr( prefix + source ) ), run( pp ) );
+}
+
+@Test(expected = IOException.class)
+public void testInvalid () throws IOException
+{
+  prepr( "" ).loadSnapshot( ByteBuffer.wrap( "not a snapshot".getBytes() ) );
+}
+
+@Test(expected = IOException.class)
+public void testTruncated () throws IOException
+{
+  ByteBuffer snapshot = snapshot( PREFIX );
+  snapshot.limit( snapshot.limit() / 2 );
+  prepr( "" ).loadSnapshot( snapshot );
+}
+
+/** A snapshot with a single guarded file, whose name has the specified length */
+private static ByteBuffer badLength ( int len ) throws IOException
+{
+  Snapshot.Writer w = new Snapshot.Writer();
+  w.writeInt( 0 ); // Macros
+  w.writeInt( 1 ); // Guarded files
+  w.writeInt( 1 ); // A new string
+  w.writeInt( len );
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  w.writeTo( out );
+  return ByteBuffer.wrap( out.toByteArray() );
+}
+
+@Test
+public void testBadLength ()
+{
+  for ( int len : new int[]{ -5, Integer.MAX_VALUE } )
+  {
+    try
+    {
+      prepr( "" ).loadSnapshot( badLength( len ) );
+      fail( "loaded a length of " + len );
+    }
+    catch (IOException e)
+    {
+      assertEquals( "Invalid preprocessor snapshot", e.getMessage() );
+    }
+  }
+}
+
+@Test
+public void testStrings () throws IOException
+{
+  final String path = "/tmp/\u0437\u0430\u0433\u043b\u0430\u0432\u0438\u0435/\u4e2d.h";
+  Snapshot.Writer w = new Snapshot.Writer();
+  w.writeString( path );
+  w.writeString( path );
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  w.writeTo( out );
+
+  Snapshot.Reader r = new Snapshot.Reader( ByteBuffer.wrap( out.toByteArray() ), new PPSymTable() );
+  String s = r.readString();
+  assertEquals( path, s );
+  assertSame( s, r.readString() );
+  assertTrue( r.atEnd() );
+}
+} // class
@@ -0,0 +1,94 @@
+package c99.parser.pp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SourceMinimizerTest
+{
+private File m_a, m_b;
+
+private static void write ( File f, String contents ) throws IOException
+{
+  FileOutputStream out = new FileOutputStream( f );
+  try
+  {
+    out.write( contents.getBytes( "ISO-8859-1" ) );
+  }
+  finally
+  {
+    out.close();
+  }
+}
+
+private static String minimize ( String src ) throws IOException
+{
+  byte[] b = src.getBytes( "ISO-8859-1" );
+  return new String( SourceMinimizer.minimize( b, b.length ), "ISO-8859-1" );
+}
+
+@Before
+public void setUp () throws Exception
+{
+  m_a = File.createTempFile( "min", ".h" );
+  m_b = File.createTempFile( "min", ".h" );
+}
+
+@After
+public void tearDown () throws Exception
+{
+  m_a.delete();
+  m_b.delete();
+}
+
+@Test
+public void testMinimize () throws Exception
+{
+  final String define = "  /* c */ # define B \\\n  2 /* x\n  y */ + 3\n";
+  assertEquals(
+    "\n\n" + define + "\n\n" + "#include <x.h> // done\n" + "\n" + "#endif",
+    minimize(
+      "int a; /* #define X\n" +
+      "*/ #define A 1\n" +
+      define +
+      "char *s = \"#define C\"; // \\\n" +
+      "#define D\n" +
+      "#include <x.h> // done\n" +
+      "x = '#';\n" +
+      "#endif"
+    )
+  );
+
+  assertEquals( "", minimize( "" ) );
+  assertEquals( "\n\n#if 1\r\n", minimize( "a\nb\r\n#if 1\r\n" ) );
+}
+
+@Test
+public void testCache () throws Exception
+{
+  final String src = "#ifndef A\nint a;\n#endif\n";
+  write( m_a, src );
+  write( m_b, src );
+  MinimizedSourceCache cache = new MinimizedSourceCache( 1000 );
+
+  byte[] d1 = cache.read( m_a );
+  assertEquals( "#ifndef A\n\n#endif\n", new String( d1, "ISO-8859-1" ) );
+  assertSame( d1, cache.read( m_a ) );
+  // The same contents are minimized only once
+  assertSame( d1, cache.read( m_b ) );
+  assertEquals( 2, cache.getMissCount() );
+  assertEquals( 1, cache.getHitCount() );
+  assertEquals( 2, cache.getEntryCount() );
+
+  write( m_a, "#define X\n" );
+  assertEquals( "#define X\n", new String( cache.read( m_a ), "ISO-8859-1" ) );
+  assertEquals( 3, cache.getMissCount() );
+  assertSame( d1, cache.read( m_b ) );
+}
+} // class
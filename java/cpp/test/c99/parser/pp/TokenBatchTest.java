@@ -0,0 +1,116 @@
+package c99.parser.pp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import c99.SourceRange;
+import c99.parser.Code;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBatchTest
+{
+private static final String SRC =
+  "#define F(a,b) a ## b + 1.5\n" +
+  "int x = F(1,2) * 'c';\n" +
+  "char * s = \"str\" @;\n" +
+  "#if F(0,1) > 1\n" +
+  "skipped\n" +
+  "#endif\n" +
+  "F(x,\n" +
+  "  y) # end\n";
+
+private static Prepr<PPSymbol> prepr ( boolean lazy )
+{
+  PreprOptions opts = new PreprOptions();
+  opts.setLazyLocations( lazy );
+  return PreprTests.prepr( opts, SRC );
+}
+
+/** A description of a token, its value and location */
+private static String describe ( Code code, Object value, SourceRange rng )
+{
+  if (value instanceof byte[])
+    value = new String( (byte[])value );
+  return code + ":" + value + "@" + SourceRange.formatRange( rng );
+}
+
+private static List<String> expected ( boolean lazy, boolean skipWhitespace )
+{
+  List<String> res = new ArrayList<String>();
+  Prepr<PPSymbol> pp = prepr( lazy );
+  PPDefs.Token<PPSymbol> tok;
+  do
+  {
+    tok = pp.nextToken();
+    Code code = tok.code();
+    if (skipWhitespace && (code == Code.WHITESPACE || code == Code.NEWLINE))
+      continue;
+
+    Object value;
+    switch (code)
+    {
+      case IDENT: value = tok.symbol(); break;
+      case INT_NUMBER: value = tok.getIntConstValue( null ); break;
+      case REAL_NUMBER: value = tok.getRealConst( null ); break;
+      case CHAR_CONST: value = tok.getCharConstValue(); break;
+      case STRING_CONST: value = tok.getStringConstValue(); break;
+      case OTHER: value = tok.outputString(); break;
+      default: value = null; break;
+    }
+    res.add( describe( code, value, new SourceRange( tok ) ) );
+  }
+  while (tok.code() != Code.EOF);
+  pp.close();
+  return res;
+}
+
+private static List<String> batched ( boolean lazy, boolean skipWhitespace, int capacity )
+{
+  List<String> res = new ArrayList<String>();
+  Prepr<PPSymbol> pp = prepr( lazy );
+  TokenBatch<PPSymbol> batch = new TokenBatch<PPSymbol>( capacity, skipWhitespace );
+  SourceRange rng = new SourceRange();
+  int n;
+  do
+  {
+    n = pp.nextTokens( batch );
+    assertTrue( n > 0 && n <= capacity );
+    assertEquals( lazy, batch.getSourceManager() != null );
+    for ( int i = 0; i < n; ++i )
+      res.add( describe( batch.code( i ), batch.value( i ), batch.locate( i, rng ) ) );
+  }
+  while (batch.code( n - 1 ) != Code.EOF);
+  pp.close();
+  return res;
+}
+
+private static void check ( boolean lazy, boolean skipWhitespace )
+{
+  List<String> exp = expected( lazy, skipWhitespace );
+  for ( int capacity : new int[]{ 1, 3, 1000 } )
+    assertEquals( exp, batched( lazy, skipWhitespace, capacity ) );
+}
+
+@Test
+public void testEager ()
+{
+  check( false, false );
+  check( false, true );
+}
+
+@Test
+public void testLazy ()
+{
+  check( true, false );
+  check( true, true );
+}
+
+@Test
+public void testSkipWhitespace ()
+{
+  for ( String s : batched( false, true, 4 ) )
+    assertFalse( s, s.startsWith( "WHITESPACE:" ) || s.startsWith( "NEWLINE:" ) );
+}
+} // class
@@ -0,0 +1,22 @@
+// Arguments are macro-expanded only when the parameter is used outside of '#' and '##'
+#define STR(x) #x
+#define CAT(a,b) a ## b
+#define ID(x) x
+#define TWO(a,b) a b
+#define F(x) [x]
+#define G F
+#define ONE 1
+
+STR(TWO(1))
+CAT(ONE,ONE) CAT(ID,ONE)(x)
+ID(ID(ID(ONE)))
+F(F(ONE))
+ID(G)(ONE)
+TWO(ONE, STR(ONE)) TWO(STR(ONE), ONE)
+ID(ID)(ONE)
+
+#define V(...) <__VA_ARGS__>
+#define E
+V(E, ONE, E)
+#define GV(x, ...) {x , ## __VA_ARGS__}
+GV(ONE) GV(ONE,ONE) GV(ONE,E)
@@ -0,0 +1,23 @@
+# 1 "pp-def-11.c"
+
+
+
+
+
+
+
+
+
+"TWO(1)"
+ONEONE IDONE(x)
+1
+[[1]]
+[1]
+1 "ONE" "ONE" 1
+ID(1)
+
+
+
+<, 1, >
+
+{1 } {1 , 1} {1 , }
@@ -0,0 +1,9 @@
+// Re-lexing the result of '##'
+#define C(a,b) a ## b
+C(x,y) C(1,e) C(1e,+) C(.,5) C(0x,1f) C(1.,5) C(1,.) C(a,1) C(_,_)
+C(+,+) C(+,=) C(-,>) C(<,<) C(<<,=) C(>>,=) C(<,:) C(%,>) C(..,.) C(#,#) C(:,>)
+C(/,/) C(/,*) C(+,-) C(x,+) C(1,"a") C(L,"a") C(L,'a') C(u8,"a") C(@,x)
+C(,x) C(x,) C(,)
+#if C(1,2) == 12 && C(0x,10) == 16
+ok
+#endif
@@ -0,0 +1,10 @@
+# 1 "pp-def-12.c"
+
+
+xy 1e 1e+ .5 0x1f 1.5 1. a1 __
+++ += -> << <<= >>= [ } ... ## ]
+/ / / * +- x+ 1"a" L"a" L'a' u8"a" @x
+x x 
+
+ok
+
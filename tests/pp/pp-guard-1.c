@@ -0,0 +1,8 @@
+#include "pp-guard-1.h"
+#include "pp-guard-1.h"
+#include "pp-guard-2.h"
+#include "pp-guard-2.h"
+
+#undef PP_GUARD_1_H
+#include "pp-guard-1.h"
+end
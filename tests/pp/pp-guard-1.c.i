@@ -0,0 +1,31 @@
+# 1 "pp-guard-1.c"
+# 1 "pp-guard-1.h"
+
+
+
+
+
+int guarded1;
+# 2 "pp-guard-1.c"
+
+# 1 "pp-guard-2.h"
+
+
+int guarded2;
+
+int not_guarded2;
+# 4 "pp-guard-1.c"
+# 4 "pp-guard-2.h"
+
+int not_guarded2;
+# 6 "pp-guard-1.c"
+
+# 1 "pp-guard-1.h"
+
+
+
+
+
+int guarded1;
+# 8 "pp-guard-1.c"
+end
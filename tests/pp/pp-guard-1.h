@@ -0,0 +1,9 @@
+/* An include guard preceded by a comment */
+
+#ifndef PP_GUARD_1_H
+#define PP_GUARD_1_H
+
+int guarded1;
+
+#endif /* PP_GUARD_1_H */
+
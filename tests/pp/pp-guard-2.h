@@ -0,0 +1,5 @@
+#ifndef PP_GUARD_2_H
+#define PP_GUARD_2_H
+int guarded2;
+#endif
+int not_guarded2;
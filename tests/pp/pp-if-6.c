@@ -0,0 +1,14 @@
+#if UNDEFINED + 5
+#endif
+#if UNDEFINED
+error1
+#endif
+
+#define FIVE 5LL
+#if FIVE + 1 != 6 || -FIVE != -5 || ~FIVE != -6
+error2
+#endif
+#if FIVE != 5
+error3
+#endif
+ok
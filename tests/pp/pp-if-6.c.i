@@ -0,0 +1,15 @@
+# 1 "pp-if-6.c"
+
+
+
+
+
+
+
+
+
+
+
+
+
+ok
@@ -0,0 +1,36 @@
+#if 0
+plain line
+   indented /* comment
+# define X 1
+still comment */ after
+"string /* not comment"
+'/*' x
+L"/*" y
+u8"a" x /*
+#error no
+*/
+x // comment /*
+#if 1
+nested
+#else
+  /* c */ # define Y 2
+#endif
+  # else
+ a \
+#error spliced
+back\
+#error spliced2
+#  endif
+/* leading */ #define Z 3
+Z
+#ifdef Q
+ q
+#elif 1
+ elif_taken
+#endif
+#if 0
+x = a / b; /* c */ y "/*"
+#define W 5
+*/
+#endif
+W
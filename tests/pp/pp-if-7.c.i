@@ -0,0 +1,20 @@
+# 18 "pp-if-7.c"
+
+ a 
+ #error spliced
+back
+ #error spliced2
+
+
+3
+
+
+
+ elif_taken
+
+
+
+
+
+
+W
@@ -0,0 +1,30 @@
+#if -1 < 0u
+signed_compare
+#else
+unsigned_compare
+#endif
+#if 0xFFFFFFFF > -1 && 0x7FFFFFFFFFFFFFFF > 0 && 010 == 8
+hex_signed
+#endif
+#if 18446744073709551615u == -1 && (0u - 1) / 2 == 0x7FFFFFFFFFFFFFFF
+uintmax
+#endif
+#if (-1 >> 1) == -1 && (-1u >> 63) == 1 && (1 << 62) > 0
+shifts
+#endif
+#if (-7 / 2) == -3 && (-7 % 2) == -1 && (7u % 3) == 1 && -9223372036854775807 - 1 < 0
+division
+#endif
+#if (1 ? -1 : 0u) > 0 && (0 ? 1u : -1) > 0
+conditional
+#endif
+#if !0u == 1 && -!0 < 0 && (1u < 2) - 2 < 0 && (2u && 1) - 2 < 0
+int_results
+#endif
+#if 1 / 0
+#endif
+#if 2 % (1 - 1)
+#endif
+#if 'a' == 97 && '\0' - 1 < 0
+chars
+#endif
@@ -0,0 +1,29 @@
+# 3 "pp-if-8.c"
+
+unsigned_compare
+
+
+hex_signed
+
+
+uintmax
+
+
+shifts
+
+
+division
+
+
+conditional
+
+
+int_results
+
+
+
+
+
+
+chars
+
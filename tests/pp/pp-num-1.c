@@ -0,0 +1,11 @@
+int a = 0x + 1.5e+ + 08;
+#if 0x
+#endif
+#define BIG 99999999999999999999
+long b = BIG;
+#if BIG
+big
+#endif
+#if 010 == 8 && 0x10 == 16 && 10u == 10
+ok
+#endif
@@ -0,0 +1,12 @@
+# 1 "pp-num-1.c"
+int a = 0x + 1.5e+ + 08;
+
+
+
+long b = 99999999999999999999;
+
+big
+
+
+ok
+
@@ -0,0 +1,7 @@
+#include "pp-once-1.h"
+#include "pp-once-1.h"
+#include "./pp-once-1.h"
+#include "../pp/pp-once-1.h"
+#pragma once extra
+#pragma other
+end
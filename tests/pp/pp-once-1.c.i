@@ -0,0 +1,11 @@
+# 1 "pp-once-1.c"
+# 1 "pp-once-1.h"
+
+int once1;
+# 2 "pp-once-1.c"
+
+
+
+
+
+end